@@ -0,0 +1,291 @@
+package edu.umd.cs.mtc;
+
+import java.lang.invoke.MethodHandle;
+
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Supplier;
+
+/**
+ * This class runs a {@link TestCase} many times per thread start,
+ * each time against a fresh instance of the test case.
+ *
+ * <p>
+ * {@link TestFramework#runOnce(TestCase)} starts a thread per thread method for every run.
+ * In a batch, each thread method runs on one thread against a whole array of
+ * fresh test case instances (created by a {@link Supplier} and initialized with <code>setUp</code>).
+ * The threads advance through the array in lockstep: at each index, every thread
+ * spins until all the threads have reached that index, so the thread methods run
+ * on the same instance at nearly the same time, as in a run with a spin start.
+ * When the batch is done, the finish method (<code>tearDown</code>) checks each instance.
+ *
+ * <p>
+ * There is no clock: as in a {@link Benchmark}, waiting for a tick returns immediately.
+ * An exception in a thread method fails the run of that instance only.
+ * A batch in which no thread has moved on to the next instance for the run limit
+ * (-Dtunit.runLimit) is stuck: its threads are interrupted and given the shutdown limit
+ * (-Dtunit.shutdownLimit) to end, the instance they were stuck at fails with the stacks
+ * of the threads still in it, and no further batch is run.
+ *
+ * @see TestFramework#runManyTimes(TestCase, int)
+ */
+public class BatchRunner {
+
+  /**
+   * Run fresh instances of a test case in batches, and throw the first failure.
+   *
+   * @param factory - creates a fresh instance of the test case
+   * @param batchSize - the number of instances run per thread start
+   * @param count - the total number of instances to run
+   * @throws Throwable - the first failure, if any run failed
+   */
+  public static void runManyTimes(Supplier<? extends TestCase> factory, int batchSize, int count) throws Throwable {
+    var report = run(factory, batchSize, count);
+    if (report.firstFailure != null) {
+      throw report.firstFailure;
+    }
+  }
+
+  /**
+   * Run fresh instances of a test case in batches.
+   *
+   * @param factory - creates a fresh instance of the test case
+   * @param batchSize - the number of instances run per thread start
+   * @param count - the total number of instances to run
+   * @return the number of runs and of failures, and the first failure
+   * @throws InterruptedException - if interrupted while waiting for a batch
+   */
+  public static Report run(Supplier<? extends TestCase> factory, int batchSize, int count) throws InterruptedException {
+    var report = new Report();
+    for (var done = 0; done < count; ) {
+      var size = Math.min(Math.max(batchSize, 1), count - done);
+      if (!runBatch(factory, size, report)) {
+        break; // stuck
+      }
+      done += size;
+    }
+    return report;
+  }
+
+  /**
+   * Create, run and check one batch of instances.
+   *
+   * @return false if the batch got stuck
+   */
+  static boolean runBatch(Supplier<? extends TestCase> factory, int size, Report report) throws InterruptedException {
+    var states = new TestCase[size];
+    var errors = new Throwable[size];
+    TestFramework.Fixture fixture = null;
+    for (var i = 0; i < size; i++) {
+      states[i] = factory.get();
+      if (fixture == null) {
+        fixture = TestFramework.proxy.get(states[i].getClass());
+        if (fixture.run == null) {
+          throw new IllegalArgumentException(states[i].getClass().getName() + " has no thread methods");
+        }
+      }
+      states[i].benchmarking = true;
+      try {
+        if (fixture.setUp != null) {
+          fixture.setUp.invoke(states[i]); // test.initialize()
+        }
+      }
+      catch (Throwable e) {
+        errors[i] = e;
+      }
+    }
+
+    // arrived[i] counts the threads that have reached index i, and at[k] is the index thread k is at
+    var parties = fixture.run.length;
+    var arrived = new AtomicIntegerArray(size);
+    var at = new AtomicIntegerArray(parties);
+    var threads = new Thread[parties];
+    for (var k = 0; k < parties; k++) {
+      var method = fixture.run[k];
+      var party = k;
+      threads[k] = new Thread(() -> work(method, states, errors, arrived, parties, at, party),
+        fixture.id[k].substring(6) + " batch thread");
+      threads[k].start();
+    }
+    var stuck = join(threads, arrived, parties);
+    if (stuck >= 0) {
+      var failure = shutDown(threads, arrived, at, stuck);
+      synchronized (errors) {
+        errors[stuck] = failure;
+      }
+      size = stuck + 1; // the instances after it never ran
+    }
+
+    for (var i = 0; i < size; i++) {
+      states[i].benchmarking = false;
+      if (errors[i] == null && fixture.tearDown != null) {
+        try {
+          fixture.tearDown.invoke(states[i]); // test.finish()
+        }
+        catch (Throwable e) {
+          errors[i] = e;
+        }
+      }
+      report.runs++;
+      if (errors[i] != null) {
+        report.failures++;
+        if (report.firstFailure == null) {
+          report.firstFailure = errors[i];
+        }
+      }
+    }
+    return stuck < 0;
+  }
+
+  /**
+   * Wait for the threads of a batch, as long as one of them moves on to the next instance
+   * at least once per run limit.
+   *
+   * @return -1 if the threads have ended, or the index of the instance they are stuck at
+   */
+  static int join(Thread[] threads, AtomicIntegerArray arrived, int parties) throws InterruptedException {
+    var runLimit = Math.max(0, Integer.getInteger(TestFramework.RUNLIMIT_KEY, TestFramework.DEFAULT_RUNLIMIT));
+    var limit = TimeUnit.SECONDS.toNanos(runLimit);
+    var last = -1;
+    var since = System.nanoTime();
+    for (var t : threads) {
+      while (t.isAlive()) {
+        t.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(limit) / 10));
+        var reached = reached(arrived, parties);
+        if (reached != last) {
+          last = reached;
+          since = System.nanoTime();
+        } else if (t.isAlive() && System.nanoTime() - since > limit) {
+          return Math.max(0, reached);
+        }
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return the last index that all the threads have reached, or -1
+   */
+  static int reached(AtomicIntegerArray arrived, int parties) {
+    var i = 0;
+    while (i < arrived.length() && arrived.get(i) >= parties) {
+      i++;
+    }
+    return i - 1;
+  }
+
+  /**
+   * Interrupt the threads of a stuck batch, and give them the shutdown limit to end.
+   * As with a failed run, the threads that are still alive are quarantined.
+   *
+   * @return the failure of the instance the batch is stuck at, with the stacks of its threads
+   */
+  static IllegalStateException shutDown(Thread[] threads, AtomicIntegerArray arrived, AtomicIntegerArray at, int stuck)
+    throws InterruptedException
+  {
+    // the threads waiting at the next instance see that it is abandoned, and end
+    if (stuck + 1 < arrived.length()) {
+      arrived.set(stuck + 1, ABANDONED);
+    }
+    var report = new StringBuilder("Batch stuck at instance " + stuck);
+    for (var k = 0; k < threads.length; k++) {
+      var t = threads[k];
+      if (t.isAlive() && at.get(k) == stuck) {
+        report.append(String.format("%n%s (%s)", t.getName(), t.getState()));
+        for (var st : t.getStackTrace()) {
+          report.append(String.format("%n    at %s", st));
+        }
+      }
+    }
+    for (var t : threads) {
+      t.interrupt();
+    }
+    var shutdownLimit = Math.max(0, Integer.getInteger(TestFramework.SHUTDOWNLIMIT_KEY, TestFramework.DEFAULT_SHUTDOWNLIMIT));
+    var deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(shutdownLimit);
+    for (var t : threads) {
+      var remaining = deadline - System.nanoTime();
+      if (remaining > 0) {
+        t.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+      }
+    }
+    for (var t : threads) {
+      if (t.isAlive()) {
+        t.setPriority(Thread.MIN_PRIORITY);
+        synchronized (TestFramework.quarantined) {
+          TestFramework.quarantined.add(t);
+        }
+        report.append(String.format("%nQuarantined %s, still running %d ms after it was interrupted", t.getName(), shutdownLimit));
+      }
+    }
+    return new IllegalStateException(report.toString());
+  }
+
+  /** Set as the count of an instance that a stuck batch will never run */
+  static final int ABANDONED = Integer.MIN_VALUE / 2;
+
+  /**
+   * Run a thread method against every instance of a batch, in lockstep with the other threads.
+   */
+  static void work(MethodHandle method, TestCase[] states, Throwable[] errors, AtomicIntegerArray arrived, int parties,
+    AtomicIntegerArray at, int party)
+  {
+    try {
+      for (var i = 0; i < states.length; i++) {
+        at.set(party, i);
+        arrived.incrementAndGet(i);
+        for (var spins = 1; arrived.get(i) < parties; spins++) {
+          if (arrived.get(i) < 0) {
+            return; // the batch is stuck
+          }
+          if ((spins & 0x3F) == 0) {
+            Thread.yield(); // more threads than processors
+          } else {
+            Thread.onSpinWait();
+          }
+        }
+        if (errors[i] != null) {
+          continue; // setUp failed
+        }
+        TestCase.currentTestCase.set(states[i]);
+        try {
+          Object result = method.invoke(states[i]);
+          if (result instanceof CompletionStage<?> stage) {
+            TestFramework.awaitStage(stage);
+          }
+        }
+        catch (Throwable e) {
+          synchronized (errors) {
+            if (errors[i] == null) errors[i] = e;
+          }
+        }
+      }
+    }
+    finally {
+      TestCase.currentTestCase.set(null);
+    }
+  }
+
+  /**
+   * The results of all the batches.
+   */
+  public static class Report {
+    int runs, failures;
+    Throwable firstFailure;
+
+    /** @return the number of instances run */
+    public int getRuns() { return runs; }
+
+    /** @return the number of instances whose run failed */
+    public int getFailures() { return failures; }
+
+    /** @return the first failure, or null if all the runs passed */
+    public Throwable getFirstFailure() { return firstFailure; }
+
+    @Override
+    public String toString() {
+      return "Batch runs: " + runs + ", failures: " + failures;
+    }
+  }
+
+}
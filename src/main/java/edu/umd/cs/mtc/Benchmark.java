@@ -0,0 +1,228 @@
+package edu.umd.cs.mtc;
+
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class runs a {@link TestCase} as a throughput benchmark.
+ *
+ * <p>
+ * The thread methods of a test case describe a concurrent usage scenario,
+ * so they can also measure how well the code under test performs under contention.
+ * In a benchmark, each thread method runs in a loop on a thread of its own
+ * for a fixed amount of time, and the number of completed calls
+ * (operations) of each thread method is counted.
+ *
+ * <p>
+ * There is no clock in a benchmark: {@link TestCase#waitForTick(int)} returns immediately,
+ * virtual time waits ({@link TestCase#sleepTicks(int)}, {@link TestCase#waitOn(Object, int)}, ...)
+ * reach their deadline at once, and {@link TestCase#assertTick(int)} checks nothing.
+ * Plain waits ({@link TestCase#waitOn(Object)}) only return when notified.
+ *
+ * <p>
+ * The initialize method runs once before the benchmark.
+ * The finish method is <em>not</em> run, since it checks the state after a single run of every thread method.
+ *
+ * <p>
+ * Any exception thrown by a thread method fails the benchmark.
+ * When the time is up, the threads still blocked in a thread method are interrupted.
+ *
+ * @see TestFramework#runOnce(TestCase)
+ */
+public class Benchmark {
+
+  static final int WARM_UP = 0, MEASURE = 1, STOP = 2;
+
+  /**
+   * Run the thread methods of a test case in a loop, and count their operations.
+   *
+   * @param test - The multithreaded test case to benchmark
+   * @param warmUpMillis - the time (in ms) to run before counting operations
+   * @param measureMillis - the time (in ms) during which operations are counted
+   * @return the operations counted for each thread method
+   * @throws Throwable - the first exception thrown by a thread method
+   */
+  public static Report run(TestCase test, long warmUpMillis, long measureMillis) throws Throwable {
+    var fixture = TestFramework.proxy.get(test.getClass());
+    if (fixture.run == null) {
+      return new Report(test.getClass(), new String[0], new long[0], measureMillis * 1_000_000);
+    }
+    var n = fixture.run.length;
+    var ops = new long[n];
+    var error = new Throwable[1];
+    var phase = new AtomicInteger(WARM_UP);
+    var checkedIn = new AtomicInteger();
+
+    if (fixture.setUp != null) {
+      fixture.setUp.invoke(test); // test.initialize()
+    }
+    test.benchmarking = true;
+    try {
+      var threadGroup = new ThreadGroup("MTC-Benchmark");
+      var threads = new Thread[n];
+      for (var i = 0; i < n; i++) {
+        var method = fixture.run[i];
+        var index = i;
+        threads[i] = new Thread(threadGroup, () -> {
+          test.hello();
+          var count = 0L;
+          try {
+            TestFramework.spinUntil(checkedIn, n);
+            for (int p; (p = phase.get()) != STOP; ) {
+              Object result = method.invoke(test);
+              if (result instanceof CompletionStage<?> stage) {
+                TestFramework.awaitStage(stage);
+              }
+              if (p == MEASURE) count++;
+            }
+          }
+          catch (Throwable e) {
+            // an exception after the time is up is caused by the interrupt
+            if (phase.getAndSet(STOP) != STOP) {
+              synchronized (error) {
+                if (error[0] == null) error[0] = e;
+              }
+            }
+          }
+          finally {
+            ops[index] = count;
+            test.goodbye();
+          }
+        }, fixture.id[i].substring(6) + " thread");
+        threads[i].start();
+      }
+
+      Thread.sleep(warmUpMillis);
+      var start = System.nanoTime();
+      phase.compareAndSet(WARM_UP, MEASURE);
+      Thread.sleep(measureMillis);
+      phase.set(STOP);
+      var elapsed = System.nanoTime() - start;
+
+      var deadline = System.currentTimeMillis() + Integer.getInteger(TestFramework.SHUTDOWNLIMIT_KEY, TestFramework.DEFAULT_SHUTDOWNLIMIT);
+      for (var t : threads) {
+        t.join(Math.max(1, deadline - System.currentTimeMillis()));
+        if (t.isAlive()) {
+          t.interrupt(); // blocked in a thread method, waiting for a thread that has stopped
+          t.join(Math.max(1, deadline - System.currentTimeMillis()));
+        }
+      }
+      synchronized (error) {
+        if (error[0] != null) {
+          throw error[0];
+        }
+      }
+      for (var t : threads) {
+        if (t.isAlive()) {
+          throw new IllegalStateException(t.getName() + " did not end after the benchmark");
+        }
+      }
+      return new Report(test.getClass(), fixture.id, ops, elapsed);
+    }
+    finally {
+      test.benchmarking = false;
+    }
+  }
+
+  /**
+   * Turn off the clock of a test case, as in a benchmark,
+   * so that its thread methods can be called by another harness
+   * (such as the JMH benchmarks written by {@link JmhGenerator}).
+   *
+   * @param test - the test case
+   * @return the test case
+   */
+  public static <T extends TestCase> T withoutClock(T test) {
+    test.benchmarking = true;
+    return test;
+  }
+
+  /**
+   * Make a test case the test case of the current thread,
+   * so that the thread can call its thread methods outside {@link TestFramework}.
+   *
+   * @see #withoutClock(TestCase)
+   *
+   * @param test - the test case, or null to leave the current one
+   */
+  public static void enter(TestCase test) {
+    TestCase.currentTestCase.set(test);
+  }
+
+  /**
+   * The operations counted for each thread method of a benchmark.
+   */
+  public static class Report {
+    final Class<?> type;
+    final String[] methods;
+    final long[] ops;
+    final long nanos;
+
+    Report(Class<?> type, String[] methods, long[] ops, long nanos) {
+      this.type = type;
+      this.methods = methods;
+      this.ops = ops;
+      this.nanos = nanos;
+    }
+
+    /** @return the names of the thread methods */
+    public String[] getMethods() { return methods.clone(); }
+
+    /**
+     * @param method - the name of a thread method
+     * @return the number of operations of the thread method, or -1 if there is no such method
+     */
+    public long getOps(String method) {
+      for (var i = 0; i < methods.length; i++) {
+        if (methods[i].equals(method)) return ops[i];
+      }
+      return -1;
+    }
+
+    /**
+     * @param method - the name of a thread method
+     * @return the operations per second of the thread method
+     */
+    public double getOpsPerSecond(String method) {
+      return getOps(method) * 1e9 / nanos;
+    }
+
+    /** @return the operations of all the thread methods */
+    public long getTotalOps() {
+      var total = 0L;
+      for (var o : ops) total += o;
+      return total;
+    }
+
+    /** @return the operations per second of all the thread methods */
+    public double getTotalOpsPerSecond() {
+      return getTotalOps() * 1e9 / nanos;
+    }
+
+    @Override
+    public String toString() {
+      var s = new StringBuilder();
+      s.append("Benchmark ").append(type.getName())
+       .append(String.format(" (%.1f s)%n", nanos / 1e9));
+      for (var i = 0; i < methods.length; i++) {
+        s.append(String.format("  %-20s %,15.0f ops/s%n", methods[i], getOpsPerSecond(methods[i])));
+      }
+      s.append(String.format("  %-20s %,15.0f ops/s", "total", getTotalOpsPerSecond()));
+      return s.toString();
+    }
+  }
+
+  /**
+   * Benchmark a test case class from the command line.
+   *
+   * @param args - test case class name, and optionally the measurement time and the warm-up time in seconds (default 5 and 1)
+   * @throws Throwable - the first exception thrown by a thread method
+   */
+  public static void main(String[] args) throws Throwable {
+    var test = ForkedRunner.newTestCase(Class.forName(args[0]));
+    var measure = args.length > 1 ? Long.parseLong(args[1]) : 5;
+    var warmUp = args.length > 2 ? Long.parseLong(args[2]) : 1;
+    System.out.println(run(test, 1000 * warmUp, 1000 * measure));
+  }
+
+}
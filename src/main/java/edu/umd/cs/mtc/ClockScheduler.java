@@ -0,0 +1,62 @@
+package edu.umd.cs.mtc;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The scheduler shared by the clocks of all the runs,
+ * used when <code>tunit.clockThreads</code> is greater than 0.
+ *
+ * <p>
+ * A dedicated clock thread per run spends most of its time asleep,
+ * but with many test cases running in parallel these threads add up,
+ * and their wakeups compete with the threads under test.
+ * The shared scheduler polls every active clock at its own period
+ * with a small, fixed number of threads.
+ *
+ * @see TestFramework#CLOCKTHREADS_KEY
+ */
+final class ClockScheduler {
+
+  static ScheduledThreadPoolExecutor scheduler;
+
+  private ClockScheduler() {
+  }
+
+  /**
+   * Get the shared scheduler, creating it (or resizing it) as needed.
+   *
+   * @param threads - the number of threads of the scheduler
+   * @return the shared scheduler
+   */
+  static synchronized ScheduledExecutorService get(int threads) {
+    if (scheduler == null) {
+      scheduler = new ScheduledThreadPoolExecutor(threads, new Factory());
+    }
+    else if (scheduler.getCorePoolSize() != threads) {
+      scheduler.setCorePoolSize(threads);
+    }
+    return scheduler;
+  }
+
+  /**
+   * Creates daemon clock threads in the top thread group,
+   * so that they are never mistaken for threads of the test case that first needed a clock.
+   */
+  static class Factory implements ThreadFactory {
+    final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable r) {
+      var group = Thread.currentThread().getThreadGroup();
+      while (group.getParent() != null) {
+        group = group.getParent();
+      }
+      var t = new Thread(group, r, "MTC clock " + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    }
+  }
+}
@@ -0,0 +1,289 @@
+package edu.umd.cs.mtc;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A scheduler that lets the thread methods of a run take turns between scheduling points.
+ *
+ * <p>
+ * The scheduling points are the calls to {@link TestCase#mayYield()}, the returns from
+ * {@link TestCase#waitForTick(int)}, the yield points inserted by the {@link YieldAgent},
+ * and the start and end of each thread method.
+ * Only the thread whose turn it is runs; the others wait at their scheduling points.
+ * When the thread whose turn it is reaches a scheduling point (or ends),
+ * the scheduler chooses which of the waiting threads goes on ({@link #choose(Slot[], int)}).
+ *
+ * <p>
+ * A thread that blocks between scheduling points (on a lock, or waiting for a tick)
+ * can not go on, so once it has stayed blocked for a few milliseconds,
+ * one of the waiting threads is chosen to go on in its place;
+ * once the blocked thread is released, it runs alongside until its next scheduling point.
+ * An interrupted thread passes its scheduling points without waiting, so that it sees its interrupt.
+ * A scheduler drives one run at a time.
+ *
+ * @see PctScheduler
+ * @see ScheduleExplorer
+ */
+abstract class ControlledScheduler {
+
+  /**
+   * How long the thread whose turn it is must stay blocked before another thread goes on.
+   */
+  static final long STALL_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+  /**
+   * A thread method of the current run.
+   */
+  static final class Slot {
+    final int index;
+    final String name;
+    int priority;
+    Thread thread;
+
+    /** Set while the thread waits at a scheduling point */
+    boolean paused;
+
+    /** Set when the thread method has ended */
+    boolean done;
+
+    /** Set while the thread is entering the scheduler, so it does not count as blocked */
+    volatile boolean arriving;
+
+    /** Where the thread last stopped at a scheduling point, if the scheduler keeps track */
+    String location;
+
+    Slot(int index, String name) {
+      this.index = index;
+      this.name = name;
+    }
+  }
+
+  // -- The current (or last) run --
+
+  Slot[] slots = new Slot[0];
+
+  /** The threads waiting at a scheduling point, gathered for {@link #choose(Slot[], int)} */
+  Slot[] candidates = new Slot[0];
+
+  /** The number of threads that have reached the start of their thread method */
+  int entered;
+
+  /** The number of scheduling points reached (not counting the start and end of the thread methods) */
+  int step;
+
+  /** The index of the thread whose turn it is, or -1 */
+  int current = -1;
+
+  /** The thread whose turn it is, if it was found blocked, and since when */
+  int suspect = -1;
+  long suspectSince;
+
+  /** Set when the run is over or has failed: the threads no longer wait for their turn */
+  boolean released = true;
+
+  /** The slot of each thread method thread */
+  final ThreadLocal<Slot> slot = new ThreadLocal<>();
+
+  /**
+   * Prepare a run.
+   *
+   * @param names - the names of the thread methods
+   */
+  synchronized void begin(String[] names) {
+    var threads = names.length;
+    slots = new Slot[threads];
+    candidates = new Slot[threads];
+    for (var i = 0; i < threads; i++) {
+      slots[i] = new Slot(i, names[i]);
+    }
+    entered = 0;
+    step = 0;
+    current = -1;
+    suspect = -1;
+    released = false;
+  }
+
+  /**
+   * End the run.
+   */
+  synchronized void end() {
+    released = true;
+    notifyAll();
+  }
+
+  /**
+   * Let the threads of a failed run go on without waiting for their turn.
+   */
+  synchronized void release() {
+    released = true;
+    notifyAll();
+  }
+
+  /**
+   * Choose the thread that goes on among the threads waiting at a scheduling point.
+   * Called with the monitor of the scheduler held, when there are at least two.
+   *
+   * @param waiting - the waiting threads, in the order of their thread methods
+   * @param count - the number of waiting threads
+   * @return the position in <code>waiting</code> of the thread that goes on
+   */
+  abstract int choose(Slot[] waiting, int count);
+
+  /**
+   * Called when a thread reaches a counted scheduling point, with the monitor of the scheduler held.
+   *
+   * @param s - the slot of the thread
+   */
+  void stepped(Slot s) {
+  }
+
+  /**
+   * Called when the turn passes from one thread to another, with the monitor of the scheduler held.
+   *
+   * @param previous - the index of the thread whose turn it was, or -1 at the start of the run
+   * @param next - the index of the thread whose turn it is now
+   */
+  void switched(int previous, int next) {
+  }
+
+  /**
+   * @return how to replay the last run, or null if the scheduler reports failed runs itself
+   */
+  abstract String describeRun();
+
+  /**
+   * Called by a thread method thread just before it runs its thread method:
+   * it waits until all the threads are there and it is its turn.
+   *
+   * @param index - the index of the thread method
+   */
+  synchronized void enter(int index) {
+    var s = slots[index];
+    s.thread = Thread.currentThread();
+    slot.set(s);
+    entered++;
+    pause(s, false);
+  }
+
+  /**
+   * Called by a thread method thread when its thread method has ended: the next thread takes its turn.
+   */
+  void exit() {
+    var s = slot.get();
+    if (s == null) {
+      return;
+    }
+    slot.remove();
+    s.arriving = true;
+    synchronized (this) {
+      s.done = true;
+      if (slots[s.index] == s && (current == s.index || stalled())) {
+        current = pick();
+      }
+      notifyAll();
+    }
+  }
+
+  /**
+   * A scheduling point, if the current thread is a thread method of the run.
+   *
+   * @return false if the current thread is not scheduled
+   */
+  boolean yieldPoint() {
+    var s = slot.get();
+    if (s == null) {
+      return false;
+    }
+    s.arriving = true;
+    synchronized (this) {
+      s.arriving = false;
+      pause(s, true);
+    }
+    return true;
+  }
+
+  /**
+   * Wait at a scheduling point until it is the turn of the thread, with the monitor of the scheduler held.
+   *
+   * @param s - the slot of the current thread
+   * @param counted - true for a scheduling point inside a thread method
+   */
+  void pause(Slot s, boolean counted) {
+    if (released || slots[s.index] != s) {
+      return;
+    }
+    if (counted) {
+      step++;
+      stepped(s);
+    }
+    s.paused = true;
+    if (current == s.index || stalled()) {
+      current = pick();
+    }
+    notifyAll();
+    try {
+      while (current != s.index && !released) {
+        wait(1);
+        // the thread whose turn it is may have blocked
+        if (stalled()) {
+          current = pick();
+          notifyAll();
+        }
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt(); // pass, so that the thread sees its interrupt
+    }
+    finally {
+      s.paused = false;
+    }
+  }
+
+  /**
+   * @return true if the thread whose turn it is can not go on:
+   * there is none, it has ended, or it has stayed blocked for {@link #STALL_NANOS}
+   */
+  boolean stalled() {
+    if (current < 0 || slots[current].done) {
+      return true;
+    }
+    var s = slots[current];
+    if (s.paused || s.arriving || s.thread.getState() == Thread.State.RUNNABLE) {
+      suspect = -1;
+      return false;
+    }
+    var now = System.nanoTime();
+    if (suspect != current) {
+      suspect = current;
+      suspectSince = now;
+      return false;
+    }
+    return now - suspectSince >= STALL_NANOS;
+  }
+
+  /**
+   * @return the index of the thread chosen among the threads waiting at a scheduling point,
+   * or -1 if there is none (or not all the threads have started yet)
+   */
+  int pick() {
+    if (entered < slots.length) {
+      return -1;
+    }
+    var count = 0;
+    for (var s : slots) {
+      if (s.paused) {
+        candidates[count++] = s;
+      }
+    }
+    if (count == 0) {
+      return -1;
+    }
+    suspect = -1;
+    var next = candidates[count == 1 ? 0 : choose(candidates, count)].index;
+    if (next != current) {
+      switched(current, next);
+    }
+    return next;
+  }
+
+}
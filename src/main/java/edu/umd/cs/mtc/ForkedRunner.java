@@ -0,0 +1,406 @@
+package edu.umd.cs.mtc;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.PrintStream;
+
+import java.lang.reflect.Modifier;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * This class runs a {@link TestCase} in separate (forked) JVMs on the local machine.
+ *
+ * <p>
+ * The iteration budget that would be given to {@link TestFramework#runManyTimes(TestCase, int)}
+ * is split across a number of child processes.
+ * Each child creates its own instance of the test case class,
+ * calls {@link TestFramework#runOnce(TestCase, int, int)} for its share of the iterations,
+ * and streams the outcome of every iteration back to the parent over its standard output.
+ * The parent merges the results of all the children into a single {@link Report}.
+ *
+ * <p>
+ * Use this when a test depends on process-wide state
+ * (static fields, class initialization order, JIT state)
+ * or when the iterations should not share one JVM's garbage collector and safepoints.
+ *
+ * <p>
+ * The test case class must be instantiable in the child:
+ * either a top level (or static nested) class with a no-arg constructor,
+ * or an inner class whose enclosing classes have no-arg constructors.
+ * Any state set up on the instance passed to the parent is <em>not</em> transferred.
+ *
+ * <p>
+ * The children are started with the same <code>java</code> executable and class path as the parent,
+ * and inherit all the <code>tunit.*</code> system properties of the parent.
+ * Each child can first run the test case a number of warm-up times, so that the JIT compiler
+ * has compiled its hot paths before the iterations that count; the warm-up runs are reported apart.
+ *
+ * @see TestFramework#runManyTimes(TestCase, int)
+ * @see JitMatrix
+ */
+public class ForkedRunner {
+
+  /**
+   * Prefix of the lines a child uses to report results to its parent;
+   * any other line on the pipe is copied to the standard output of the parent.
+   */
+  static final String PREFIX = "#mtc:";
+
+  /**
+   * Run multithreaded test case <code>count</code> times, spread across <code>forks</code> child JVMs,
+   * using the default or global settings for clock period and run limit.
+   *
+   * @param test - The multithreaded test case to run (only its class is used)
+   * @param forks - the number of child JVMs to launch
+   * @param count - the total number of times to run the test case
+   * @throws Throwable - if at least one run failed -- the first failure reported by the children is thrown
+   */
+  public static void runManyTimes(TestCase test, int forks, int count) throws Throwable {
+    runManyTimes(test, forks, count, -1, -1);
+  }
+
+  /**
+   * Run multithreaded test case <code>count</code> times, spread across <code>forks</code> child JVMs.
+   *
+   * @param test - The multithreaded test case to run (only its class is used)
+   * @param forks - the number of child JVMs to launch
+   * @param count - the total number of times to run the test case
+   * @param clockPeriod - The period (in ms) between checks for the clock (or -1 for default or global setting)
+   * @param runLimit - The limit to run the test in seconds (or -1 for default or global setting)
+   * @throws Throwable - if at least one run failed -- the first failure reported by the children is thrown
+   */
+  public static void runManyTimes(TestCase test, int forks, int count, int clockPeriod, int runLimit) throws Throwable {
+    var report = run(test.getClass(), forks, count, clockPeriod, runLimit, List.of());
+    System.out.println(report);
+    if (report.firstFailure != null) {
+      throw report.firstFailure;
+    }
+  }
+
+  /**
+   * Run a multithreaded test case class in forked JVMs and return the merged results.
+   *
+   * @param type - The class of the multithreaded test case to run
+   * @param forks - the number of child JVMs to launch
+   * @param count - the total number of times to run the test case
+   * @param clockPeriod - The period (in ms) between checks for the clock (or -1 for default or global setting)
+   * @param runLimit - The limit to run the test in seconds (or -1 for default or global setting)
+   * @param jvmArgs - additional arguments passed to each child JVM
+   * @return the results of all the children
+   * @throws IOException - if a child JVM can not be launched
+   * @throws InterruptedException - if interrupted while waiting for the children
+   */
+  public static Report run(Class<? extends TestCase> type, int forks, int count, int clockPeriod, int runLimit, List<String> jvmArgs)
+    throws IOException, InterruptedException
+  {
+    return run(type, forks, count, 0, clockPeriod, runLimit, jvmArgs);
+  }
+
+  /**
+   * Run a multithreaded test case class in forked JVMs, after some warm-up runs in each,
+   * and return the merged results.
+   *
+   * @param type - The class of the multithreaded test case to run
+   * @param forks - the number of child JVMs to launch
+   * @param count - the total number of times to run the test case
+   * @param warmup - the number of times each child runs the test case before the runs that count
+   * @param clockPeriod - The period (in ms) between checks for the clock (or -1 for default or global setting)
+   * @param runLimit - The limit to run the test in seconds (or -1 for default or global setting)
+   * @param jvmArgs - additional arguments passed to each child JVM
+   * @return the results of all the children
+   * @throws IOException - if a child JVM can not be launched
+   * @throws InterruptedException - if interrupted while waiting for the children
+   */
+  public static Report run(Class<? extends TestCase> type, int forks, int count, int warmup, int clockPeriod, int runLimit,
+    List<String> jvmArgs) throws IOException, InterruptedException
+  {
+    if (forks < 1) forks = 1;
+    var report = new Report(type);
+    var children = new ArrayList<Fork>();
+    for (var i = 0; i < forks; i++) {
+      var share = count / forks + (i < count % forks ? 1 : 0);
+      if (share == 0) continue;
+      children.add(new Fork(i, command(type, share, warmup, clockPeriod, runLimit, jvmArgs)));
+    }
+    for (var child : children) {
+      child.start();
+    }
+    for (var child : children) {
+      child.waitFor();
+      report.merge(child);
+    }
+    return report;
+  }
+
+  /**
+   * Build the command line for a child JVM.
+   */
+  static List<String> command(Class<?> type, int count, int warmup, int clockPeriod, int runLimit, List<String> jvmArgs) {
+    var cmd = new ArrayList<String>();
+    cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+    for (var key : System.getProperties().stringPropertyNames()) {
+      if (key.startsWith("tunit.")) {
+        cmd.add("-D" + key + "=" + System.getProperty(key));
+      }
+    }
+    cmd.addAll(jvmArgs);
+    cmd.add("-cp");
+    cmd.add(System.getProperty("java.class.path"));
+    cmd.add(ForkedRunner.class.getName());
+    cmd.add(type.getName());
+    cmd.add(Integer.toString(count));
+    cmd.add(Integer.toString(clockPeriod));
+    cmd.add(Integer.toString(runLimit));
+    cmd.add(Integer.toString(warmup));
+    return cmd;
+  }
+
+  /**
+   * A single child JVM, and the results it has reported so far.
+   */
+  static class Fork {
+    final int index;
+    final List<String> command;
+    Process process;
+    Thread reader;
+    int iterations, failures, warmups, warmupFailures, exitCode;
+    Throwable firstFailure;
+    String error;
+
+    Fork(int index, List<String> command) {
+      this.index = index;
+      this.command = command;
+    }
+
+    void start() throws IOException {
+      process = new ProcessBuilder(command)
+        .redirectError(ProcessBuilder.Redirect.INHERIT)
+        .start();
+      reader = new Thread(this::read, "Fork " + index + " reader");
+      reader.setDaemon(true);
+      reader.start();
+    }
+
+    void waitFor() throws InterruptedException {
+      exitCode = process.waitFor();
+      reader.join();
+    }
+
+    void read() {
+      try (var in = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+        for (var line = in.readLine(); line != null; line = in.readLine()) {
+          if (line.startsWith(PREFIX)) {
+            accept(line.substring(PREFIX.length()));
+          } else {
+            System.out.println("[fork " + index + "] " + line);
+          }
+        }
+      }
+      catch (IOException e) {
+        error = e.toString();
+      }
+    }
+
+    void accept(String message) {
+      var sp = message.indexOf(' ');
+      var kind = sp < 0 ? message : message.substring(0, sp);
+      var arg = sp < 0 ? "" : message.substring(sp + 1);
+      switch (kind) {
+        case "pass":
+          iterations++;
+          break;
+        case "fail":
+          iterations++;
+          failures++;
+          if (firstFailure == null) {
+            firstFailure = decode(arg);
+          }
+          break;
+        case "warmup":
+          warmups++;
+          break;
+        case "warmup-fail":
+          warmups++;
+          warmupFailures++;
+          if (firstFailure == null) {
+            firstFailure = decode(arg);
+          }
+          break;
+        case "error":
+          error = arg;
+          break;
+        default:
+          break;
+      }
+    }
+  }
+
+  /**
+   * The merged results of all the child JVMs.
+   */
+  public static class Report {
+    final Class<?> type;
+    int forks, iterations, failures, warmups, warmupFailures;
+    Throwable firstFailure;
+    final List<String> problems = new ArrayList<>();
+
+    Report(Class<?> type) {
+      this.type = type;
+    }
+
+    void merge(Fork child) {
+      forks++;
+      iterations += child.iterations;
+      failures += child.failures;
+      warmups += child.warmups;
+      warmupFailures += child.warmupFailures;
+      if (firstFailure == null) {
+        firstFailure = child.firstFailure;
+      }
+      if (child.error != null) {
+        problems.add("fork " + child.index + ": " + child.error);
+      }
+      else if (child.exitCode != 0) {
+        problems.add("fork " + child.index + ": exit code " + child.exitCode);
+      }
+      if (firstFailure == null && !problems.isEmpty()) {
+        firstFailure = new IllegalStateException("Forked run failed: " + problems.get(0));
+      }
+    }
+
+    /** @return the number of child JVMs that were launched */
+    public int getForks() { return forks; }
+
+    /** @return the number of iterations completed by all the children */
+    public int getIterations() { return iterations; }
+
+    /** @return the number of iterations that failed */
+    public int getFailures() { return failures; }
+
+    /** @return the number of warm-up runs completed by all the children */
+    public int getWarmups() { return warmups; }
+
+    /** @return the number of warm-up runs that failed */
+    public int getWarmupFailures() { return warmupFailures; }
+
+    /** @return the first failure reported (in a warm-up run or not), or null if all runs passed */
+    public Throwable getFirstFailure() { return firstFailure; }
+
+    @Override
+    public String toString() {
+      var s = new StringBuilder();
+      s.append("Forked ").append(type.getName()).append(": ")
+       .append(iterations).append(" iterations in ").append(forks).append(" JVMs, ")
+       .append(failures).append(" failures");
+      if (warmups > 0) {
+        s.append(" (after ").append(warmups).append(" warm-up runs, ").append(warmupFailures).append(" failed)");
+      }
+      for (var p : problems) {
+        s.append("\n  ").append(p);
+      }
+      return s.toString();
+    }
+  }
+
+  // -- Child side --
+
+  /**
+   * Entry point of a child JVM.
+   *
+   * @param args - test case class name, iteration count, clock period, run limit, warm-up count
+   */
+  public static void main(String[] args) {
+    // keep standard output as a private pipe to the parent;
+    // anything the test prints goes to standard error instead
+    var pipe = new PrintStream(new FileOutputStream(FileDescriptor.out), true, StandardCharsets.UTF_8);
+    System.setOut(System.err);
+    try {
+      var test = newTestCase(Class.forName(args[0]));
+      var count = Integer.parseInt(args[1]);
+      var clockPeriod = Integer.parseInt(args[2]);
+      var runLimit = Integer.parseInt(args[3]);
+      var warmup = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+      for (var i = 0; i < warmup; i++) {
+        try {
+          TestFramework.runOnce(test, clockPeriod, runLimit);
+          pipe.println(PREFIX + "warmup");
+        }
+        catch (Throwable e) {
+          pipe.println(PREFIX + "warmup-fail " + encode(e));
+        }
+      }
+      for (var i = 0; i < count; i++) {
+        try {
+          TestFramework.runOnce(test, clockPeriod, runLimit);
+          pipe.println(PREFIX + "pass");
+        }
+        catch (Throwable e) {
+          pipe.println(PREFIX + "fail " + encode(e));
+        }
+      }
+    }
+    catch (Throwable e) {
+      pipe.println(PREFIX + "error " + e);
+      pipe.flush();
+      System.exit(1);
+    }
+    pipe.flush();
+    System.exit(0); // do not wait for stray non-daemon threads of the test
+  }
+
+  /**
+   * Create an instance of a test case class,
+   * creating instances of its enclosing classes first if it is an inner class.
+   */
+  static TestCase newTestCase(Class<?> type) throws ReflectiveOperationException {
+    return (TestCase) newInstance(type);
+  }
+
+  static Object newInstance(Class<?> type) throws ReflectiveOperationException {
+    if (type.isMemberClass() && !Modifier.isStatic(type.getModifiers())) {
+      var outer = type.getDeclaringClass();
+      var ctor = type.getDeclaredConstructor(outer);
+      ctor.trySetAccessible();
+      return ctor.newInstance(newInstance(outer));
+    }
+    var ctor = type.getDeclaredConstructor();
+    ctor.trySetAccessible();
+    return ctor.newInstance();
+  }
+
+  static String encode(Throwable e) {
+    try {
+      var bytes = new ByteArrayOutputStream();
+      try (var out = new ObjectOutputStream(bytes)) {
+        out.writeObject(e);
+      }
+      return Base64.getEncoder().encodeToString(bytes.toByteArray());
+    }
+    catch (IOException notSerializable) {
+      return encode(new AssertionError(e.toString()));
+    }
+  }
+
+  static Throwable decode(String s) {
+    try (var in = new ObjectInputStream(new ByteArrayInputStream(Base64.getDecoder().decode(s)))) {
+      return (Throwable) in.readObject();
+    }
+    catch (Exception e) {
+      return new AssertionError("Undecodable failure from forked JVM: " + e);
+    }
+  }
+
+}
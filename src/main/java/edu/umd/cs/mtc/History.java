@@ -0,0 +1,389 @@
+package edu.umd.cs.mtc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.Function;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The history of the operations the thread methods of a run perform on a concurrent object,
+ * checked for linearizability against a {@link SequentialModel}.
+ *
+ * <p>
+ * Most test cases check the final state of the object in their finish method,
+ * which misses results that no sequential order of the operations could have returned.
+ * Instead, each thread method records the invocation of an operation and its response:
+ * <pre>
+ * void thread1() {
+ *   var op = history.invoke("put", "a", 1);
+ *   op.respond(map.put("a", 1));
+ * }
+ * </pre>
+ * The history is linearizable if the operations can be put in a sequential order
+ * that respects their real-time order (an operation that responded before another was invoked
+ * comes first) and in which each operation returns its result according to the model.
+ * Recording takes no lock: an operation takes its invocation and response times from a shared counter
+ * and is added to a lock-free queue.
+ *
+ * <p>
+ * Set the history of a test case with {@link TestCase#setHistory(History)}:
+ * it is cleared before each run, and checked after the finish method,
+ * so that with {@link TestFramework#runManyTimes(TestCase, int)} every run is checked.
+ * A run whose history is not linearizable fails with an {@link AssertionError}
+ * that shows the longest linearization found and the operation that could not come next.
+ *
+ * <p>
+ * The checker is the algorithm of Wing and Gong, with the improvements of Lowe:
+ * it searches for a linearization depth first, linearizing an operation only while
+ * no operation that has already responded is left out, and it remembers each
+ * (set of linearized operations, model state) it has been in, so that it never explores
+ * the same configuration twice. The model may also split the history into independent parts,
+ * which are checked one at a time (see {@link SequentialModel#partition(List)}).
+ * Histories of thousands of operations are usually checked in milliseconds.
+ * An operation without a response (because its thread method failed) is left out of the check.
+ *
+ * @see SequentialModel
+ */
+public final class History {
+
+  /**
+   * An operation of the history.
+   */
+  public static final class Operation {
+    final String name;
+    final Object[] arguments;
+    final String thread;
+    final long call;
+    volatile long response = -1;
+    volatile Object result;
+    final AtomicLong clock;
+
+    Operation(String name, Object[] arguments, String thread, AtomicLong clock) {
+      this.name = name;
+      this.arguments = arguments;
+      this.thread = thread;
+      this.clock = clock;
+      this.call = clock.getAndIncrement();
+    }
+
+    /**
+     * Record the response of the operation.
+     *
+     * @param result - the result of the operation (null for a void operation)
+     */
+    public void respond(Object result) {
+      if (response >= 0) {
+        throw new IllegalStateException("Already responded: " + this);
+      }
+      this.result = result;
+      this.response = clock.getAndIncrement();
+    }
+
+    /** @return the name of the operation */
+    public String getName() { return name; }
+
+    /** @return the arguments of the operation */
+    public Object[] getArguments() { return arguments; }
+
+    /**
+     * @param i - the index of an argument
+     * @return the argument
+     */
+    public Object getArgument(int i) { return arguments[i]; }
+
+    /** @return the result of the operation, or null if it has not responded */
+    public Object getResult() { return result; }
+
+    /** @return the name of the thread that invoked the operation */
+    public String getThread() { return thread; }
+
+    @Override
+    public String toString() {
+      var args = Arrays.deepToString(arguments);
+      return thread + ": " + name + "(" + args.substring(1, args.length() - 1) + ")"
+        + (response < 0 ? " pending" : " -> " + result);
+    }
+  }
+
+  final SequentialModel<?> model;
+  final AtomicLong clock = new AtomicLong();
+  final ConcurrentLinkedQueue<Operation> operations = new ConcurrentLinkedQueue<>();
+
+  /**
+   * @param model - the sequential specification of the object
+   */
+  public History(SequentialModel<?> model) {
+    this.model = model;
+  }
+
+  /**
+   * Record the invocation of an operation by the current thread.
+   *
+   * @param name - the name of the operation
+   * @param arguments - the arguments of the operation
+   * @return the operation, whose response is recorded with {@link Operation#respond(Object)}
+   */
+  public Operation invoke(String name, Object... arguments) {
+    var op = new Operation(name, arguments, Thread.currentThread().getName(), clock);
+    operations.add(op);
+    return op;
+  }
+
+  /**
+   * Forget all the operations recorded.
+   */
+  public void clear() {
+    operations.clear();
+  }
+
+  /**
+   * @return the operations recorded, in the order of their invocations
+   */
+  public List<Operation> getOperations() {
+    var ops = new ArrayList<>(operations);
+    ops.sort(Comparator.comparingLong(op -> op.call));
+    return ops;
+  }
+
+  /**
+   * Split operations by a key, keeping their order: a helper for {@link SequentialModel#partition(List)}.
+   *
+   * @param operations - the operations
+   * @param key - the key of an operation, such as the key of a map it reads or writes
+   * @return the operations of each key
+   */
+  public static List<List<Operation>> partitionBy(List<Operation> operations, Function<Operation, ?> key) {
+    var parts = new LinkedHashMap<Object, List<Operation>>();
+    for (var op : operations) {
+      parts.computeIfAbsent(key.apply(op), k -> new ArrayList<>()).add(op);
+    }
+    return new ArrayList<>(parts.values());
+  }
+
+  /**
+   * Check that the history is linearizable.
+   *
+   * @throws AssertionError - if it is not
+   */
+  public void assertLinearizable() {
+    var report = check();
+    if (!report.isLinearizable()) {
+      throw new AssertionError(report.toString());
+    }
+  }
+
+  /**
+   * Check whether the history is linearizable.
+   *
+   * @return the result of the check
+   */
+  public Report check() {
+    return check(model);
+  }
+
+  <S> Report check(SequentialModel<S> model) {
+    var report = new Report();
+    var ops = new ArrayList<Operation>();
+    for (var op : getOperations()) {
+      if (op.response >= 0) {
+        ops.add(op);
+      }
+    }
+    report.operations = ops.size();
+    for (var part : model.partition(ops)) {
+      report.parts++;
+      if (!new Search<>(model, part, report).run()) {
+        return report;
+      }
+    }
+    report.linearizable = true;
+    return report;
+  }
+
+  /**
+   * The invocation or the response of an operation, in a doubly linked list sorted by time.
+   */
+  static final class Entry {
+    final Operation op;
+    final int id;
+    final Entry match; // the response of an invocation, or null
+    Entry prev, next;
+
+    Entry(Operation op, int id, Entry match) {
+      this.op = op;
+      this.id = id;
+      this.match = match;
+    }
+  }
+
+  /**
+   * A configuration already explored: the operations linearized, and the state they lead to.
+   */
+  record Seen(BitSet linearized, Object state) {
+  }
+
+  /**
+   * The search for a linearization of one part of a history.
+   */
+  static final class Search<S> {
+    final SequentialModel<S> model;
+    final List<Operation> ops;
+    final Report report;
+    final Entry head = new Entry(null, -1, null);
+
+    Search(SequentialModel<S> model, List<Operation> ops, Report report) {
+      this.model = model;
+      this.ops = ops;
+      this.report = report;
+
+      // the list of invocations and responses, in the order of their times
+      var entries = new ArrayList<Entry>(2 * ops.size());
+      for (var i = 0; i < ops.size(); i++) {
+        var response = new Entry(ops.get(i), i, null);
+        entries.add(new Entry(ops.get(i), i, response));
+        entries.add(response);
+      }
+      entries.sort(Comparator.comparingLong(e -> e.match != null ? e.op.call : e.op.response));
+      var last = head;
+      for (var e : entries) {
+        last.next = e;
+        e.prev = last;
+        last = e;
+      }
+    }
+
+    /**
+     * Take an operation out of the list.
+     */
+    static void lift(Entry call) {
+      call.prev.next = call.next;
+      if (call.next != null) call.next.prev = call.prev;
+      var response = call.match;
+      response.prev.next = response.next;
+      if (response.next != null) response.next.prev = response.prev;
+    }
+
+    /**
+     * Put an operation back into the list.
+     */
+    static void unlift(Entry call) {
+      var response = call.match;
+      response.prev.next = response;
+      if (response.next != null) response.next.prev = response;
+      call.prev.next = call;
+      if (call.next != null) call.next.prev = call;
+    }
+
+    /**
+     * @return true if the operations have a linearization
+     */
+    boolean run() {
+      record Frame<T>(Entry call, T state) {
+      }
+      var stack = new ArrayDeque<Frame<S>>();
+      var seen = new HashSet<Seen>();
+      var linearized = new BitSet(ops.size());
+      var state = model.initial();
+      var entry = head.next;
+      // the report of a failure shows this part only, not a part checked before it
+      report.longest = List.of();
+      report.stuck = null;
+      while (head.next != null) {
+        if (entry.match != null) {
+          // an invocation: try to linearize the operation here
+          var next = model.step(state, entry.op);
+          if (next != null) {
+            var bits = (BitSet) linearized.clone();
+            bits.set(entry.id);
+            if (seen.add(new Seen(bits, next))) {
+              stack.push(new Frame<>(entry, state));
+              state = next;
+              linearized.set(entry.id);
+              lift(entry);
+              entry = head.next;
+              continue;
+            }
+          }
+          entry = entry.next;
+        } else {
+          // a response: its operation should have been linearized before, so undo the last choice
+          if (stack.size() >= report.longest.size()) {
+            report.longest = new ArrayList<>();
+            stack.descendingIterator().forEachRemaining(f -> report.longest.add(f.call.op));
+            report.stuck = entry.op;
+          }
+          if (stack.isEmpty()) {
+            return false;
+          }
+          var frame = stack.pop();
+          state = frame.state;
+          linearized.clear(frame.call.id);
+          unlift(frame.call);
+          entry = frame.call.next;
+        }
+        report.steps++;
+      }
+      return true;
+    }
+  }
+
+  /**
+   * The result of a linearizability check.
+   */
+  public static class Report {
+    boolean linearizable;
+    int operations, parts;
+    long steps;
+    List<Operation> longest = List.of();
+    Operation stuck;
+
+    /** @return true if the history is linearizable */
+    public boolean isLinearizable() { return linearizable; }
+
+    /** @return the number of operations checked */
+    public int getOperations() { return operations; }
+
+    /** @return the number of independent parts checked */
+    public int getParts() { return parts; }
+
+    /** @return the number of steps of the search */
+    public long getSteps() { return steps; }
+
+    /**
+     * @return if the history is not linearizable, the longest sequence of its operations
+     * that could be linearized (in the part that is not linearizable)
+     */
+    public List<Operation> getLongestLinearization() { return longest; }
+
+    /**
+     * @return if the history is not linearizable, an operation that could not be linearized
+     * after the longest linearization
+     */
+    public Operation getStuckOperation() { return stuck; }
+
+    @Override
+    public String toString() {
+      if (linearizable) {
+        return "Linearizable: " + operations + " operations in " + parts + " parts, " + steps + " steps";
+      }
+      var s = new StringBuilder();
+      s.append("Not linearizable: ").append(operations).append(" operations, ")
+        .append(steps).append(" steps");
+      s.append(String.format("%nLongest linearization:"));
+      for (var op : longest) {
+        s.append(String.format("%n  %s", op));
+      }
+      s.append(String.format("%nCan not be linearized next: %s", stuck));
+      return s.toString();
+    }
+  }
+
+}
@@ -0,0 +1,241 @@
+package edu.umd.cs.mtc;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class runs a {@link TestCase} in forked JVMs under several JIT compilation modes,
+ * and tells under which modes it fails.
+ *
+ * <p>
+ * A reordering bug may only show once the C2 compiler has compiled (and reordered) the hot path,
+ * or only in the interpreter, where the timing is very different.
+ * For each {@link Mode} the whole iteration budget is given to {@link ForkedRunner},
+ * with the JVM arguments of the mode:
+ * <ul>
+ * <li>{@link Mode#interpreter()}: <code>-Xint</code>, no compilation at all;
+ * <li>{@link Mode#c1()}: <code>-XX:TieredStopAtLevel=1</code>, the client compiler only;
+ * <li>{@link Mode#tiered()}: the default tiered compilation, up to C2;
+ * <li>{@link Mode#compiled(String...)}: <code>-Xcomp</code> for the selected methods,
+ * which are compiled at their first call, while everything else is interpreted.
+ * </ul>
+ * In the modes that compile, a number of warm-up runs in each child lets the compilers
+ * reach the hot paths before the runs that count.
+ *
+ * <p>
+ * The modes run one after the other, so that they do not compete for the processors.
+ * The results are merged into a {@link Report}, and the failure thrown by
+ * {@link #runManyTimes(TestCase, int, int)} names the modes it occurred under.
+ *
+ * @see ForkedRunner
+ */
+public class JitMatrix {
+
+  /**
+   * A JIT compilation mode: a name, and the JVM arguments that select it.
+   * Modes are equal when their names and arguments are;
+   * the results of a {@link Report} are kept by mode.
+   *
+   * @param name - the name of the mode in the reports
+   * @param jvmArgs - the JVM arguments that select it
+   */
+  public record Mode(String name, List<String> jvmArgs) {
+
+    public Mode {
+      jvmArgs = List.copyOf(jvmArgs);
+    }
+
+    /**
+     * @param name - the name of the mode in the reports
+     * @param jvmArgs - the JVM arguments that select it
+     * @return a custom mode
+     */
+    public static Mode of(String name, String... jvmArgs) {
+      return new Mode(name, List.of(jvmArgs));
+    }
+
+    /** @return the interpreter only: <code>-Xint</code> */
+    public static Mode interpreter() {
+      return of("interpreter", "-Xint");
+    }
+
+    /** @return the client compiler only: <code>-XX:TieredStopAtLevel=1</code> */
+    public static Mode c1() {
+      return of("c1", "-XX:TieredStopAtLevel=1");
+    }
+
+    /** @return the default tiered compilation, up to C2 */
+    public static Mode tiered() {
+      return of("tiered");
+    }
+
+    /**
+     * Compile the selected methods at their first call, and interpret everything else.
+     *
+     * @param methods - <code>-XX:CompileCommand</code> method patterns,
+     * like <code>com.example.Queue::*</code> (none to compile every method)
+     * @return <code>-Xcomp</code>, restricted to <code>methods</code>
+     */
+    public static Mode compiled(String... methods) {
+      var args = new ArrayList<String>();
+      args.add("-Xcomp");
+      if (methods.length > 0) {
+        args.add("-XX:CompileCommand=quiet");
+        for (var m : methods) {
+          args.add("-XX:CompileCommand=compileonly," + m);
+        }
+      }
+      return new Mode("compiled", args);
+    }
+
+    @Override
+    public String toString() {
+      return jvmArgs.isEmpty() ? name : name + " (" + String.join(" ", jvmArgs) + ")";
+    }
+  }
+
+  /**
+   * @param type - a test case class
+   * @return the interpreter, C1, tiered, and <code>-Xcomp</code> on the methods of the test case class
+   */
+  public static List<Mode> defaultModes(Class<?> type) {
+    return List.of(Mode.interpreter(), Mode.c1(), Mode.tiered(), Mode.compiled(type.getName() + "::*"));
+  }
+
+  /**
+   * Run multithreaded test case <code>count</code> times in a forked JVM under each of the default modes,
+   * after <code>warmup</code> warm-up runs,
+   * using the default or global settings for clock period and run limit.
+   *
+   * @param test - The multithreaded test case to run (only its class is used)
+   * @param count - the number of times to run the test case under each mode
+   * @param warmup - the number of warm-up runs before them
+   * @throws Throwable - if at least one run failed -- the first failure, naming the modes that failed
+   */
+  public static void runManyTimes(TestCase test, int count, int warmup) throws Throwable {
+    var report = run(test.getClass(), defaultModes(test.getClass()), 1, count, warmup, -1, -1);
+    System.out.println(report);
+    var failure = report.getFirstFailure();
+    if (failure != null) {
+      failure.addSuppressed(new IllegalStateException("Failed under " + report.describeFailingModes()));
+      throw failure;
+    }
+  }
+
+  /**
+   * Run a multithreaded test case class in forked JVMs under each of the given modes,
+   * and return the results of each mode.
+   *
+   * @param type - The class of the multithreaded test case to run
+   * @param modes - the JIT modes to run it under
+   * @param forks - the number of child JVMs to launch for each mode
+   * @param count - the number of times to run the test case under each mode
+   * @param warmup - the number of warm-up runs in each child
+   * @param clockPeriod - The period (in ms) between checks for the clock (or -1 for default or global setting)
+   * @param runLimit - The limit to run the test in seconds (or -1 for default or global setting)
+   * @return the results of each mode
+   * @throws IOException - if a child JVM can not be launched
+   * @throws InterruptedException - if interrupted while waiting for the children
+   */
+  public static Report run(Class<? extends TestCase> type, List<Mode> modes, int forks, int count, int warmup,
+    int clockPeriod, int runLimit) throws IOException, InterruptedException
+  {
+    var report = new Report(type);
+    for (var mode : modes) {
+      report.results.put(mode, ForkedRunner.run(type, forks, count, warmup, clockPeriod, runLimit, mode.jvmArgs));
+    }
+    return report;
+  }
+
+  /**
+   * The results of a test case class under each mode.
+   */
+  public static class Report {
+    final Class<?> type;
+    final Map<Mode, ForkedRunner.Report> results = new LinkedHashMap<>();
+
+    Report(Class<?> type) {
+      this.type = type;
+    }
+
+    /** @return the modes, in the order they ran */
+    public List<Mode> getModes() { return new ArrayList<>(results.keySet()); }
+
+    /**
+     * @param mode - one of the modes
+     * @return the results of the mode
+     */
+    public ForkedRunner.Report getReport(Mode mode) { return results.get(mode); }
+
+    /** @return the modes in which some run (warm-up or not) failed */
+    public List<Mode> getFailingModes() {
+      var failing = new ArrayList<Mode>();
+      for (var e : results.entrySet()) {
+        if (e.getValue().getFirstFailure() != null) {
+          failing.add(e.getKey());
+        }
+      }
+      return failing;
+    }
+
+    /** @return the number of iterations completed under all the modes */
+    public int getIterations() {
+      return results.values().stream().mapToInt(ForkedRunner.Report::getIterations).sum();
+    }
+
+    /** @return the number of iterations that failed under all the modes */
+    public int getFailures() {
+      return results.values().stream().mapToInt(ForkedRunner.Report::getFailures).sum();
+    }
+
+    /** @return the first failure of the first failing mode, or null if all runs passed */
+    public Throwable getFirstFailure() {
+      var failing = getFailingModes();
+      return failing.isEmpty() ? null : results.get(failing.get(0)).getFirstFailure();
+    }
+
+    /**
+     * @return the failing modes, with the failures of each
+     */
+    String describeFailingModes() {
+      var s = new StringBuilder();
+      for (var m : getFailingModes()) {
+        var r = results.get(m);
+        s.append(s.length() == 0 ? "" : ", ").append(m.name).append(": ")
+         .append(r.getFailures()).append(" of ").append(r.getIterations()).append(" iterations");
+        if (r.getWarmupFailures() > 0) {
+          s.append(" and ").append(r.getWarmupFailures()).append(" of ").append(r.getWarmups()).append(" warm-up runs");
+        }
+      }
+      return s.toString();
+    }
+
+    @Override
+    public String toString() {
+      var s = new StringBuilder();
+      s.append("JIT matrix of ").append(type.getName()).append(": ")
+       .append(getIterations()).append(" iterations, ").append(getFailures()).append(" failures");
+      for (var e : results.entrySet()) {
+        var r = e.getValue();
+        s.append("\n  ").append(e.getKey()).append(": ")
+         .append(r.iterations).append(" iterations in ").append(r.forks).append(" JVMs, ")
+         .append(r.failures).append(" failures");
+        if (r.warmups > 0) {
+          s.append(" (after ").append(r.warmups).append(" warm-up runs, ").append(r.warmupFailures).append(" failed)");
+        }
+        for (var p : r.problems) {
+          s.append("\n    ").append(p);
+        }
+      }
+      if (!getFailingModes().isEmpty()) {
+        s.append("\n  Fails under ").append(describeFailingModes());
+      }
+      return s.toString();
+    }
+  }
+
+}
@@ -0,0 +1,187 @@
+package edu.umd.cs.mtc;
+
+import java.io.IOException;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * This class writes the source of a JMH benchmark for a {@link TestCase}.
+ *
+ * <p>
+ * The benchmark mirrors the test case, so that a concurrency test and
+ * a microbenchmark share one source of truth:
+ * <ul>
+ * <li>the benchmark class is a <code>@State(Scope.Group)</code>
+ * holding an instance of the test case (with the clock turned off,
+ * see {@link Benchmark#withoutClock(TestCase)}),
+ * created and initialized with the <code>setUp</code> method before each iteration,
+ * <li>each thread method becomes a <code>@Benchmark</code> method of the same name
+ * in one <code>@Group</code>, with <code>@GroupThreads(1)</code>,
+ * so JMH runs the thread methods concurrently, as {@link TestFramework} does.
+ * </ul>
+ * The thread methods and the <code>setUp</code> method are found by {@link TestFramework#fixture(Class)}.
+ * As in {@link Benchmark}, the <code>tearDown</code> method is not called.
+ *
+ * <p>
+ * The benchmark is written in the package of the test case,
+ * so it can call package-private thread methods.
+ * The test case class must be instantiable as described in {@link ForkedRunner}.
+ *
+ * <p>
+ * Run with <code>java edu.umd.cs.mtc.JmhGenerator [-d directory] class...</code>;
+ * without a directory the sources are written to standard out.
+ */
+public class JmhGenerator {
+
+  /**
+   * Generate the source of the JMH benchmark for a test case class.
+   *
+   * @param type - the test case class
+   * @return the Java source of the benchmark
+   * @throws IllegalArgumentException - if the test case class has no thread methods, or a method can not be called
+   */
+  public static String generate(Class<? extends TestCase> type) {
+    var fixture = TestFramework.fixture(type);
+    if (fixture.run == null) {
+      throw new IllegalArgumentException(type.getName() + " has no thread methods");
+    }
+    var ids = fixture.id.clone();
+    Arrays.sort(ids);
+    var pkg = type.getPackageName();
+    var name = className(type);
+    var testType = sourceName(type);
+
+    var s = new StringBuilder();
+    if (!pkg.isEmpty()) {
+      s.append("package ").append(pkg).append(";\n\n");
+    }
+    s.append("import org.openjdk.jmh.annotations.Benchmark;\n");
+    s.append("import org.openjdk.jmh.annotations.Group;\n");
+    s.append("import org.openjdk.jmh.annotations.GroupThreads;\n");
+    s.append("import org.openjdk.jmh.annotations.Level;\n");
+    s.append("import org.openjdk.jmh.annotations.Scope;\n");
+    s.append("import org.openjdk.jmh.annotations.Setup;\n");
+    s.append("import org.openjdk.jmh.annotations.State;\n\n");
+    s.append("/**\n");
+    s.append(" * JMH benchmark of the thread methods of {@link ").append(testType).append("}.\n");
+    s.append(" * Generated by {@link edu.umd.cs.mtc.JmhGenerator}; do not edit.\n");
+    s.append(" */\n");
+    s.append("@State(Scope.Group)\n");
+    s.append("public class ").append(name).append(" {\n\n");
+    s.append("  ").append(testType).append(" test;\n\n");
+    s.append("  @Setup(Level.Iteration)\n");
+    s.append("  public void setUp() throws Throwable {\n");
+    s.append("    test = edu.umd.cs.mtc.Benchmark.withoutClock(").append(newExpression(type)).append(");\n");
+    if (fixture.setUp != null) {
+      checkCallable(type, "setUp");
+      s.append("    test.setUp();\n");
+    }
+    s.append("  }\n\n");
+    s.append("  /**\n");
+    s.append("   * Makes the test case the test case of each benchmark thread.\n");
+    s.append("   */\n");
+    s.append("  @State(Scope.Thread)\n");
+    s.append("  public static class Attached {\n");
+    s.append("    @Setup(Level.Iteration)\n");
+    s.append("    public void enter(").append(name).append(" group) {\n");
+    s.append("      edu.umd.cs.mtc.Benchmark.enter(group.test);\n");
+    s.append("    }\n");
+    s.append("  }\n");
+    for (var id : ids) {
+      var async = CompletionStage.class.isAssignableFrom(checkCallable(type, id).getReturnType());
+      s.append("\n");
+      s.append("  @Benchmark\n");
+      s.append("  @Group(\"").append(type.getSimpleName()).append("\")\n");
+      s.append("  @GroupThreads(1)\n");
+      s.append("  public void ").append(id).append("(Attached attached) throws Throwable {\n");
+      if (async) {
+        s.append("    test.").append(id).append("().toCompletableFuture().join();\n");
+      } else {
+        s.append("    test.").append(id).append("();\n");
+      }
+      s.append("  }\n");
+    }
+    s.append("\n}\n");
+    return s.toString();
+  }
+
+  /**
+   * @return the name of the benchmark class for a test case class
+   */
+  static String className(Class<?> type) {
+    return sourceName(type).replace('.', '_') + "Jmh";
+  }
+
+  /**
+   * @return the name of a class in the source of its package (e.g. <code>Outer.Inner</code>)
+   */
+  static String sourceName(Class<?> type) {
+    if (type.isMemberClass()) {
+      return sourceName(type.getDeclaringClass()) + "." + type.getSimpleName();
+    }
+    return type.getSimpleName();
+  }
+
+  /**
+   * @return an expression creating an instance of a class,
+   * creating instances of its enclosing classes first if it is an inner class
+   */
+  static String newExpression(Class<?> type) {
+    if (type.isMemberClass() && !Modifier.isStatic(type.getModifiers())) {
+      return newExpression(type.getDeclaringClass()) + ".new " + type.getSimpleName() + "()";
+    }
+    return "new " + sourceName(type) + "()";
+  }
+
+  /**
+   * Check that the benchmark, in the same package, can call a method of the test case.
+   */
+  static Method checkCallable(Class<?> type, String method) {
+    try {
+      var m = type.getDeclaredMethod(method);
+      if (Modifier.isPrivate(m.getModifiers())) {
+        throw new IllegalArgumentException(type.getName() + "." + method + " is private");
+      }
+      return m;
+    }
+    catch (NoSuchMethodException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  /**
+   * Generate benchmarks from the command line.
+   *
+   * @param args - optionally <code>-d</code> and an output directory, then the names of test case classes
+   * @throws ClassNotFoundException - if a class can not be found
+   * @throws IOException - if a source can not be written
+   */
+  public static void main(String[] args) throws ClassNotFoundException, IOException {
+    Path dir = null;
+    var i = 0;
+    if (args.length > 1 && args[0].equals("-d")) {
+      dir = Path.of(args[1]);
+      i = 2;
+    }
+    for (; i < args.length; i++) {
+      var type = Class.forName(args[i]).asSubclass(TestCase.class);
+      var source = generate(type);
+      if (dir == null) {
+        System.out.println(source);
+        continue;
+      }
+      var file = dir.resolve(type.getPackageName().replace('.', '/')).resolve(className(type) + ".java");
+      Files.createDirectories(file.getParent());
+      Files.writeString(file, source);
+      System.out.println("Wrote " + file);
+    }
+  }
+
+}
@@ -0,0 +1,429 @@
+package edu.umd.cs.mtc;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * The order in which the threads of a {@link TestCase} acquire locks, over all its runs,
+ * checked for cycles: potential deadlocks, found whether or not a run actually deadlocked.
+ *
+ * <p>
+ * The clock thread only reports a deadlock that happens. But if thread1 ever takes lock A
+ * and then lock B while holding A, and thread2 (in the same run or in another one)
+ * takes B and then A, some schedule deadlocks, however rarely the runs hit it.
+ * The graph has an edge from A to B when a thread acquires B while holding A;
+ * a cycle of edges is a potential deadlock. An edge remembers the threads that took it,
+ * and the stack where the first of them acquired the second lock.
+ * A cycle whose edges were all taken by the same thread (in one run or from one run to the next)
+ * cannot deadlock, since a thread method never runs concurrently with itself: a cycle is only
+ * reported once at least two threads have taken its edges.
+ *
+ * <p>
+ * The acquisitions and releases are recorded:
+ * <ul>
+ * <li>for the locks wrapped by {@link #wrap(Lock, String)}, in any thread;
+ * <li>with the {@link YieldAgent}, for the synchronized blocks and methods of the instrumented classes,
+ * and their calls to <code>lock()</code>, <code>lockInterruptibly()</code>, <code>tryLock()</code>
+ * and <code>unlock()</code>, in the thread methods.
+ * </ul>
+ * Timed <code>tryLock</code> calls and <code>StampedLock</code> are not recorded,
+ * and a read lock counts as an exclusive lock.
+ *
+ * <p>
+ * Set the graph of a test case with {@link TestCase#setLockOrder(LockOrderGraph)}
+ * (or -Dtunit.lockOrder=true): it is kept over all the runs of the test case,
+ * and a run that adds a cycle to it fails with an {@link AssertionError} describing the cycle.
+ * Taking two locks in an order the graph already has for the thread costs a map and a set lookup;
+ * only a new edge costs a stack trace and a search for a cycle (and a new thread on an edge, a search).
+ */
+public final class LockOrderGraph {
+
+  /**
+   * System property to check the lock order of every test case.
+   */
+  public static final String KEY = "tunit.lockOrder";
+
+  /**
+   * @return a new graph if -Dtunit.lockOrder=true, or null
+   */
+  static LockOrderGraph fromProperties() {
+    return Boolean.getBoolean(KEY) ? new LockOrderGraph() : null;
+  }
+
+  /**
+   * A lock, compared by identity.
+   */
+  record Id(Object lock) {
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Id id && id.lock == lock;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(lock);
+    }
+  }
+
+  /**
+   * A lock of the graph, and the edges to the locks acquired while holding it.
+   */
+  static final class Node {
+    final String name;
+    final ConcurrentHashMap<Node, Edge> out = new ConcurrentHashMap<>();
+
+    Node(String name) {
+      this.name = name;
+    }
+  }
+
+  /**
+   * A lock acquired while holding another.
+   */
+  public static final class Edge {
+    final Node from, to;
+    final String thread;
+    final StackTraceElement[] stack;
+
+    /** The names of the threads that acquired the locks in this order */
+    final Set<String> threads = ConcurrentHashMap.newKeySet();
+
+    Edge(Node from, Node to, String thread, StackTraceElement[] stack) {
+      this.from = from;
+      this.to = to;
+      this.thread = thread;
+      this.stack = stack;
+      threads.add(thread);
+    }
+
+    /** @return the name of the lock held */
+    public String getHeld() { return from.name; }
+
+    /** @return the name of the lock acquired */
+    public String getAcquired() { return to.name; }
+
+    /** @return the name of the first thread that acquired the locks in this order */
+    public String getThread() { return thread; }
+
+    /** @return the names of all the threads that acquired the locks in this order */
+    public Set<String> getThreads() { return Set.copyOf(threads); }
+
+    /** @return where that thread acquired the second lock */
+    public StackTraceElement[] getStack() { return stack.clone(); }
+
+    @Override
+    public String toString() {
+      var s = new StringBuilder();
+      s.append(thread).append(" acquires ").append(to.name).append(" while holding ").append(from.name);
+      if (threads.size() > 1) {
+        var others = new ArrayList<>(threads);
+        others.remove(thread);
+        s.append(" (so does ").append(String.join(", ", others)).append(")");
+      }
+      for (var e : stack) {
+        s.append(String.format("%n      at %s", e));
+      }
+      return s.toString();
+    }
+  }
+
+  /**
+   * A cycle of the graph: a potential deadlock.
+   */
+  public static final class Cycle {
+    final List<Edge> edges;
+
+    Cycle(List<Edge> edges) {
+      this.edges = edges;
+    }
+
+    /** @return the edges of the cycle, each acquiring the lock held by the next */
+    public List<Edge> getEdges() { return edges; }
+
+    @Override
+    public String toString() {
+      var s = new StringBuilder("Lock-order cycle");
+      for (var e : edges) {
+        s.append(" ").append(e.from.name).append(" ->");
+      }
+      s.append(" ").append(edges.get(0).from.name);
+      for (var e : edges) {
+        s.append(String.format("%n  %s", e));
+      }
+      return s.toString();
+    }
+  }
+
+  final ConcurrentHashMap<Id, Node> nodes = new ConcurrentHashMap<>();
+  final ConcurrentHashMap<Id, String> names = new ConcurrentHashMap<>();
+
+  /** The locks each thread holds, in the order it acquired them (with repeats for reentry) */
+  final ThreadLocal<List<Node>> held = ThreadLocal.withInitial(ArrayList::new);
+
+  final List<Cycle> cycles = new ArrayList<>();
+
+  /** The number of cycles already reported by {@link #check()} */
+  int reported;
+
+  int edges;
+
+  /**
+   * Name a lock (or the object of a synchronized block) in the reports.
+   * Other locks are named after their class and identity hash code.
+   *
+   * @param lock - the lock
+   * @param name - its name
+   */
+  public void name(Object lock, String name) {
+    names.put(new Id(lock), name);
+  }
+
+  /**
+   * Wrap a lock so that its acquisitions and releases are recorded in this graph.
+   *
+   * @param lock - the lock
+   * @param name - its name in the reports
+   * @return a lock that records and delegates to <code>lock</code>
+   */
+  public Lock wrap(Lock lock, String name) {
+    name(lock, name);
+    return new Recorded(lock);
+  }
+
+  Node node(Object lock) {
+    return nodes.computeIfAbsent(new Id(lock), id -> new Node(names.getOrDefault(id,
+      lock.getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(lock)))));
+  }
+
+  /**
+   * Record that the current thread has acquired a lock.
+   *
+   * @param lock - the lock
+   */
+  void acquired(Object lock) {
+    var n = node(lock);
+    var held = this.held.get();
+    if (!held.isEmpty() && !held.contains(n)) {
+      var thread = Thread.currentThread().getName();
+      for (var h : held) {
+        var e = h.out.get(n);
+        if (e == null || !e.threads.contains(thread)) {
+          addEdge(h, n, thread);
+        }
+      }
+    }
+    held.add(n);
+  }
+
+  /**
+   * Record that the current thread has released a lock.
+   *
+   * @param lock - the lock
+   */
+  void released(Object lock) {
+    var held = this.held.get();
+    var n = nodes.get(new Id(lock));
+    var i = held.lastIndexOf(n);
+    if (i >= 0) {
+      held.remove(i);
+    }
+  }
+
+  /**
+   * Add an edge (or a thread to an edge), and the cycle it closes, if any.
+   */
+  synchronized void addEdge(Node from, Node to, String thread) {
+    var edge = from.out.get(to);
+    if (edge == null) {
+      edge = new Edge(from, to, thread, stack());
+      from.out.put(to, edge);
+      edges++;
+    }
+    else if (!edge.threads.add(thread) || reported(edge)) {
+      return;
+    }
+    var path = new ArrayList<Edge>();
+    path.add(edge);
+    if (path(to, from, path, new HashSet<>())) {
+      cycles.add(new Cycle(path));
+    }
+  }
+
+  /**
+   * @return true if a cycle found so far has the edge
+   */
+  boolean reported(Edge edge) {
+    for (var c : cycles) {
+      if (c.edges.contains(edge)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Find a path of edges, depth first, that closes a cycle taken by at least two threads.
+   *
+   * @return true if there is a path from <code>from</code> to <code>to</code> that,
+   * with the edges already in <code>path</code>, was taken by two threads or more;
+   * the path is then added to <code>path</code>
+   */
+  static boolean path(Node from, Node to, List<Edge> path, Set<Node> visited) {
+    if (!visited.add(from)) {
+      return false;
+    }
+    for (var e : from.out.values()) {
+      path.add(e);
+      if (e.to == to ? byTwoThreads(path) : path(e.to, to, path, visited)) {
+        return true;
+      }
+      path.remove(path.size() - 1);
+    }
+    return false;
+  }
+
+  /**
+   * @return true if the edges were taken by at least two distinct threads
+   */
+  static boolean byTwoThreads(List<Edge> edges) {
+    String one = null;
+    for (var e : edges) {
+      for (var t : e.threads) {
+        if (one == null) {
+          one = t;
+        } else if (!one.equals(t)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the stack of the current thread, from the caller of the framework
+   * to the start of its thread method (or of the thread)
+   */
+  static StackTraceElement[] stack() {
+    var stack = new ArrayList<StackTraceElement>();
+    for (var e : new Throwable().getStackTrace()) {
+      var framework = e.getClassName().startsWith("edu.umd.cs.mtc.");
+      if (stack.isEmpty() && framework) {
+        continue; // the hooks and the graph
+      }
+      if (framework || e.getClassName().startsWith("jdk.internal.reflect.")
+        || e.getClassName().startsWith("java.lang.reflect.")) {
+        break; // the framework calling the thread method
+      }
+      stack.add(e);
+    }
+    return stack.toArray(new StackTraceElement[stack.size()]);
+  }
+
+  /**
+   * @return the cycles found so far
+   */
+  public synchronized List<Cycle> getCycles() {
+    return new ArrayList<>(cycles);
+  }
+
+  /**
+   * @return the number of locks in the graph
+   */
+  public int getLocks() {
+    return nodes.size();
+  }
+
+  /**
+   * @return the number of edges in the graph
+   */
+  public synchronized int getEdges() {
+    return edges;
+  }
+
+  /**
+   * Report the cycles found since the last check.
+   *
+   * @throws AssertionError - if there are any
+   */
+  public synchronized void check() {
+    if (reported == cycles.size()) {
+      return;
+    }
+    var s = new StringBuilder("Potential deadlock");
+    for (var c : cycles.subList(reported, cycles.size())) {
+      s.append(String.format("%n%s", c));
+    }
+    reported = cycles.size();
+    throw new AssertionError(s.toString());
+  }
+
+  /**
+   * Forget all the locks, edges and cycles.
+   */
+  public synchronized void reset() {
+    nodes.clear();
+    cycles.clear();
+    reported = 0;
+    edges = 0;
+  }
+
+  /**
+   * A lock that records its acquisitions and releases in the graph.
+   */
+  final class Recorded implements Lock {
+    final Lock lock;
+
+    Recorded(Lock lock) {
+      this.lock = lock;
+    }
+
+    @Override
+    public void lock() {
+      lock.lock();
+      acquired(lock);
+    }
+
+    @Override
+    public void lockInterruptibly() throws InterruptedException {
+      lock.lockInterruptibly();
+      acquired(lock);
+    }
+
+    @Override
+    public boolean tryLock() {
+      if (lock.tryLock()) {
+        acquired(lock);
+        return true;
+      }
+      return false;
+    }
+
+    @Override
+    public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+      if (lock.tryLock(time, unit)) {
+        acquired(lock);
+        return true;
+      }
+      return false;
+    }
+
+    @Override
+    public void unlock() {
+      released(lock);
+      lock.unlock();
+    }
+
+    @Override
+    public Condition newCondition() {
+      return lock.newCondition();
+    }
+  }
+
+}
@@ -0,0 +1,128 @@
+package edu.umd.cs.mtc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Counts the outcomes of the runs of an {@link OutcomeTestCase}.
+ *
+ * <p>
+ * An outcome is a tuple of up to four longs. The histogram is an open-addressing hash table
+ * over flat arrays, so counting an outcome that was seen before allocates nothing;
+ * the table only grows when a new outcome appears, which happens a handful of times per test.
+ * Only one thread may add to a histogram.
+ */
+final class OutcomeHistogram {
+
+  final int arity;
+
+  /** The outcomes, <code>arity</code> longs per slot */
+  long[] keys;
+
+  /** The count of the outcome in each slot, 0 for an empty slot */
+  long[] counts;
+
+  int size;
+
+  OutcomeHistogram(int arity) {
+    this.arity = arity;
+    this.keys = new long[16 * arity];
+    this.counts = new long[16];
+  }
+
+  /**
+   * Count one occurrence of the outcome held by a result.
+   */
+  void add(OutcomeTestCase.Result result) {
+    add(result.r1, result.r2, result.r3, result.r4, 1);
+  }
+
+  void add(long r1, long r2, long r3, long r4, long n) {
+    var mask = counts.length - 1;
+    for (var slot = hash(r1, r2, r3, r4) & mask; ; slot = (slot + 1) & mask) {
+      if (counts[slot] == 0) {
+        if (2 * (size + 1) > counts.length) {
+          grow();
+          add(r1, r2, r3, r4, n);
+          return;
+        }
+        var k = slot * arity;
+        keys[k] = r1;
+        if (arity > 1) keys[k + 1] = r2;
+        if (arity > 2) keys[k + 2] = r3;
+        if (arity > 3) keys[k + 3] = r4;
+        counts[slot] = n;
+        size++;
+        return;
+      }
+      if (matches(slot, r1, r2, r3, r4)) {
+        counts[slot] += n;
+        return;
+      }
+    }
+  }
+
+  boolean matches(int slot, long r1, long r2, long r3, long r4) {
+    var k = slot * arity;
+    return keys[k] == r1
+      && (arity < 2 || keys[k + 1] == r2)
+      && (arity < 3 || keys[k + 2] == r3)
+      && (arity < 4 || keys[k + 3] == r4);
+  }
+
+  int hash(long r1, long r2, long r3, long r4) {
+    var h = r1;
+    if (arity > 1) h = h * 0x9E3779B97F4A7C15L + r2;
+    if (arity > 2) h = h * 0x9E3779B97F4A7C15L + r3;
+    if (arity > 3) h = h * 0x9E3779B97F4A7C15L + r4;
+    h *= 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  void grow() {
+    var oldKeys = keys;
+    var oldCounts = counts;
+    keys = new long[2 * oldKeys.length];
+    counts = new long[2 * oldCounts.length];
+    size = 0;
+    for (var slot = 0; slot < oldCounts.length; slot++) {
+      if (oldCounts[slot] == 0) continue;
+      var k = slot * arity;
+      add(oldKeys[k],
+        arity > 1 ? oldKeys[k + 1] : 0,
+        arity > 2 ? oldKeys[k + 2] : 0,
+        arity > 3 ? oldKeys[k + 3] : 0,
+        oldCounts[slot]);
+    }
+  }
+
+  /**
+   * Add all the counts of another histogram to this one.
+   */
+  void addAll(OutcomeHistogram other) {
+    for (var slot = 0; slot < other.counts.length; slot++) {
+      if (other.counts[slot] == 0) continue;
+      var k = slot * arity;
+      add(other.keys[k],
+        arity > 1 ? other.keys[k + 1] : 0,
+        arity > 2 ? other.keys[k + 2] : 0,
+        arity > 3 ? other.keys[k + 3] : 0,
+        other.counts[slot]);
+    }
+  }
+
+  /**
+   * @return the outcomes seen (each an array of <code>arity</code> values) and their counts
+   */
+  List<long[]> outcomes() {
+    var list = new ArrayList<long[]>();
+    for (var slot = 0; slot < counts.length; slot++) {
+      if (counts[slot] == 0) continue;
+      var entry = Arrays.copyOfRange(keys, slot * arity, slot * arity + arity + 1);
+      entry[arity] = counts[slot];
+      list.add(entry);
+    }
+    return list;
+  }
+}
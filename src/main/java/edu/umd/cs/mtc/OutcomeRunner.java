@@ -0,0 +1,319 @@
+package edu.umd.cs.mtc;
+
+import java.lang.invoke.MethodHandle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class runs an {@link OutcomeTestCase} a large number of times
+ * and builds a histogram of the outcomes, in the style of jcstress.
+ *
+ * <p>
+ * {@link TestFramework#runManyTimes(TestCase, int)} starts new threads
+ * and a clock thread for every run, which limits it to thousands of runs.
+ * Weak memory effects may show up once in millions of runs,
+ * so this runner is built for throughput:
+ * <ul>
+ * <li>each thread method runs on a worker thread that is started once and runs every iteration,
+ * <li>the workers and the thread running the test (which runs the
+ * initialize and finish methods) hand over each iteration through spin barriers,
+ * <li>the outcome of each run is counted in an allocation-free histogram.
+ * </ul>
+ * There is no clock: as in a {@link Benchmark}, waiting for a tick returns immediately.
+ * An iteration that has not ended after the run limit (-Dtunit.runLimit) is stuck:
+ * the workers still running it are interrupted and given the shutdown limit
+ * (-Dtunit.shutdownLimit) to end, and the run fails with their stacks.
+ *
+ * @see OutcomeTestCase
+ */
+public class OutcomeRunner {
+
+  /**
+   * Run a test case and fail if a forbidden (or undeclared) outcome occurred.
+   *
+   * @param test - the test case
+   * @param iterations - the number of runs
+   * @return the outcomes of the runs
+   * @throws AssertionError - if a forbidden outcome occurred, with the histogram of the outcomes
+   * @throws Throwable - the first exception thrown by the test case
+   */
+  public static Report check(OutcomeTestCase test, long iterations) throws Throwable {
+    var report = run(test, iterations);
+    if (report.getForbidden() > 0) {
+      throw new AssertionError("Forbidden outcomes observed\n" + report);
+    }
+    return report;
+  }
+
+  /**
+   * Run a test case and count its outcomes.
+   *
+   * @param test - the test case
+   * @param iterations - the number of runs
+   * @return the outcomes of the runs
+   * @throws IllegalStateException - if an iteration got stuck, with the stacks of its workers
+   * @throws Throwable - the first exception thrown by the test case
+   */
+  public static Report run(OutcomeTestCase test, long iterations) throws Throwable {
+    var fixture = TestFramework.proxy.get(test.getClass());
+    if (fixture.run == null) {
+      throw new IllegalArgumentException(test.getClass().getName() + " has no thread methods");
+    }
+    var histogram = new OutcomeHistogram(test.arity);
+    var workers = new Workers(test, fixture);
+    test.benchmarking = true;
+    try {
+      workers.start();
+      for (var i = 1L; i <= iterations; i++) {
+        test.result.clear();
+        if (fixture.setUp != null) {
+          fixture.setUp.invoke(test); // test.initialize()
+        }
+        workers.runIteration(i);
+        if (fixture.tearDown != null) {
+          fixture.tearDown.invoke(test); // test.finish()
+        }
+        histogram.add(test.result);
+      }
+    }
+    finally {
+      workers.stop();
+      test.benchmarking = false;
+    }
+    return new Report(test, histogram);
+  }
+
+  /**
+   * The worker threads, one per thread method, that run every iteration.
+   */
+  static class Workers {
+    final OutcomeTestCase test;
+    final TestFramework.Fixture fixture;
+    final Thread[] threads;
+
+    /** The iteration the workers may run; -1 tells them to stop */
+    final AtomicLong go = new AtomicLong();
+
+    /** The number of thread method calls that have ended, over all iterations */
+    final AtomicLong done = new AtomicLong();
+
+    /** The last iteration each worker has run */
+    final AtomicLongArray finished;
+
+    volatile Throwable error;
+
+    Workers(OutcomeTestCase test, TestFramework.Fixture fixture) {
+      this.test = test;
+      this.fixture = fixture;
+      this.threads = new Thread[fixture.run.length];
+      this.finished = new AtomicLongArray(threads.length);
+    }
+
+    void start() {
+      for (var i = 0; i < threads.length; i++) {
+        var method = fixture.run[i];
+        var k = i;
+        threads[i] = new Thread(() -> work(method, k), fixture.id[i].substring(6) + " worker");
+        threads[i].setDaemon(true);
+        threads[i].start();
+      }
+    }
+
+    void work(MethodHandle method, int k) {
+      test.hello();
+      try {
+        for (var i = 1L; ; i++) {
+          for (var spins = 1; go.get() < i; spins++) {
+            if (go.get() < 0) return;
+            spin(spins);
+          }
+          try {
+            Object result = method.invoke(test);
+            if (result instanceof CompletionStage<?> stage) {
+              TestFramework.awaitStage(stage);
+            }
+          }
+          catch (Throwable e) {
+            if (error == null) error = e;
+          }
+          finished.set(k, i);
+          done.incrementAndGet();
+        }
+      }
+      finally {
+        test.goodbye();
+      }
+    }
+
+    /**
+     * Release the workers for an iteration, and wait until all of them have run it,
+     * for the run limit at most.
+     */
+    void runIteration(long i) throws Throwable {
+      var runLimit = Math.max(0, Integer.getInteger(TestFramework.RUNLIMIT_KEY, TestFramework.DEFAULT_RUNLIMIT));
+      var start = System.nanoTime();
+      go.set(i);
+      var expected = i * threads.length;
+      for (var spins = 1; done.get() < expected; spins++) {
+        spin(spins);
+        if ((spins & 0xFFF) == 0 && System.nanoTime() - start > TimeUnit.SECONDS.toNanos(runLimit)) {
+          throw stuck(i);
+        }
+      }
+      if (error != null) {
+        throw error;
+      }
+    }
+
+    /**
+     * Interrupt the workers still running a stuck iteration, and give them the shutdown limit to end.
+     * As with a failed run, the workers that are still alive are quarantined.
+     *
+     * @return the failure of the iteration, with the stacks of its workers
+     */
+    IllegalStateException stuck(long i) throws InterruptedException {
+      var report = new StringBuilder("Stuck at iteration " + i);
+      var running = new ArrayList<Thread>();
+      for (var k = 0; k < threads.length; k++) {
+        var t = threads[k];
+        if (t.isAlive() && finished.get(k) < i) {
+          running.add(t);
+          report.append(String.format("%n%s (%s)", t.getName(), t.getState()));
+          for (var st : t.getStackTrace()) {
+            report.append(String.format("%n    at %s", st));
+          }
+        }
+      }
+      for (var t : running) {
+        t.interrupt();
+      }
+      var shutdownLimit = Math.max(0, Integer.getInteger(TestFramework.SHUTDOWNLIMIT_KEY, TestFramework.DEFAULT_SHUTDOWNLIMIT));
+      var deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(shutdownLimit);
+      for (var k = 0; k < threads.length; k++) {
+        // a worker that ends the iteration waits for the next one, so do not join it
+        for (var remaining = deadline - System.nanoTime(); remaining > 0 && threads[k].isAlive() && finished.get(k) < i;
+             remaining = deadline - System.nanoTime()) {
+          threads[k].join(Math.max(1, Math.min(10, TimeUnit.NANOSECONDS.toMillis(remaining))));
+        }
+      }
+      for (var k = 0; k < threads.length; k++) {
+        var t = threads[k];
+        if (t.isAlive() && finished.get(k) < i) {
+          t.setPriority(Thread.MIN_PRIORITY);
+          synchronized (TestFramework.quarantined) {
+            TestFramework.quarantined.add(t);
+          }
+          report.append(String.format("%nQuarantined %s, still running %d ms after it was interrupted", t.getName(), shutdownLimit));
+        }
+      }
+      return new IllegalStateException(report.toString());
+    }
+
+    void stop() throws InterruptedException {
+      go.set(-1);
+      for (var t : threads) {
+        if (t != null) t.join(1000);
+      }
+    }
+
+    /**
+     * Busy-spin, yielding now and then in case the thread being waited for is not running.
+     */
+    static void spin(int spins) {
+      if ((spins & 0x3F) == 0) {
+        Thread.yield();
+      } else {
+        Thread.onSpinWait();
+      }
+    }
+  }
+
+  /**
+   * One outcome of a test case, and the number of runs that ended in it.
+   *
+   * @param values - the values of r1, r2, ... in the outcome
+   * @param count - the number of runs that ended in this outcome
+   * @param expect - how the outcome is graded (outcomes that were not declared are forbidden)
+   * @param description - the description of the declared outcome, or "unknown outcome"
+   */
+  public record Outcome(long[] values, long count, OutcomeTestCase.Expect expect, String description) {
+  }
+
+  /**
+   * The histogram of the outcomes of an outcome test case.
+   */
+  public static class Report {
+    final Class<?> type;
+    final List<Outcome> outcomes = new ArrayList<>();
+    long total;
+
+    Report(OutcomeTestCase test, OutcomeHistogram histogram) {
+      this.type = test.getClass();
+      for (var entry : histogram.outcomes()) {
+        var values = Arrays.copyOf(entry, histogram.arity);
+        var count = entry[histogram.arity];
+        var d = test.declaration(values);
+        outcomes.add(d == null
+          ? new Outcome(values, count, OutcomeTestCase.Expect.FORBIDDEN, "unknown outcome")
+          : new Outcome(values, count, d.expect(), d.description()));
+        total += count;
+      }
+      outcomes.sort(Comparator.comparing(Outcome::expect).thenComparing(Outcome::count, Comparator.reverseOrder()));
+    }
+
+    /** @return the outcomes that occurred, acceptable ones first */
+    public List<Outcome> getOutcomes() { return outcomes; }
+
+    /** @return the number of runs */
+    public long getTotal() { return total; }
+
+    /**
+     * @param values - the values of r1, r2, ...
+     * @return the number of runs that ended in the outcome
+     */
+    public long getCount(long... values) {
+      for (var o : outcomes) {
+        if (Arrays.equals(o.values(), Arrays.copyOf(values, o.values().length))) return o.count();
+      }
+      return 0;
+    }
+
+    /** @return the number of runs that ended in an interesting outcome */
+    public long getInteresting() { return count(OutcomeTestCase.Expect.INTERESTING); }
+
+    /** @return the number of runs that ended in a forbidden (or undeclared) outcome */
+    public long getForbidden() { return count(OutcomeTestCase.Expect.FORBIDDEN); }
+
+    long count(OutcomeTestCase.Expect expect) {
+      var n = 0L;
+      for (var o : outcomes) {
+        if (o.expect() == expect) n += o.count();
+      }
+      return n;
+    }
+
+    @Override
+    public String toString() {
+      var s = new StringBuilder();
+      s.append("Outcomes of ").append(type.getName()).append(" (").append(total).append(" runs)");
+      for (var o : outcomes) {
+        var values = new StringBuilder();
+        for (var v : o.values()) {
+          if (values.length() > 0) values.append(", ");
+          values.append(v);
+        }
+        s.append(String.format("%n  %-16s %,12d  %-11s %s", values, o.count(), o.expect(), o.description()));
+      }
+      return s.toString();
+    }
+  }
+
+}
@@ -0,0 +1,136 @@
+package edu.umd.cs.mtc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A {@link TestCase} whose runs end in one of a set of declared outcomes,
+ * for memory-model and visibility tests run by {@link OutcomeRunner}.
+ *
+ * <p>
+ * Rather than checking a single expected final state,
+ * the thread methods record the values they observe in {@link #result},
+ * and the finish method (<code>tearDown</code>) may record the final state there too.
+ * The values of the result at the end of a run are its outcome.
+ * {@link OutcomeRunner} runs the test case many times and counts how often each outcome occurs.
+ *
+ * <p>
+ * Every outcome that may occur is declared, usually in an instance initializer of the test case,
+ * as acceptable, interesting (allowed, but worth knowing about, e.g. a weak memory effect)
+ * or forbidden. An outcome that was not declared is forbidden.
+ * For example:
+ * <pre>
+ * class StoreBuffering extends OutcomeTestCase {
+ *   volatile int x, y;
+ *   {
+ *     acceptable("one thread saw the other", 0, 1);
+ *     acceptable("one thread saw the other", 1, 0);
+ *     acceptable("both threads saw each other", 1, 1);
+ *     forbidden("sequential consistency violated", 0, 0);
+ *   }
+ *   void setUp() { x = 0; y = 0; }
+ *   void thread1() { x = 1; result.r1 = y; }
+ *   void thread2() { y = 1; result.r2 = x; }
+ * }
+ * </pre>
+ *
+ * @see OutcomeRunner
+ */
+public class OutcomeTestCase extends TestCase {
+
+  /**
+   * The values observed in a run. All the values are reset to 0 before each run.
+   */
+  public static final class Result {
+    public long r1, r2, r3, r4;
+
+    void clear() {
+      r1 = r2 = r3 = r4 = 0;
+    }
+  }
+
+  /**
+   * How an outcome is graded.
+   */
+  public enum Expect {
+    /** The outcome is allowed */
+    ACCEPTABLE,
+    /** The outcome is allowed, but worth reporting */
+    INTERESTING,
+    /** The outcome shows a bug */
+    FORBIDDEN,
+  }
+
+  /**
+   * A declared outcome.
+   */
+  record Declared(long[] values, Expect expect, String description) {
+  }
+
+  /**
+   * The values observed in the current run.
+   */
+  public final Result result = new Result();
+
+  final List<Declared> declared = new ArrayList<>();
+
+  /**
+   * The number of result values that make up an outcome: the most values of any declared outcome.
+   */
+  int arity = 1;
+
+  void declare(Expect expect, String description, long... values) {
+    if (values.length < 1 || values.length > 4) {
+      throw new IllegalArgumentException("An outcome has 1 to 4 values");
+    }
+    declared.add(new Declared(values.clone(), expect, description));
+    arity = Math.max(arity, values.length);
+  }
+
+  /**
+   * Declare an acceptable outcome.
+   *
+   * @param description - what the outcome means
+   * @param values - the values of r1, r2, ... in the outcome
+   */
+  protected void acceptable(String description, long... values) {
+    declare(Expect.ACCEPTABLE, description, values);
+  }
+
+  /**
+   * Declare an interesting outcome: it is allowed, but is reported.
+   *
+   * @param description - what the outcome means
+   * @param values - the values of r1, r2, ... in the outcome
+   */
+  protected void interesting(String description, long... values) {
+    declare(Expect.INTERESTING, description, values);
+  }
+
+  /**
+   * Declare a forbidden outcome. Outcomes that are not declared are forbidden too;
+   * declaring one gives it a description.
+   *
+   * @param description - what the outcome means
+   * @param values - the values of r1, r2, ... in the outcome
+   */
+  protected void forbidden(String description, long... values) {
+    declare(Expect.FORBIDDEN, description, values);
+  }
+
+  /**
+   * Find the declaration of an outcome.
+   *
+   * @param values - the values of the outcome (<code>arity</code> of them)
+   * @return the declaration, or null if the outcome was not declared
+   */
+  Declared declaration(long[] values) {
+    for (var d : declared) {
+      if (Arrays.equals(Arrays.copyOf(d.values, arity), values)) {
+        return d;
+      }
+    }
+    return null;
+  }
+}
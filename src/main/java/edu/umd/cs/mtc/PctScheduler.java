@@ -0,0 +1,264 @@
+package edu.umd.cs.mtc;
+
+import java.util.SplittableRandom;
+
+/**
+ * A probabilistic concurrency testing (PCT) scheduler for the thread methods of a {@link TestCase}.
+ *
+ * <p>
+ * Without a scheduler, {@link TestCase#mayYield()} calls {@link Thread#yield()} at random,
+ * which the operating system is free to ignore, so there is no telling how likely
+ * a run is to hit a given interleaving.
+ * With a PCT scheduler, the calls to <code>mayYield</code> and the returns from
+ * {@link TestCase#waitForTick(int)} are scheduling points, and the thread methods
+ * take turns running between them:
+ * <ul>
+ * <li>at the start of each run, the threads get distinct random priorities, all at least <em>d</em>,
+ * <li>before the run, <em>d</em> - 1 priority change points are chosen at random among
+ * the first <em>k</em> scheduling points: the thread reaching the <em>i</em>-th one
+ * drops to priority <em>i</em>, below all the initial priorities,
+ * <li>at every scheduling point, only the highest-priority thread that can run goes on;
+ * the others wait for their turn.
+ * </ul>
+ * A bug of depth <em>d</em> is one that shows up when some <em>d</em> steps of the threads
+ * happen in a given order (an ordering violation between two threads has depth 1,
+ * an atomicity violation depth 2).
+ * When a run of a test case with <em>n</em> threads has at most <em>k</em> scheduling points,
+ * it hits any given bug of depth <em>d</em> with probability at least 1/(<em>n</em> <em>k</em><sup><em>d</em>-1</sup>)
+ * (Burckhardt et al., ASPLOS 2010).
+ * {@link #getProbabilityBound()} gives that bound, and {@link #iterationsFor(double)}
+ * the number of runs needed to find such a bug with a given confidence.
+ *
+ * <p>
+ * The number of scheduling points <em>k</em> is an estimate: it starts with the estimate
+ * given to the constructor, and is raised whenever a run has more scheduling points than that.
+ *
+ * <p>
+ * Only the thread methods of the run are scheduled, and only at the scheduling points;
+ * a thread that blocks between scheduling points hands its turn to the highest-priority waiting thread
+ * (see {@link ControlledScheduler}).
+ *
+ * <p>
+ * Each run has a seed of its own: the first run uses the seed given to the constructor,
+ * the next one that seed + 1, and so on.
+ * When a run fails, its seed and its estimate of <em>k</em> are printed,
+ * so that its schedule can be replayed with <code>new PctScheduler(depth, seed, steps)</code>
+ * (as far as the threads block at the same places).
+ *
+ * <p>
+ * Set command line parameter -Dtunit.pctDepth=<em>d</em> to give every test case
+ * a PCT scheduler of depth <em>d</em>, with the seed -Dtunit.pctSeed (random by default)
+ * and the initial estimate -Dtunit.pctSteps.
+ *
+ * @see TestCase#setPct(PctScheduler)
+ */
+public class PctScheduler extends ControlledScheduler {
+
+  /**
+   * Command line key for the depth of the bugs to look for (0 for no PCT scheduler).
+   */
+  public static final String DEPTH_KEY = "tunit.pctDepth";
+
+  /**
+   * Command line key for the seed of the first run.
+   */
+  public static final String SEED_KEY = "tunit.pctSeed";
+
+  /**
+   * Command line key for the initial estimate of the number of scheduling points in a run.
+   */
+  public static final String STEPS_KEY = "tunit.pctSteps";
+
+  /**
+   * The default initial estimate of the number of scheduling points in a run
+   */
+  public static final Integer DEFAULT_STEPS = 100;
+
+  final int depth;
+  final long seed;
+
+  /** The estimate of the number of scheduling points in a run */
+  int steps;
+
+  /** The number of runs started */
+  int runs;
+
+  /** The thread reaching scheduling point <code>changePoints[i]</code> drops to priority i + 1 */
+  int[] changePoints = new int[0];
+
+  long runSeed;
+  int runSteps;
+
+  /**
+   * Create a scheduler with the default initial estimate of the number of scheduling points.
+   *
+   * @param depth - the depth of the bugs to look for (at least 1)
+   * @param seed - the seed of the first run
+   */
+  public PctScheduler(int depth, long seed) {
+    this(depth, seed, DEFAULT_STEPS);
+  }
+
+  /**
+   * Create a scheduler.
+   *
+   * @param depth - the depth of the bugs to look for (at least 1)
+   * @param seed - the seed of the first run
+   * @param steps - the initial estimate of the number of scheduling points in a run
+   */
+  public PctScheduler(int depth, long seed, int steps) {
+    if (depth < 1) {
+      throw new IllegalArgumentException("The depth must be at least 1");
+    }
+    this.depth = depth;
+    this.seed = seed;
+    this.steps = Math.max(1, steps);
+  }
+
+  /**
+   * @return the scheduler set up by the command line parameters, or null if there is none
+   */
+  static PctScheduler fromProperties() {
+    var depth = Integer.getInteger(DEPTH_KEY, 0);
+    if (depth <= 0) {
+      return null;
+    }
+    return new PctScheduler(depth, Long.getLong(SEED_KEY, System.nanoTime()), Integer.getInteger(STEPS_KEY, DEFAULT_STEPS));
+  }
+
+  /**
+   * Prepare the schedule of a run: the priorities of the threads and the change points.
+   *
+   * @param names - the names of the thread methods
+   */
+  @Override
+  synchronized void begin(String[] names) {
+    super.begin(names);
+    var threads = names.length;
+    runSeed = seed + runs++;
+    runSteps = steps;
+    var random = new SplittableRandom(runSeed);
+    for (var i = 0; i < threads; i++) {
+      // shuffle the priorities depth .. depth + threads - 1 as they are dealt
+      var j = random.nextInt(i + 1);
+      slots[i].priority = slots[j].priority;
+      slots[j].priority = depth + i;
+    }
+    changePoints = new int[depth - 1];
+    for (var i = 0; i < changePoints.length; i++) {
+      changePoints[i] = 1 + random.nextInt(runSteps);
+    }
+  }
+
+  /**
+   * End the run, and learn from the number of scheduling points it had.
+   */
+  @Override
+  synchronized void end() {
+    super.end();
+    steps = Math.max(steps, step);
+  }
+
+  @Override
+  void stepped(Slot s) {
+    for (var i = 0; i < changePoints.length; i++) {
+      if (changePoints[i] == step) {
+        s.priority = i + 1;
+      }
+    }
+  }
+
+  /**
+   * @return the position of the highest-priority waiting thread
+   */
+  @Override
+  int choose(Slot[] waiting, int count) {
+    var best = 0;
+    for (var i = 1; i < count; i++) {
+      if (waiting[i].priority > waiting[best].priority) {
+        best = i;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * @return the depth of the bugs looked for
+   */
+  public int getDepth() {
+    return depth;
+  }
+
+  /**
+   * @return the seed of the first run
+   */
+  public long getSeed() {
+    return seed;
+  }
+
+  /**
+   * @return the current estimate of the number of scheduling points in a run
+   */
+  public synchronized int getSteps() {
+    return steps;
+  }
+
+  /**
+   * @return the seed of the last run
+   */
+  public synchronized long getRunSeed() {
+    return runSeed;
+  }
+
+  /**
+   * @return the number of thread methods in the last run
+   */
+  public synchronized int getThreads() {
+    return slots.length;
+  }
+
+  /**
+   * Get the lower bound on the probability that a run hits a given bug of the depth looked for:
+   * 1/(<em>n</em> <em>k</em><sup><em>d</em>-1</sup>) for the <em>n</em> thread methods of the last run
+   * and the current estimate <em>k</em> of the number of scheduling points.
+   *
+   * @return the probability bound, or 0 if no run has started yet
+   */
+  public synchronized double getProbabilityBound() {
+    if (slots.length == 0) {
+      return 0;
+    }
+    return 1.0 / (slots.length * Math.pow(steps, depth - 1));
+  }
+
+  /**
+   * Get the number of runs that hit a given bug of the depth looked for
+   * with at least the given probability.
+   *
+   * @param confidence - the probability of finding the bug (between 0 and 1)
+   * @return the number of runs
+   */
+  public long iterationsFor(double confidence) {
+    var p = getProbabilityBound();
+    if (p <= 0) {
+      throw new IllegalStateException("The bound is only known after a run");
+    }
+    if (p >= 1) {
+      return 1;
+    }
+    return (long) Math.ceil(Math.log1p(-confidence) / Math.log1p(-p));
+  }
+
+  @Override
+  synchronized String describeRun() {
+    return "PCT depth " + depth + ", seed " + runSeed + ", " + runSteps + " steps"
+      + " (replay with new PctScheduler(" + depth + ", " + runSeed + "L, " + runSteps + "))";
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("PCT depth %d, %d threads, %d steps: a bug of depth %d is hit by a run with probability >= %.3g",
+      depth, slots.length, steps, depth, getProbabilityBound());
+  }
+
+}
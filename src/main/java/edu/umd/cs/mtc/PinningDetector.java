@@ -0,0 +1,249 @@
+package edu.umd.cs.mtc;
+
+import java.time.Duration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingStream;
+
+/**
+ * Detect the virtual threads of a {@link TestCase} that pin their carrier thread,
+ * or that cannot be scheduled at all, from the JFR events of each run.
+ *
+ * <p>
+ * A virtual thread that blocks inside a <code>synchronized</code> block or method
+ * (or in a native frame) cannot unmount: it holds its carrier thread while it waits,
+ * and with a few of them the scheduler runs out of carriers. JFR reports each such park
+ * with a <code>jdk.VirtualThreadPinned</code> event, and each virtual thread that the scheduler
+ * refused with a <code>jdk.VirtualThreadSubmitFailed</code> event.
+ * The detector streams these events in process during each run, with no duration threshold,
+ * and attributes each one to the stack where it happened, and to the thread method
+ * whose code (or a lambda of it) is on that stack. JFR does not record which thread started
+ * a virtual thread: one started with a method reference is not attributed to a thread method.
+ *
+ * <p>
+ * Set the detector of a test case with {@link TestCase#setPinning(PinningDetector)}
+ * (or -Dtunit.pinning=fail to fail the runs that pin, -Dtunit.pinning=true to only print them).
+ * The events of all the runs are kept. Only the events attributed to a thread method fail a run;
+ * the others are printed.
+ * The framework itself does not pin: its waits use a {@link java.util.concurrent.locks.ReentrantLock}.
+ *
+ * <p>
+ * Each run starts a JFR recording, and stops it after the thread methods have ended,
+ * waiting for the events of the run to be delivered: this costs some milliseconds per run.
+ */
+public final class PinningDetector {
+
+  /**
+   * System property to detect pinning in every test case: <code>fail</code> or <code>true</code>.
+   */
+  public static final String KEY = "tunit.pinning";
+
+  static final String PINNED = "jdk.VirtualThreadPinned";
+  static final String SUBMIT_FAILED = "jdk.VirtualThreadSubmitFailed";
+
+  /**
+   * @return a new detector if -Dtunit.pinning is set to <code>fail</code> or <code>true</code>, or null
+   */
+  static PinningDetector fromProperties() {
+    var mode = System.getProperty(KEY, "false");
+    if (mode.equals("fail")) {
+      return new PinningDetector(true);
+    }
+    return Boolean.parseBoolean(mode) ? new PinningDetector(false) : null;
+  }
+
+  /**
+   * A virtual thread that pinned its carrier, or could not be scheduled.
+   */
+  public static final class Pinning {
+    final boolean pinned;
+    final String thread;
+    final String virtualThread;
+    final Duration duration;
+    final String message;
+    final List<String> stack;
+
+    Pinning(boolean pinned, String thread, String virtualThread, Duration duration, String message, List<String> stack) {
+      this.pinned = pinned;
+      this.thread = thread;
+      this.virtualThread = virtualThread;
+      this.duration = duration;
+      this.message = message;
+      this.stack = stack;
+    }
+
+    /** @return true if the virtual thread pinned its carrier, false if it could not be scheduled */
+    public boolean isPinned() { return pinned; }
+
+    /** @return the name of the thread method on the stack of the virtual thread, or null if there is none */
+    public String getThread() { return thread; }
+
+    /** @return the name of the virtual thread, which is often empty */
+    public String getVirtualThread() { return virtualThread; }
+
+    /** @return how long the carrier was pinned */
+    public Duration getDuration() { return duration; }
+
+    /** @return the frames of the virtual thread when it pinned its carrier, innermost first */
+    public List<String> getStack() { return stack; }
+
+    @Override
+    public String toString() {
+      var s = new StringBuilder("a virtual thread");
+      if (!virtualThread.isEmpty()) {
+        s.append(" (").append(virtualThread).append(")");
+      }
+      s.append(" of ").append(thread == null ? "an unknown thread method" : thread);
+      if (pinned) {
+        s.append(String.format(" pinned its carrier for %.3f ms", duration.toNanos() / 1e6));
+      } else {
+        s.append(" could not be scheduled: ").append(message);
+      }
+      for (var f : stack) {
+        s.append(String.format("%n      at %s", f));
+      }
+      return s.toString();
+    }
+  }
+
+  final boolean fail;
+
+  final List<Pinning> events = new ArrayList<>();
+
+  /** The number of events already reported by {@link #check()} */
+  int reported;
+
+  /** The names of the thread methods of the run */
+  volatile Set<String> methods = Set.of();
+
+  RecordingStream stream;
+
+  /**
+   * @param fail - true if a run that pins a carrier fails, false to only print what it pinned
+   */
+  public PinningDetector(boolean fail) {
+    this.fail = fail;
+  }
+
+  /**
+   * Start recording the events of a run.
+   *
+   * @param names - the names of its thread methods
+   */
+  void begin(String[] names) {
+    end();
+    methods = Set.of(names);
+    var s = new RecordingStream();
+    s.enable(PINNED).withThreshold(Duration.ZERO).withStackTrace();
+    s.enable(SUBMIT_FAILED).withStackTrace();
+    s.onEvent(PINNED, e -> add(e, true));
+    s.onEvent(SUBMIT_FAILED, e -> add(e, false));
+    s.startAsync();
+    synchronized (this) {
+      stream = s;
+    }
+  }
+
+  /**
+   * Stop recording, once all the events of the run have been delivered.
+   */
+  void end() {
+    RecordingStream s;
+    synchronized (this) {
+      s = stream;
+      stream = null;
+    }
+    if (s != null) {
+      s.stop();
+      s.close();
+    }
+  }
+
+  synchronized void add(RecordedEvent e, boolean pinned) {
+    var name = pinned ? e.getThread().getJavaName() : "";
+    events.add(new Pinning(pinned, method(e), name == null ? "" : name,
+      e.getDuration(), pinned ? null : e.getString("exceptionMessage"), stack(e)));
+  }
+
+  /**
+   * @return the innermost thread method on the stack of an event
+   * (<code>thread1</code>, or a lambda <code>lambda$thread1$0</code>), or null
+   */
+  String method(RecordedEvent e) {
+    var trace = e.getStackTrace();
+    if (trace == null) {
+      return null;
+    }
+    for (var f : trace.getFrames()) {
+      var name = f.getMethod().getName();
+      if (name.startsWith("lambda$")) {
+        name = name.substring(7, Math.max(7, name.lastIndexOf('$')));
+      }
+      if (methods.contains(name)) {
+        return name;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the frames of the stack trace of an event, without those of the virtual thread implementation
+   */
+  static List<String> stack(RecordedEvent e) {
+    var stack = new ArrayList<String>();
+    var trace = e.getStackTrace();
+    if (trace == null) {
+      return stack;
+    }
+    for (var f : trace.getFrames()) {
+      var type = f.getMethod().getType().getName();
+      if (type.startsWith("jdk.internal.") || type.equals("java.lang.VirtualThread")) {
+        continue;
+      }
+      stack.add(type + "." + f.getMethod().getName() + (f.getLineNumber() > 0 ? ":" + f.getLineNumber() : ""));
+    }
+    return stack;
+  }
+
+  /**
+   * @return the events of all the runs so far
+   */
+  public synchronized List<Pinning> getEvents() {
+    return new ArrayList<>(events);
+  }
+
+  /**
+   * Stop recording the run, and report its events.
+   * The events that are not attributed to a thread method (which may come from
+   * other code running in the JVM) are only printed, and never fail the run.
+   *
+   * @throws AssertionError - if there are events of the thread methods, and the detector fails the runs that pin
+   */
+  public void check() {
+    end();
+    var attributed = new StringBuilder();
+    var unattributed = new StringBuilder();
+    synchronized (this) {
+      for (var p : events.subList(reported, events.size())) {
+        (p.thread != null ? attributed : unattributed).append(String.format("%n  %s", p));
+      }
+      reported = events.size();
+    }
+    if (unattributed.length() > 0) {
+      System.out.println("Virtual thread pinning outside the thread methods" + unattributed);
+    }
+    if (attributed.length() == 0) {
+      return;
+    }
+    var report = "Virtual thread pinning" + attributed;
+    if (fail) {
+      throw new AssertionError(report);
+    }
+    System.out.println(report);
+  }
+
+}
@@ -0,0 +1,561 @@
+package edu.umd.cs.mtc;
+
+import java.lang.reflect.Modifier;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A dynamic data race detector for the thread methods of a {@link TestCase},
+ * after the FastTrack algorithm of Flanagan and Freund.
+ *
+ * <p>
+ * A test case only finds the races that make a run fail or hang. The detector finds the accesses
+ * to the same field (or array element) by two thread methods, at least one of them a write,
+ * that are not ordered by happens-before, whether or not the run went wrong.
+ * Each thread has a vector clock, and so does each synchronization object;
+ * happens-before edges are made by:
+ * <ul>
+ * <li>monitors: exiting a synchronized block or method, and entering one on the same object later;
+ * <li><code>volatile</code> fields: a write, and a later read of the same field;
+ * <li>locks: <code>unlock()</code>, and a later <code>lock()</code>, <code>lockInterruptibly()</code>
+ * or <code>tryLock()</code> of the same lock;
+ * <li>the classes of <code>java.util.concurrent</code> (atomics, queues, latches, concurrent maps...):
+ * a call on an object, and a later call on the same object;
+ * <code>Object.wait</code>/<code>notify</code> and the <code>await</code>/<code>signal</code>
+ * methods of conditions are treated the same way;
+ * <li>ticks: a thread that calls {@link TestCase#waitForTick(int)} (or ends) before the clock reaches a tick,
+ * and a thread that returns from <code>waitForTick</code> for that tick (or a later one).
+ * </ul>
+ *
+ * <p>
+ * The accesses and the synchronization actions are reported by the hooks that the {@link YieldAgent}
+ * inserts into the classes it instruments, so the detector needs the agent;
+ * only the thread methods are watched (not the set up and finish methods, nor other threads).
+ * Each instrumented access is a site of the code, registered when its class is instrumented:
+ * a race is reported with the site of the earlier access and the full stack of the later one.
+ *
+ * <p>
+ * As in FastTrack, a variable remembers its last write as an epoch (the clock of one thread),
+ * and its reads as an epoch too, as long as they are ordered; only reads by several threads
+ * at once need a vector clock, which goes back to an epoch at the next write.
+ * The shadow state of the variables is dropped at the start of each run.
+ *
+ * <p>
+ * Set the detector of a test case with {@link TestCase#setRaceDetector(RaceDetector)}
+ * (or -Dtunit.raceDetector=true): a run in which it finds a new race fails with an {@link AssertionError}.
+ * Calls through interfaces outside <code>java.util.concurrent</code>
+ * (e.g. <code>Map.put</code> on a concurrent map), timed <code>tryLock</code> and <code>StampedLock</code>
+ * make no happens-before edges, so their callers may be reported as racing.
+ */
+public final class RaceDetector {
+
+  /**
+   * System property to detect the races of every test case.
+   */
+  public static final String KEY = "tunit.raceDetector";
+
+  /**
+   * @return a new detector if -Dtunit.raceDetector=true, or null
+   */
+  static RaceDetector fromProperties() {
+    return Boolean.getBoolean(KEY) ? new RaceDetector() : null;
+  }
+
+  // -- Access sites --
+
+  /**
+   * A field accessed by instrumented code.
+   */
+  static final class Field {
+    final String owner, name;
+    final ClassLoader loader;
+
+    /** 0 until resolved, then 1 for a plain field and 2 for a volatile one */
+    volatile int kind;
+
+    Field(String owner, String name, ClassLoader loader) {
+      this.owner = owner;
+      this.name = name;
+      this.loader = loader;
+    }
+
+    boolean isVolatile() {
+      if (kind == 0) {
+        kind = resolve();
+      }
+      return kind == 2;
+    }
+
+    int resolve() {
+      try {
+        for (var c = Class.forName(owner.replace('/', '.'), false, loader); c != null; c = c.getSuperclass()) {
+          for (var f : c.getDeclaredFields()) {
+            if (f.getName().equals(name)) {
+              return Modifier.isVolatile(f.getModifiers()) ? 2 : 1;
+            }
+          }
+        }
+      }
+      catch (ClassNotFoundException | LinkageError e) {
+        // treated as a plain field
+      }
+      return 1;
+    }
+
+    @Override
+    public String toString() {
+      return owner.replace('/', '.') + "." + name;
+    }
+  }
+
+  /**
+   * An instrumented access: the field (or null for an array element), and where it is.
+   */
+  record Site(Field field, String location) {
+  }
+
+  static final ConcurrentHashMap<String, Field> fields = new ConcurrentHashMap<>();
+
+  /** The sites, indexed by the number the instrumented code passes to its hooks */
+  static volatile Site[] sites = new Site[256];
+  static int siteCount;
+
+  /**
+   * Register an access site; called when a class is instrumented.
+   *
+   * @param loader - the class loader of the instrumented class
+   * @param owner - the internal name of the class of the field, or null for an array element
+   * @param name - the name of the field
+   * @param location - where the access is, as in a stack trace
+   * @return the number of the site
+   */
+  static synchronized int site(ClassLoader loader, String owner, String name, String location) {
+    var field = owner == null ? null
+      : fields.computeIfAbsent(owner + "." + name + "@" + System.identityHashCode(loader), k -> new Field(owner, name, loader));
+    var table = sites;
+    if (siteCount == table.length) {
+      table = Arrays.copyOf(table, 2 * siteCount);
+    }
+    table[siteCount] = new Site(field, location);
+    sites = table;
+    return siteCount++;
+  }
+
+  // -- Vector clocks --
+
+  /** An epoch: the clock of one thread, as (clock << 32 | thread). 0 is before everything */
+  static long epoch(int tid, int clock) {
+    return (long) clock << 32 | tid;
+  }
+
+  static int tid(long epoch) {
+    return (int) epoch;
+  }
+
+  static int clock(long epoch) {
+    return (int) (epoch >>> 32);
+  }
+
+  static int get(int[] vc, int tid) {
+    return tid < vc.length ? vc[tid] : 0;
+  }
+
+  /**
+   * @return true if an epoch happens before (or is) the current time of a vector clock
+   */
+  static boolean leq(long epoch, int[] vc) {
+    return clock(epoch) <= get(vc, tid(epoch));
+  }
+
+  /**
+   * @return <code>into</code> (or a larger copy) joined with <code>from</code>
+   */
+  static int[] join(int[] into, int[] from) {
+    if (into.length < from.length) {
+      into = Arrays.copyOf(into, from.length);
+    }
+    for (var i = 0; i < from.length; i++) {
+      into[i] = Math.max(into[i], from[i]);
+    }
+    return into;
+  }
+
+  static int[] set(int[] vc, int tid, int clock) {
+    if (vc.length <= tid) {
+      vc = Arrays.copyOf(vc, Math.max(tid + 1, 2 * vc.length));
+    }
+    vc[tid] = clock;
+    return vc;
+  }
+
+  /**
+   * A thread method thread of the current run.
+   */
+  static final class ThreadState {
+    final int generation;
+    final int tid;
+    final String name;
+    int[] clock;
+
+    /** The synchronization objects of the calls under way, acquired when they return */
+    final ArrayDeque<Sync> calls = new ArrayDeque<>();
+
+    /** The volatile field being read, acquired after the read */
+    Sync reading;
+
+    ThreadState(int generation, int tid, String name) {
+      this.generation = generation;
+      this.tid = tid;
+      this.name = name;
+      this.clock = set(new int[0], tid, 1);
+    }
+
+    long epoch() {
+      return RaceDetector.epoch(tid, clock[tid]);
+    }
+  }
+
+  /**
+   * The vector clock of a synchronization object.
+   */
+  static final class Sync {
+    int[] clock = new int[0];
+  }
+
+  /**
+   * The shadow state of a variable: the epoch of its last write,
+   * and the epoch of its last read (or a vector clock of the last read of each thread), with their sites.
+   */
+  static final class Var {
+    long write;
+    int writeSite;
+    long read;
+    int readSite;
+    int[] reads, readSites;
+  }
+
+  /**
+   * A variable (or a synchronization object): an object, compared by identity,
+   * and a field of it (null for a monitor, a lock or an array element), or an element index.
+   */
+  record Key(Object object, Field field, int index) {
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Key k && k.object == object && k.field == field && k.index == index;
+    }
+
+    @Override
+    public int hashCode() {
+      return (System.identityHashCode(object) * 31 + System.identityHashCode(field)) * 31 + index;
+    }
+  }
+
+  /** The synchronization object of the calls whose receiver could not be passed to the hooks */
+  static final Object UNKNOWN = new Object();
+
+  // -- The current run --
+
+  volatile int generation;
+  final AtomicInteger tids = new AtomicInteger();
+  final List<String> names = new ArrayList<>();
+  final ThreadLocal<ThreadState> state = new ThreadLocal<>();
+  final ConcurrentHashMap<Key, Var> vars = new ConcurrentHashMap<>();
+  final ConcurrentHashMap<Key, Sync> syncs = new ConcurrentHashMap<>();
+  final Sync ticks = new Sync();
+
+  /** The clock of {@link #ticks} as each tick of the run was reached, by tick */
+  final TreeMap<Integer, int[]> tickClocks = new TreeMap<>();
+
+  // -- All the runs --
+
+  final List<Race> races = new ArrayList<>();
+  final Set<String> found = new HashSet<>();
+
+  /** The number of races already reported by {@link #check()} */
+  int reported;
+
+  /**
+   * Forget the threads, the variables and the clocks of the last run.
+   */
+  void begin() {
+    synchronized (names) {
+      generation++;
+      tids.set(0);
+      names.clear();
+    }
+    vars.clear();
+    syncs.clear();
+    synchronized (ticks) {
+      ticks.clock = new int[0];
+      tickClocks.clear();
+    }
+  }
+
+  ThreadState state() {
+    var s = state.get();
+    if (s == null || s.generation != generation) {
+      synchronized (names) {
+        s = new ThreadState(generation, tids.getAndIncrement(), Thread.currentThread().getName());
+        names.add(s.name);
+      }
+      state.set(s);
+    }
+    return s;
+  }
+
+  Sync sync(Key key) {
+    return syncs.computeIfAbsent(key, k -> new Sync());
+  }
+
+  static void acquire(ThreadState t, Sync sync) {
+    synchronized (sync) {
+      t.clock = join(t.clock, sync.clock);
+    }
+  }
+
+  static void release(ThreadState t, Sync sync) {
+    synchronized (sync) {
+      sync.clock = join(sync.clock, t.clock);
+    }
+    t.clock[t.tid]++;
+  }
+
+  // -- Events, from the hooks --
+
+  void read(Object object, int site) {
+    var s = sites[site];
+    var t = state();
+    if (s.field.isVolatile()) {
+      t.reading = sync(new Key(object, s.field, -1));
+    } else {
+      access(new Key(object, s.field, -1), site, t, false);
+    }
+  }
+
+  void afterRead() {
+    var t = state();
+    if (t.reading != null) {
+      acquire(t, t.reading);
+      t.reading = null;
+    }
+  }
+
+  void write(Object object, int site) {
+    var s = sites[site];
+    var t = state();
+    if (s.field.isVolatile()) {
+      release(t, sync(new Key(object, s.field, -1)));
+    } else {
+      access(new Key(object, s.field, -1), site, t, true);
+    }
+  }
+
+  void arrayAccess(Object array, int index, int site, boolean write) {
+    access(new Key(array, null, index), site, state(), write);
+  }
+
+  void acquired(Object lock) {
+    acquire(state(), sync(new Key(lock, null, -1)));
+  }
+
+  void releasing(Object lock) {
+    release(state(), sync(new Key(lock, null, -1)));
+  }
+
+  void beforeCall(Object receiver) {
+    var t = state();
+    var sync = sync(new Key(receiver == null ? UNKNOWN : receiver, null, -1));
+    release(t, sync);
+    t.calls.push(sync);
+  }
+
+  void afterCall() {
+    var t = state();
+    var sync = t.calls.poll();
+    if (sync != null) {
+      acquire(t, sync);
+    }
+  }
+
+  void waitingForTick() {
+    release(state(), ticks);
+  }
+
+  /**
+   * Take a snapshot of the releases made before the clock reached a tick;
+   * called by the clock thread as the clock advances.
+   */
+  void tick(int tick) {
+    synchronized (ticks) {
+      tickClocks.put(tick, ticks.clock.clone());
+    }
+  }
+
+  /**
+   * Acquire what was released before the clock reached a tick,
+   * but nothing released after it: the clock may be past the tick already.
+   */
+  void releasedAtTick(int tick) {
+    var t = state();
+    synchronized (ticks) {
+      var at = tickClocks.floorEntry(tick);
+      if (at != null) {
+        t.clock = join(t.clock, at.getValue());
+      }
+    }
+  }
+
+  /**
+   * The FastTrack read and write rules.
+   */
+  void access(Key key, int site, ThreadState t, boolean write) {
+    var v = vars.computeIfAbsent(key, k -> new Var());
+    var c = t.clock;
+    var e = t.epoch();
+    synchronized (v) {
+      if (!write) {
+        if (v.reads == null && v.read == e) {
+          return; // same epoch
+        }
+        if (!leq(v.write, c)) {
+          race(key, v.writeSite, tid(v.write), true, site, t, false);
+        }
+        if (v.reads != null) {
+          v.reads = set(v.reads, t.tid, c[t.tid]);
+          v.readSites = set(v.readSites, t.tid, site);
+        } else if (leq(v.read, c)) {
+          v.read = e;
+          v.readSite = site;
+        } else {
+          // concurrent reads: from an epoch to a vector clock
+          v.reads = set(new int[0], tid(v.read), clock(v.read));
+          v.readSites = set(new int[v.reads.length], tid(v.read), v.readSite);
+          v.reads = set(v.reads, t.tid, c[t.tid]);
+          v.readSites = set(v.readSites, t.tid, site);
+        }
+      } else {
+        if (v.write == e) {
+          return; // same epoch
+        }
+        if (!leq(v.write, c)) {
+          race(key, v.writeSite, tid(v.write), true, site, t, true);
+        }
+        if (v.reads == null) {
+          if (!leq(v.read, c)) {
+            race(key, v.readSite, tid(v.read), false, site, t, true);
+          }
+        } else {
+          for (var u = 0; u < v.reads.length; u++) {
+            if (v.reads[u] > get(c, u)) {
+              race(key, v.readSites[u], u, false, site, t, true);
+            }
+          }
+          // back to an epoch
+          v.reads = v.readSites = null;
+          v.read = 0;
+        }
+        v.write = e;
+        v.writeSite = site;
+      }
+    }
+  }
+
+  void race(Key key, int firstSite, int firstTid, boolean firstWrite, int site, ThreadState t, boolean write) {
+    var first = sites[firstSite];
+    var second = sites[site];
+    var pair = Math.min(firstSite, site) + "/" + Math.max(firstSite, site);
+    synchronized (races) {
+      if (!found.add(pair)) {
+        return;
+      }
+    }
+    String firstName;
+    synchronized (names) {
+      firstName = firstTid < names.size() ? names.get(firstTid) : "?";
+    }
+    var variable = second.field == null ? "array element [" + key.index + "]" : second.field.toString();
+    var race = new Race(variable,
+      (firstWrite ? "write" : "read") + " by " + firstName + " at " + first.location,
+      (write ? "write" : "read") + " by " + t.name, LockOrderGraph.stack());
+    synchronized (races) {
+      races.add(race);
+    }
+  }
+
+  /**
+   * A data race: two accesses to a variable, not ordered by happens-before.
+   */
+  public static final class Race {
+    final String variable, first, second;
+    final StackTraceElement[] stack;
+
+    Race(String variable, String first, String second, StackTraceElement[] stack) {
+      this.variable = variable;
+      this.first = first;
+      this.second = second;
+      this.stack = stack;
+    }
+
+    /** @return the field (or array element) of the race */
+    public String getVariable() { return variable; }
+
+    /** @return the earlier access: read or write, the thread, and the site */
+    public String getFirst() { return first; }
+
+    /** @return the later access: read or write, and the thread */
+    public String getSecond() { return second; }
+
+    /** @return the stack of the later access */
+    public StackTraceElement[] getStack() { return stack.clone(); }
+
+    @Override
+    public String toString() {
+      var s = new StringBuilder();
+      s.append("Race on ").append(variable);
+      s.append(String.format("%n  %s", first));
+      s.append(String.format("%n  %s", second));
+      for (var e : stack) {
+        s.append(String.format("%n      at %s", e));
+      }
+      return s.toString();
+    }
+  }
+
+  /**
+   * @return the races found so far
+   */
+  public List<Race> getRaces() {
+    synchronized (races) {
+      return new ArrayList<>(races);
+    }
+  }
+
+  /**
+   * Report the races found since the last check.
+   *
+   * @throws AssertionError - if there are any
+   */
+  public void check() {
+    synchronized (races) {
+      if (reported == races.size()) {
+        return;
+      }
+      var s = new StringBuilder("Data race");
+      for (var r : races.subList(reported, races.size())) {
+        s.append(String.format("%n%s", r));
+      }
+      reported = races.size();
+      throw new AssertionError(s.toString());
+    }
+  }
+
+}
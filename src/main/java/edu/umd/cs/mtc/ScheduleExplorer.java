@@ -0,0 +1,258 @@
+package edu.umd.cs.mtc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * This class explores the schedules of a {@link TestCase} systematically, on several worker threads.
+ *
+ * <p>
+ * The thread methods of each run take turns between scheduling points
+ * (the calls to {@link TestCase#mayYield()}, the returns from {@link TestCase#waitForTick(int)},
+ * the yield points inserted by the {@link YieldAgent}, and the start and end of each thread method),
+ * as with a {@link PctScheduler}. Whenever more than one thread could go on,
+ * the schedule makes a decision: the position of the chosen thread among the waiting threads,
+ * in the order of their thread methods.
+ * A run is therefore determined by its sequence of decisions.
+ *
+ * <p>
+ * A run follows a given prefix of decisions, and then always chooses the first waiting thread,
+ * recording how many threads were waiting at each decision.
+ * Every other choice at a decision past the prefix is the prefix of a run still to explore,
+ * so the prefixes split the schedule space into disjoint parts, and every schedule
+ * is run exactly once (a depth-first search without stored states).
+ * The prefixes are the tasks of a work-stealing {@link ForkJoinPool}:
+ * each worker thread runs them with a test case instance of its own, created by a {@link Supplier},
+ * and the results of all the runs are merged into one {@link Report}.
+ *
+ * <p>
+ * A thread that blocks between scheduling points hands its turn over after a few milliseconds
+ * (see {@link ControlledScheduler}), which is a decision too; if the threads block at different
+ * places from one run to the next, a run may not follow its prefix. The report counts such runs.
+ *
+ * @see PctScheduler
+ */
+public class ScheduleExplorer {
+
+  /**
+   * Explore all the schedules of a test case.
+   *
+   * @param factory - creates a fresh instance of the test case for each worker thread
+   * @param workers - the number of worker threads
+   * @param maxSchedules - the most schedules to run
+   * @return the merged results of all the runs
+   */
+  public static Report explore(Supplier<? extends TestCase> factory, int workers, long maxSchedules) {
+    var report = new Report();
+    var instances = ThreadLocal.<TestCase>withInitial(factory::get);
+    var pool = new ForkJoinPool(Math.max(1, workers));
+    try {
+      pool.invoke(new Explore(new int[0], instances, maxSchedules, report));
+    }
+    finally {
+      pool.shutdown();
+    }
+    return report;
+  }
+
+  /**
+   * Run a test case once, following a sequence of decisions
+   * (as printed when a run fails, or from {@link Report#getFailingSchedule()}).
+   *
+   * @param test - the test case
+   * @param decisions - the decisions of the schedule
+   * @throws Throwable - if the run fails
+   */
+  public static void replay(TestCase test, int... decisions) throws Throwable {
+    var old = test.scheduler;
+    test.scheduler = new Replay(decisions, true);
+    try {
+      TestFramework.runOnce(test);
+    }
+    finally {
+      test.scheduler = old;
+    }
+  }
+
+  /**
+   * The task of running the schedule that follows a prefix,
+   * and then exploring the schedules that branch off it.
+   * The tasks are never serialized.
+   */
+  @SuppressWarnings("serial")
+  static class Explore extends RecursiveAction {
+    final int[] prefix;
+    final ThreadLocal<TestCase> instances;
+    final long maxSchedules;
+    final Report report;
+
+    Explore(int[] prefix, ThreadLocal<TestCase> instances, long maxSchedules, Report report) {
+      this.prefix = prefix;
+      this.instances = instances;
+      this.maxSchedules = maxSchedules;
+      this.report = report;
+    }
+
+    @Override
+    protected void compute() {
+      if (report.started.incrementAndGet() > maxSchedules) {
+        report.truncated = true;
+        return;
+      }
+      var test = instances.get();
+      var replay = new Replay(prefix, false);
+      test.scheduler = replay;
+      Throwable failure = null;
+      try {
+        TestFramework.runOnce(test);
+      }
+      catch (Throwable e) {
+        failure = e;
+      }
+      finally {
+        test.scheduler = null;
+      }
+      report.add(replay, failure);
+
+      var branches = new ArrayList<Explore>();
+      for (var i = prefix.length; i < replay.made; i++) {
+        for (var choice = 1; choice < replay.options[i]; choice++) {
+          var next = Arrays.copyOf(replay.decisions, i + 1);
+          next[i] = choice;
+          branches.add(new Explore(next, instances, maxSchedules, report));
+        }
+      }
+      invokeAll(branches);
+    }
+  }
+
+  /**
+   * A scheduler that follows a prefix of decisions, and then always chooses the first waiting thread.
+   */
+  static class Replay extends ControlledScheduler {
+    final int[] prefix;
+
+    /** True to print the schedule of a failed run; the report of an exploration has it instead */
+    final boolean describe;
+
+    /** The decisions made, and the number of waiting threads at each */
+    int[] decisions = new int[16];
+    int[] options = new int[16];
+    int made;
+
+    /** Set if the run could not follow its prefix */
+    boolean diverged;
+
+    Replay(int[] prefix, boolean describe) {
+      this.prefix = prefix;
+      this.describe = describe;
+    }
+
+    @Override
+    synchronized void begin(String[] names) {
+      super.begin(names);
+      made = 0;
+      diverged = false;
+    }
+
+    @Override
+    int choose(Slot[] waiting, int count) {
+      var choice = 0;
+      if (made < prefix.length) {
+        choice = prefix[made];
+        if (choice >= count) {
+          diverged = true;
+          choice = count - 1;
+        }
+      }
+      if (made == decisions.length) {
+        decisions = Arrays.copyOf(decisions, 2 * made);
+        options = Arrays.copyOf(options, 2 * made);
+      }
+      decisions[made] = choice;
+      options[made] = count;
+      made++;
+      return choice;
+    }
+
+    @Override
+    synchronized void end() {
+      super.end();
+      if (made < prefix.length) {
+        diverged = true;
+      }
+    }
+
+    /**
+     * @return the decisions made in the run
+     */
+    synchronized int[] schedule() {
+      return Arrays.copyOf(decisions, made);
+    }
+
+    @Override
+    synchronized String describeRun() {
+      if (!describe) {
+        return null; // reported by the exploration
+      }
+      var s = Arrays.toString(schedule());
+      return "decisions " + s + " (replay with ScheduleExplorer.replay(test, " + s.substring(1, s.length() - 1) + "))";
+    }
+  }
+
+  /**
+   * The merged results of the runs of an exploration.
+   */
+  public static class Report {
+    final AtomicLong started = new AtomicLong();
+    volatile boolean truncated;
+    long schedules, failures, diverged;
+    Throwable firstFailure;
+    int[] failingSchedule;
+
+    synchronized void add(Replay replay, Throwable failure) {
+      schedules++;
+      if (replay.diverged) {
+        diverged++;
+      }
+      if (failure != null) {
+        failures++;
+        if (firstFailure == null) {
+          firstFailure = failure;
+          failingSchedule = replay.schedule();
+        }
+      }
+    }
+
+    /** @return the number of schedules run */
+    public synchronized long getSchedules() { return schedules; }
+
+    /** @return the number of schedules whose run failed */
+    public synchronized long getFailures() { return failures; }
+
+    /** @return the number of runs that did not follow their prefix of decisions */
+    public synchronized long getDiverged() { return diverged; }
+
+    /** @return the failure of the first failed run found, or null if all the runs passed */
+    public synchronized Throwable getFirstFailure() { return firstFailure; }
+
+    /** @return the decisions of the first failed run found, or null if all the runs passed */
+    public synchronized int[] getFailingSchedule() { return failingSchedule; }
+
+    /** @return true if every schedule was run (the exploration was not cut short by the limit) */
+    public boolean isComplete() { return !truncated; }
+
+    @Override
+    public synchronized String toString() {
+      return "Schedules: " + schedules + (truncated ? " (limit reached)" : " (complete)")
+        + ", failures: " + failures + ", diverged: " + diverged
+        + (failingSchedule == null ? "" : ", first failing schedule: " + Arrays.toString(failingSchedule));
+    }
+  }
+
+}
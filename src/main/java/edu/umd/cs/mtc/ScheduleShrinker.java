@@ -0,0 +1,364 @@
+package edu.umd.cs.mtc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * This class runs a {@link TestCase} under random schedules until a run fails,
+ * and then shrinks the schedule of the failed run to one with as few context switches as it can.
+ *
+ * <p>
+ * The thread methods take turns between scheduling points, as with a {@link PctScheduler}.
+ * Whenever more than one thread could go on, the schedule makes a decision.
+ * The default decision lets the thread whose turn it was go on
+ * (or, if it has ended or blocked, the first waiting thread);
+ * any other decision is a context switch: a preemption, or a yield that took effect.
+ * The search runs make a random decision every time, so a failed run
+ * usually has a great many context switches, most of which have nothing to do with the failure.
+ *
+ * <p>
+ * A schedule is written as the list of its context switches, three numbers each:
+ * the index of the thread method whose turn it was (-1 at the start of the run),
+ * the number of scheduling points it had passed, and the index of the thread method that goes on.
+ * A switch stays where it is in the code whatever the other switches are, so they can be dropped
+ * one by one. Shrinking drops context switches (all those after some switch, a single switch,
+ * or a preemption together with the switch back) and replays the schedule: when the run still fails
+ * with the same kind of exception, the schedule is replaced by the one the replay actually followed.
+ * It stops when dropping no such switches makes the run fail.
+ * The result is the minimal schedule and a list of its steps,
+ * telling which thread ran and where each switch happened.
+ *
+ * <p>
+ * A thread that blocks between scheduling points hands its turn over after a few milliseconds
+ * (see {@link ControlledScheduler}); if the threads block at different places from one run to the next,
+ * a replay may not follow its schedule, and the shrunk schedule may not be the smallest.
+ *
+ * @see ScheduleExplorer
+ */
+public class ScheduleShrinker {
+
+  /**
+   * Run a test case under random schedules until a run fails, and throw the failure
+   * of the shrunk schedule, with its steps as a suppressed exception.
+   *
+   * @param test - the test case
+   * @param seed - the seed of the first run (the next runs use seed + 1, seed + 2, ...)
+   * @param maxRuns - the most runs before giving up
+   * @throws Throwable - the failure of the shrunk schedule, if a run failed
+   */
+  public static void check(TestCase test, long seed, int maxRuns) throws Throwable {
+    var result = runUntilFailure(test, seed, maxRuns);
+    if (result.failure != null) {
+      result.failure.addSuppressed(new IllegalStateException("Shrunk schedule\n" + result));
+      throw result.failure;
+    }
+  }
+
+  /**
+   * Run a test case under random schedules until a run fails, and shrink the schedule of the failed run.
+   *
+   * @param test - the test case
+   * @param seed - the seed of the first run (the next runs use seed + 1, seed + 2, ...)
+   * @param maxRuns - the most runs before giving up
+   * @return the shrunk schedule, or a result without a failure if no run failed
+   */
+  public static Result runUntilFailure(TestCase test, long seed, int maxRuns) {
+    var result = new Result();
+    for (var i = 0; i < maxRuns; i++) {
+      var scheduler = new Guided(new int[0], new SplittableRandom(seed + i));
+      var failure = run(test, scheduler);
+      result.runs++;
+      if (failure != null) {
+        result.seed = seed + i;
+        result.original = scheduler.schedule();
+        shrink(test, result, failure);
+        return result;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Shrink a schedule that makes a test case fail.
+   *
+   * @param test - the test case
+   * @param schedule - the schedule (three numbers for each context switch)
+   * @return the shrunk schedule, or a result without a failure if the schedule does not fail
+   */
+  public static Result shrink(TestCase test, int... schedule) {
+    var result = new Result();
+    var scheduler = new Guided(schedule, null);
+    var failure = run(test, scheduler);
+    result.runs++;
+    result.original = scheduler.schedule();
+    if (failure != null) {
+      shrink(test, result, failure);
+    }
+    return result;
+  }
+
+  /**
+   * Replay a schedule once.
+   *
+   * @param test - the test case
+   * @param schedule - the schedule (three numbers for each context switch)
+   * @throws Throwable - if the run fails
+   */
+  public static void replay(TestCase test, int... schedule) throws Throwable {
+    var failure = run(test, new Guided(schedule, null));
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Drop context switches from a failing schedule while the run still fails: first all the switches
+   * after some switch, then each switch alone, then each switch with the next one.
+   */
+  static void shrink(TestCase test, Result result, Throwable failure) {
+    var schedule = result.original;
+    var shrunk = true;
+    while (shrunk) {
+      shrunk = false;
+      for (var candidate : candidates(schedule)) {
+        var scheduler = new Guided(candidate, null);
+        var f = run(test, scheduler);
+        result.runs++;
+        var followed = scheduler.schedule();
+        if (f != null && f.getClass() == failure.getClass() && followed.length < schedule.length) {
+          failure = f;
+          schedule = followed;
+          shrunk = true;
+          break;
+        }
+      }
+    }
+
+    // replay the shrunk schedule once more, to list its steps
+    var scheduler = new Guided(schedule, null);
+    scheduler.steps = new ArrayList<>();
+    var f = run(test, scheduler);
+    result.runs++;
+    result.failure = f != null ? f : failure;
+    result.schedule = schedule;
+    result.steps = scheduler.steps;
+  }
+
+  /**
+   * @return the schedules with fewer context switches to try, the fewest first
+   */
+  static List<int[]> candidates(int[] schedule) {
+    var candidates = new ArrayList<int[]>();
+    var switches = schedule.length / 3;
+    for (var k = 0; k < switches - 1; k++) {
+      candidates.add(Arrays.copyOf(schedule, 3 * (k + 1)));
+    }
+    for (var k = 0; k < switches; k++) {
+      candidates.add(without(schedule, k, 1));
+    }
+    for (var k = 0; k < switches - 1; k++) {
+      candidates.add(without(schedule, k, 2));
+    }
+    return candidates;
+  }
+
+  /**
+   * @return the schedule without <code>n</code> context switches, from the <code>k</code>th one
+   */
+  static int[] without(int[] schedule, int k, int n) {
+    var candidate = new int[schedule.length - 3 * n];
+    System.arraycopy(schedule, 0, candidate, 0, 3 * k);
+    System.arraycopy(schedule, 3 * (k + n), candidate, 3 * k, schedule.length - 3 * (k + n));
+    return candidate;
+  }
+
+  /**
+   * Run a test case once with a scheduler.
+   *
+   * @return the failure of the run, or null if it passed
+   */
+  static Throwable run(TestCase test, Guided scheduler) {
+    var old = test.scheduler;
+    test.scheduler = scheduler;
+    try {
+      TestFramework.runOnce(test);
+      return null;
+    }
+    catch (Throwable e) {
+      return e;
+    }
+    finally {
+      test.scheduler = old;
+    }
+  }
+
+  /**
+   * A scheduler that makes the context switches of a schedule, and otherwise random decisions
+   * (or, without a random number generator, the default decisions).
+   */
+  static class Guided extends ControlledScheduler {
+    final int[] plan;
+    final boolean[] used;
+    final SplittableRandom random;
+
+    /** The number of scheduling points each thread method has passed */
+    int[] passed = new int[0];
+
+    /** The context switches made, three numbers each */
+    int[] switches = new int[48];
+    int made;
+
+    /** If not null, the steps of the run are listed here */
+    List<String> steps;
+
+    Guided(int[] plan, SplittableRandom random) {
+      if (plan.length % 3 != 0) {
+        throw new IllegalArgumentException("A schedule has three numbers for each context switch");
+      }
+      this.plan = plan;
+      this.used = new boolean[plan.length / 3];
+      this.random = random;
+    }
+
+    @Override
+    synchronized void begin(String[] names) {
+      super.begin(names);
+      passed = new int[names.length];
+    }
+
+    @Override
+    int choose(Slot[] waiting, int count) {
+      // the default: the thread whose turn it was goes on, if it can
+      var preferred = 0;
+      for (var i = 0; i < count; i++) {
+        if (waiting[i].index == current) {
+          preferred = i;
+        }
+      }
+      var at = current < 0 ? 0 : passed[current];
+      var choice = preferred;
+      if (random != null) {
+        choice = random.nextInt(count);
+      } else {
+        for (var k = 0; k < used.length; k++) {
+          if (!used[k] && plan[3 * k] == current && plan[3 * k + 1] == at) {
+            used[k] = true;
+            for (var i = 0; i < count; i++) {
+              if (waiting[i].index == plan[3 * k + 2]) {
+                choice = i;
+              }
+            }
+            break;
+          }
+        }
+      }
+      if (choice != preferred) {
+        if (made == switches.length) {
+          switches = Arrays.copyOf(switches, 2 * made);
+        }
+        switches[made++] = current;
+        switches[made++] = at;
+        switches[made++] = waiting[choice].index;
+      }
+      return choice;
+    }
+
+    @Override
+    void stepped(Slot s) {
+      passed[s.index]++;
+      if (steps != null) {
+        s.location = StackWalker.getInstance().walk(frames -> frames
+          .filter(f -> !f.getClassName().startsWith("edu.umd.cs.mtc."))
+          .findFirst()
+          .map(f -> f.toStackTraceElement().toString())
+          .orElse("a scheduling point"));
+      }
+    }
+
+    @Override
+    void switched(int previous, int next) {
+      if (steps == null) {
+        return;
+      }
+      var to = slots[next].name;
+      String step;
+      if (previous < 0) {
+        step = to + " runs first";
+      } else {
+        var from = slots[previous];
+        if (from.done) {
+          step = from.name + " has ended; " + to + " runs";
+        } else if (from.paused) {
+          step = from.name + " is switched out at " + from.location + "; " + to + " runs";
+        } else {
+          step = from.name + " is blocked; " + to + " runs";
+        }
+      }
+      steps.add(step);
+    }
+
+    /**
+     * @return the context switches made in the run
+     */
+    synchronized int[] schedule() {
+      return Arrays.copyOf(switches, made);
+    }
+
+    @Override
+    String describeRun() {
+      return null; // reported by the shrinker
+    }
+  }
+
+  /**
+   * A failure found by running a test case under random schedules, and its shrunk schedule.
+   */
+  public static class Result {
+    int runs;
+    long seed;
+    Throwable failure;
+    int[] original, schedule;
+    List<String> steps = List.of();
+
+    /** @return the number of runs, including those replaying schedules while shrinking */
+    public int getRuns() { return runs; }
+
+    /** @return the seed of the random run that failed */
+    public long getSeed() { return seed; }
+
+    /** @return the failure of the shrunk schedule, or null if no run failed */
+    public Throwable getFailure() { return failure; }
+
+    /** @return the schedule of the failed run before shrinking */
+    public int[] getOriginalSchedule() { return original; }
+
+    /** @return the shrunk schedule (three numbers for each context switch) */
+    public int[] getSchedule() { return schedule; }
+
+    /** @return the number of context switches in the shrunk schedule */
+    public int getSwitches() { return schedule == null ? 0 : schedule.length / 3; }
+
+    /** @return the steps of the shrunk schedule, one line per thread taking its turn */
+    public List<String> getSteps() { return steps; }
+
+    @Override
+    public String toString() {
+      if (failure == null) {
+        return "No failure in " + runs + " runs";
+      }
+      var s = new StringBuilder();
+      s.append("Failure: ").append(failure);
+      s.append(String.format("%nSchedule shrunk from %d to %d context switches (%d runs)",
+        original.length / 3, schedule.length / 3, runs));
+      for (var i = 0; i < steps.size(); i++) {
+        s.append(String.format("%n  %d. %s", i + 1, steps.get(i)));
+      }
+      var d = Arrays.toString(schedule);
+      s.append(String.format("%nReplay with ScheduleShrinker.replay(test%s%s)", d.length() > 2 ? ", " : "", d.substring(1, d.length() - 1)));
+      return s.toString();
+    }
+  }
+
+}
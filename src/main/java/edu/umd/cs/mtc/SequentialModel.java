@@ -0,0 +1,62 @@
+package edu.umd.cs.mtc;
+
+import java.util.List;
+
+/**
+ * The sequential specification of a concurrent object, against which a {@link History} is checked.
+ *
+ * <p>
+ * A model is a state machine: each operation of the history takes it from one state to the next,
+ * if the operation could have returned its result in that state.
+ * The states must be values: they are never changed once made (each step returns a new state,
+ * or the same one if the operation changes nothing), and they implement <code>equals</code>
+ * and <code>hashCode</code>, so that the checker can recognize a state it has already been in.
+ * For example, a counter whose <code>increment</code> returns the new value:
+ * <pre>
+ * SequentialModel&lt;Integer&gt; counter = new SequentialModel&lt;&gt;() {
+ *   public Integer initial() { return 0; }
+ *   public Integer step(Integer value, History.Operation op) {
+ *     switch (op.getName()) {
+ *     case "increment": return op.getResult().equals(value + 1) ? value + 1 : null;
+ *     case "get": return op.getResult().equals(value) ? value : null;
+ *     default: throw new IllegalArgumentException(op.toString());
+ *     }
+ *   }
+ * };
+ * </pre>
+ *
+ * @param <S> the type of the states
+ *
+ * @see History
+ */
+public interface SequentialModel<S> {
+
+  /**
+   * @return the state of the object before any operation
+   */
+  S initial();
+
+  /**
+   * Apply an operation to a state.
+   *
+   * @param state - the state before the operation
+   * @param op - the operation, with its arguments and result
+   * @return the state after the operation, or null if the operation can not return its result in this state
+   */
+  S step(S state, History.Operation op);
+
+  /**
+   * Split the operations of a history into independent parts, each checked on its own
+   * (P-compositionality): a history is linearizable if each part is.
+   * For example, the operations of a map on different keys are independent,
+   * as long as no operation reads more than one key.
+   * By default, there is one part.
+   *
+   * @param operations - the operations of the history
+   * @return the independent parts
+   */
+  default List<List<History.Operation>> partition(List<History.Operation> operations) {
+    return List.of(operations);
+  }
+
+}
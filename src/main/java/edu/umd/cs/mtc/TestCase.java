@@ -1,12 +1,27 @@
 package edu.umd.cs.mtc;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -21,6 +36,16 @@ import static org.junit.jupiter.api.Assertions.*;
  *
  * Each thread method will be run in a seperate thread.
  *
+ * A thread method may also return a {@link java.util.concurrent.CompletionStage};
+ * its thread then waits for the stage to complete, and fails if the stage fails.
+ * The clock accounts for the asynchronous work of the stages built on {@link #onTick(int)}:
+ * their async methods run on {@link java.util.concurrent.ForkJoinPool#commonPool()}
+ * through a {@link #tickAware(ExecutorService) tick-aware} executor, so the clock does not advance
+ * while they are running. Work on other executors (including the common pool, used directly)
+ * is only accounted for if the executor is tick-aware.
+ * Together with {@link #onTick(int)} this lets asynchronous code be coordinated
+ * without blocking a thread for every step.
+ *
  * <p>
  * A single run of a multithreaded test case consists of:
  * <ol>
@@ -50,9 +75,18 @@ import static org.junit.jupiter.api.Assertions.*;
  * and terminates the test case (unless one of the threads is in state TIMED_WAITING).
  *
  * <p>
+ * The metronome also provides virtual time:
+ * {@link #sleepTicks(int)}, {@link #waitOn(Object, int)} and {@link #awaitOn(Condition, int)}
+ * measure their durations in ticks, so the clock can jump straight to the end of the wait
+ * instead of the test sleeping in real time.
+ *
+ * <p>
  * You can set a command line parameter -Dtunit.trace=true
  * to cause tracing messages to be printed by the metronome frame,
  * or invoke {@link TestCase#setTrace(boolean)} to turn tracing on or off.
+ * The messages are recorded in memory while the test runs and printed when the run is over;
+ * with -Dtunit.trace=failure (or {@link TestCase#setTraceOnlyOnFailure(boolean)})
+ * they are only printed for the runs that fail.
  *
  * <p>
  * You can set command line parameter -Dtunit.runLimit=10
@@ -82,14 +116,39 @@ public abstract class TestCase {
   int clock;
 
   /**
-   * The primary lock to synchronize on in this test case before accessing fields in this class.
+   * The primary lock to hold in this test case before accessing fields in this class.
+   * It is a {@link ReentrantLock} rather than a monitor so that a virtual thread
+   * that waits for it, or for a tick, does not pin its carrier thread.
+   */
+  final ReentrantLock lock = new ReentrantLock();
+
+  /**
+   * Signalled, with {@link #lock} held, when the clock advances or the test case fails.
    */
-  final Object lock = new Object();
+  final Condition tick = lock.newCondition();
 
   /**
-   * If true, the debugging information is printed to standard out while the test runs
+   * If true, debugging information is recorded while the test runs,
+   * and printed to standard out at the end of the run (-Dtunit.trace=true).
    */
-  boolean trace = Boolean.getBoolean("tunit.trace");
+  boolean trace = Boolean.getBoolean("tunit.trace") || "failure".equals(System.getProperty("tunit.trace"));
+
+  /**
+   * If true, the debugging information is only printed for runs that fail (-Dtunit.trace=failure).
+   */
+  boolean traceOnlyOnFailure = "failure".equals(System.getProperty("tunit.trace"));
+
+  /**
+   * If not null, a timeline of each run is recorded,
+   * and the timeline of a failed run is written to a file in this directory (-Dtunit.timeline=dir).
+   */
+  File timeline = System.getProperty("tunit.timeline") == null ? null : new File(System.getProperty("tunit.timeline"));
+
+  /**
+   * The trace of the current (or last) run, or null if it is not traced.
+   * Set with {@link #lock} held before the run starts.
+   */
+  TraceBuffer traceBuffer;
 
   /**
    * This flag is set to true when a test fails due to deadlock or timeout.
@@ -112,6 +171,263 @@ public abstract class TestCase {
     return trace;
   }
 
+  /**
+   * Only print the trace of the runs that fail.
+   * Recording the trace is cheap, so it can stay on for every run
+   * of a test that only fails now and then.
+   *
+   * @param traceOnlyOnFailure - if true, turns tracing on and only prints the trace of failed runs
+   */
+  public void setTraceOnlyOnFailure(boolean traceOnlyOnFailure) {
+    this.traceOnlyOnFailure = traceOnlyOnFailure;
+    if (traceOnlyOnFailure) {
+      trace = true;
+    }
+  }
+
+  /**
+   * @return true if only the trace of failed runs is printed
+   */
+  public boolean getTraceOnlyOnFailure() {
+    return traceOnlyOnFailure;
+  }
+
+  /**
+   * Record a timeline of each run: the states of the threads, the clock ticks,
+   * the waits for ticks, and the failures.
+   * When a run fails, its timeline is written to a new file in <code>directory</code>,
+   * in the trace-event JSON format that trace viewers (such as Perfetto) can open.
+   *
+   * @param directory - the directory to write the timelines of failed runs to, or null to stop recording
+   */
+  public void setTimeline(File directory) {
+    this.timeline = directory;
+  }
+
+  /**
+   * @return the directory the timelines of failed runs are written to, or null if no timeline is recorded
+   */
+  public File getTimeline() {
+    return timeline;
+  }
+
+  /**
+   * Write the timeline of the last run, in trace-event JSON format.
+   * The run must have been recorded with tracing or a timeline turned on.
+   *
+   * @see #setTimeline(File)
+   *
+   * @param out - the writer to write the timeline to
+   * @throws IOException - if writing fails
+   */
+  public void writeTimeline(Writer out) throws IOException {
+    TraceBuffer trace;
+    lock.lock();
+    try {
+      trace = traceBuffer;
+    }
+    finally {
+      lock.unlock();
+    }
+    if (trace == null) {
+      throw new IllegalStateException("The last run was not recorded");
+    }
+    new Timeline(trace).write(out);
+  }
+
+  /**
+   * If true, the threads of a run start their thread methods through a busy-spin gate
+   * (-Dtunit.spinStart=true).
+   */
+  boolean spinStart = Boolean.getBoolean("tunit.spinStart");
+
+  /**
+   * The times ({@link System#nanoTime()}) at which the thread methods of the last run were released.
+   */
+  long[] startTimes = new long[0];
+
+  /**
+   * Start the thread methods of each run as close to simultaneously as possible,
+   * to maximize the contention at the very start of the test.
+   *
+   * <p>
+   * By default the thread methods are released through a latch,
+   * and each thread is woken up separately by the operating system,
+   * so the threads start at noticeably different times.
+   * With a spin start, the threads busy-spin on a shared counter
+   * until all of them have checked in, and then go at once.
+   * This burns a processor per thread while the threads are being started.
+   *
+   * @see #getStartSkew()
+   *
+   * @param spinStart - if true, use a busy-spin gate to start the thread methods
+   */
+  public void setSpinStart(boolean spinStart) {
+    this.spinStart = spinStart;
+  }
+
+  /**
+   * @return true if the thread methods are started through a busy-spin gate
+   */
+  public boolean getSpinStart() {
+    return spinStart;
+  }
+
+  /**
+   * Get the start skew of the last run: the time between the release
+   * of the first and of the last thread method.
+   *
+   * @return the start skew in nanoseconds, or 0 if no thread method was released
+   */
+  public long getStartSkew() {
+    var min = Long.MAX_VALUE;
+    var max = Long.MIN_VALUE;
+    for (var t : startTimes) {
+      if (t == 0) continue; // not released
+      min = Math.min(min, t);
+      max = Math.max(max, t);
+    }
+    return min <= max ? max - min : 0;
+  }
+
+  /**
+   * If not null, the thread methods of each run take turns as this scheduler decides
+   * (a PCT scheduler with -Dtunit.pctDepth=d).
+   */
+  ControlledScheduler scheduler = PctScheduler.fromProperties();
+
+  /**
+   * Schedule the thread methods of each run with a probabilistic concurrency testing scheduler:
+   * the calls to {@link #mayYield()} and the returns from {@link #waitForTick(int)} become
+   * scheduling points where only the highest-priority thread goes on,
+   * so that each run hits a bug of a given depth with a known probability.
+   *
+   * @see PctScheduler
+   *
+   * @param pct - the scheduler, or null to let the threads run freely
+   */
+  public void setPct(PctScheduler pct) {
+    this.scheduler = pct;
+  }
+
+  /**
+   * @return the PCT scheduler of the thread methods, or null if they run freely
+   */
+  public PctScheduler getPct() {
+    return scheduler instanceof PctScheduler pct ? pct : null;
+  }
+
+  /**
+   * If not null, the history of the operations of each run, checked for linearizability after the run.
+   */
+  volatile History history;
+
+  /**
+   * Check each run for linearizability: the history is cleared before the run,
+   * the thread methods record their operations in it,
+   * and it is checked against its model after the finish method.
+   *
+   * @see History
+   *
+   * @param history - the history, or null not to check
+   */
+  public void setHistory(History history) {
+    this.history = history;
+  }
+
+  /**
+   * @return the history of the operations of each run, or null if the runs are not checked
+   */
+  public History getHistory() {
+    return history;
+  }
+
+  /**
+   * If not null, the order in which the threads acquire locks, checked for cycles after each run
+   * (-Dtunit.lockOrder=true).
+   */
+  volatile LockOrderGraph lockOrder = LockOrderGraph.fromProperties();
+
+  /**
+   * Record the order in which the threads of the runs acquire locks, and fail the run
+   * that makes a cycle (a potential deadlock), whether or not it deadlocked.
+   * The locks are those wrapped by the graph, and with the {@link YieldAgent},
+   * those of the instrumented classes.
+   *
+   * @see LockOrderGraph
+   *
+   * @param lockOrder - the graph, kept over all the runs, or null not to record
+   */
+  public void setLockOrder(LockOrderGraph lockOrder) {
+    this.lockOrder = lockOrder;
+  }
+
+  /**
+   * @return the lock-order graph of the runs, or null if they are not recorded
+   */
+  public LockOrderGraph getLockOrder() {
+    return lockOrder;
+  }
+
+  /**
+   * If not null, the data races between the thread methods are detected in each run
+   * (-Dtunit.raceDetector=true).
+   */
+  volatile RaceDetector raceDetector = RaceDetector.fromProperties();
+
+  /**
+   * Detect the data races between the thread methods of each run, and fail the run
+   * in which a new race is found, whether or not it went wrong.
+   * The detector is fed by the hooks of the {@link YieldAgent}.
+   *
+   * @see RaceDetector
+   *
+   * @param raceDetector - the detector, or null not to detect races
+   */
+  public void setRaceDetector(RaceDetector raceDetector) {
+    this.raceDetector = raceDetector;
+  }
+
+  /**
+   * @return the race detector of the runs, or null if races are not detected
+   */
+  public RaceDetector getRaceDetector() {
+    return raceDetector;
+  }
+
+  /**
+   * If not null, the virtual threads that pin their carrier are detected in each run
+   * (-Dtunit.pinning=fail or true).
+   */
+  volatile PinningDetector pinning = PinningDetector.fromProperties();
+
+  /**
+   * Detect the virtual threads started by the thread methods that pin their carrier thread
+   * (or that cannot be scheduled) in each run, from the JFR events of the run.
+   *
+   * @see PinningDetector
+   *
+   * @param pinning - the detector, or null not to detect pinning
+   */
+  public void setPinning(PinningDetector pinning) {
+    this.pinning = pinning;
+  }
+
+  /**
+   * @return the pinning detector of the runs, or null if pinning is not detected
+   */
+  public PinningDetector getPinning() {
+    return pinning;
+  }
+
+  /**
+   * Set while the test case runs as a benchmark: there is no clock,
+   * and waiting for a tick (or for virtual time to pass) returns immediately.
+   *
+   * @see Benchmark
+   */
+  volatile boolean benchmarking;
+
   // -- Thread Management --
 
   /**
@@ -119,6 +435,42 @@ public abstract class TestCase {
    */
   final Map<Thread, Integer> threads = new IdentityHashMap<>();
 
+  /**
+   * Count the threads waiting for each tick,
+   * so that the clock thread can find the next tick without looking at every thread.
+   *
+   * @see #nextTick()
+   */
+  final TreeMap<Integer, Integer> tickDemand = new TreeMap<>();
+
+  /**
+   * Record the tick a thread is waiting for in {@link #threads} and {@link #tickDemand}.
+   * Called with {@link #lock} held.
+   *
+   * @param t - the thread
+   * @param c - the tick it waits for, or null to forget the thread
+   */
+  void setWaitingFor(Thread t, Integer c) {
+    var old = c == null ? threads.remove(t) : threads.put(t, c);
+    if (old != null && old > 0) {
+      tickDemand.compute(old, (k, n) -> n == null || n == 1 ? null : n - 1);
+    }
+    if (c != null && c > 0) {
+      tickDemand.merge(c, 1, Integer::sum);
+    }
+  }
+
+  /**
+   * Get the next tick (after the current one) that a thread is waiting for.
+   * Called with {@link #lock} held.
+   *
+   * @return the next tick, or Integer.MAX_VALUE if no thread is waiting for a tick
+   */
+  int nextTick() {
+    var next = tickDemand.higherKey(clock);
+    return next == null ? Integer.MAX_VALUE : next;
+  }
+
   /**
    * ThreadLocal containing a reference to the current instance of this class for each thread.
    * When a thread completes or dies, its reference to this class is removed.
@@ -131,9 +483,14 @@ public abstract class TestCase {
    */
   void hello() {
     currentTestCase.set(this);
-    synchronized (lock) {
+    YieldHooks.active.incrementAndGet();
+    lock.lock();
+    try {
       var currentThread = Thread.currentThread();
-      threads.put(currentThread, 0);
+      setWaitingFor(currentThread, 0);
+    }
+    finally {
+      lock.unlock();
     }
   }
 
@@ -142,10 +499,19 @@ public abstract class TestCase {
    * It cleans out {@link #currentTestCase} and {@link #threads}.
    */
   void goodbye() {
-    synchronized (lock) {
+    var races = YieldHooks.races();
+    lock.lock();
+    try {
+      if (races != null) {
+        races.waitingForTick(); // a thread that has ended is ordered before the next tick too
+      }
       var currentThread = Thread.currentThread();
-      threads.remove(currentThread);
+      setWaitingFor(currentThread, null);
+    }
+    finally {
+      lock.unlock();
     }
+    YieldHooks.active.decrementAndGet();
     currentTestCase.set(null);
   }
 
@@ -174,9 +540,13 @@ public abstract class TestCase {
    * @return - the thread corresponding to methodName
    */
   public Thread getThreadByName(String methodName) {
-    synchronized (lock) {
+    lock.lock();
+    try {
       return methodThreads.get(methodName);
     }
+    finally {
+      lock.unlock();
+    }
   }
 
   /**
@@ -204,9 +574,74 @@ public abstract class TestCase {
    * the old thread is returned, otherwise null is returned
    */
   public Thread putThread(String methodName, Thread t) {
-    synchronized (lock) {
+    lock.lock();
+    try {
       return methodThreads.put(methodName, t);
     }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  // -- Executors --
+
+  /**
+   * The tasks submitted to a tick-aware executor in this run that have not started yet.
+   *
+   * @see #tickAware(ExecutorService)
+   */
+  final Set<TickAwareExecutorService.Task<?>> pendingTasks = ConcurrentHashMap.newKeySet();
+
+  /**
+   * The threads (outside the thread group of the test case) currently running a task
+   * for a tick-aware executor. The clock thread examines them like the test case threads.
+   *
+   * @see #tickAware(ExecutorService)
+   */
+  final Set<Thread> workers = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Wrap an executor so that the clock accounts for the tasks it runs.
+   *
+   * <p>
+   * Code under test that hands work to an executor (for example
+   * {@link java.util.concurrent.ForkJoinPool#commonPool()} or an injected pool)
+   * runs it on threads the clock thread would not otherwise see.
+   * With the wrapped executor, the clock does not advance and no deadlock is declared
+   * while tasks are waiting to run, and the threads running them are examined
+   * like the test case threads.
+   *
+   * @param executor - the executor to wrap
+   * @return an executor that forwards all its tasks to <code>executor</code>
+   */
+  public ExecutorService tickAware(ExecutorService executor) {
+    return new TickAwareExecutorService(this, executor);
+  }
+
+  /**
+   * Discard the tasks of the tick-aware executors that have not started,
+   * so that they never run, and forget the workers:
+   * called by the framework before and after each run, so that no task outlives its run.
+   */
+  void discardTasks() {
+    for (var task : pendingTasks) {
+      task.cancel();
+    }
+    pendingTasks.clear();
+    workers.clear();
+  }
+
+  /**
+   * Wrap a scheduled executor so that the clock accounts for the tasks it runs.
+   * A delayed task counts as in flight until it runs or is cancelled.
+   *
+   * @see #tickAware(ExecutorService)
+   *
+   * @param executor - the executor to wrap
+   * @return an executor that forwards all its tasks to <code>executor</code>
+   */
+  public ScheduledExecutorService tickAware(ScheduledExecutorService executor) {
+    return new TickAwareScheduledExecutorService(this, executor);
   }
 
   // -- Clock tick management --
@@ -218,14 +653,22 @@ public abstract class TestCase {
    * @param c - the tick value to wait for
    */
   public void waitForTick(int c) {
-    synchronized (lock) {
-      threads.put(Thread.currentThread(), c);
+    if (benchmarking) {
+      return;
+    }
+    var races = YieldHooks.races();
+    lock.lock();
+    try {
+      if (races != null) {
+        races.waitingForTick(); // a tick orders what happened before it in any thread before what follows
+      }
+      setWaitingFor(Thread.currentThread(), c);
+      if (traceBuffer != null && clock < c) {
+        traceBuffer.record(TraceBuffer.WAIT_FOR_TICK, c);
+      }
       while (!failed && clock < c)
         try {
-          if (getTrace()) {
-            System.out.println(Thread.currentThread().getName() + " is waiting for time " + c);
-          }
-          lock.wait();
+          tick.await();
         }
         catch (InterruptedException e) {
           throw new AssertionError(e);
@@ -233,10 +676,20 @@ public abstract class TestCase {
       if (failed) {
         throw new IllegalStateException("Clock never reached " + c);
       }
-      if (getTrace()) {
-        System.out.println("Releasing " + Thread.currentThread().getName() + " at time " + clock);
+      if (traceBuffer != null) {
+        traceBuffer.record(TraceBuffer.RELEASED, clock);
+      }
+      if (races != null) {
+        races.releasedAtTick(c);
       }
     }
+    finally {
+      lock.unlock();
+    }
+    var scheduler = this.scheduler;
+    if (scheduler != null) {
+      scheduler.yieldPoint();
+    }
   }
 
   /**
@@ -251,6 +704,103 @@ public abstract class TestCase {
     waitForTick(e.ordinal()+1);
   }
 
+  /**
+   * The default executor of the futures of {@link #onTick(int)}:
+   * the common pool, with its tasks accounted for by the clock.
+   */
+  final ExecutorService asyncExecutor = tickAware(ForkJoinPool.commonPool());
+
+  /**
+   * A future of {@link #onTick(int)}, whose dependent stages
+   * run their async methods on {@link #asyncExecutor} by default.
+   */
+  class TickFuture<T> extends CompletableFuture<T> {
+    @Override
+    public Executor defaultExecutor() {
+      return asyncExecutor;
+    }
+
+    @Override
+    public <U> CompletableFuture<U> newIncompleteFuture() {
+      return new TickFuture<>();
+    }
+  }
+
+  /**
+   * Futures returned by {@link #onTick(int)} that are not complete yet, by tick.
+   */
+  final TreeMap<Integer, List<CompletableFuture<Void>>> tickFutures = new TreeMap<>();
+
+  /**
+   * A non-blocking version of {@link #waitForTick(int)}, for asynchronous code.
+   *
+   * The returned future completes when the thread metronome reaches the specified value,
+   * or completes exceptionally if the test case fails first.
+   * Until then it counts as waiting for that tick, just like a thread in <code>waitForTick</code>,
+   * so no thread has to be held to wait for the tick.
+   *
+   * <p>
+   * The future is completed by the clock thread:
+   * dependent actions that are not asynchronous run in the clock thread
+   * and must not block. Asynchronous ones run on the common pool by default,
+   * and the clock does not advance while they are pending or running.
+   *
+   * @param c - the tick value to wait for
+   * @return a future that completes at tick <code>c</code>
+   */
+  public CompletableFuture<Void> onTick(int c) {
+    var f = new TickFuture<Void>();
+    lock.lock();
+    try {
+      if (benchmarking) {
+        f.complete(null);
+      }
+      else if (failed) {
+        f.completeExceptionally(new IllegalStateException("Clock never reached " + c));
+      }
+      else if (clock >= c) {
+        f.complete(null);
+      }
+      else {
+        tickFutures.computeIfAbsent(c, k -> new ArrayList<>()).add(f);
+        tickDemand.merge(c, 1, Integer::sum);
+      }
+    }
+    finally {
+      lock.unlock();
+    }
+    return f;
+  }
+
+  /**
+   * An Enum-based version of onTick.
+   *
+   * @see #onTick(int)
+   *
+   * @param e - An Enum representing the tick to wait for. The first enumeration constant represents tick 1, the second is tick 2, etc.
+   * @return a future that completes at the tick represented by <code>e</code>
+   */
+  public CompletableFuture<Void> onTick(Enum<?> e) {
+    return onTick(e.ordinal()+1);
+  }
+
+  /**
+   * Remove the futures for the ticks up to <code>c</code> from {@link #tickFutures}.
+   * Called with {@link #lock} held; the caller completes them after releasing it.
+   *
+   * @return the removed futures
+   */
+  List<CompletableFuture<Void>> takeTickFutures(int c) {
+    var due = new ArrayList<CompletableFuture<Void>>();
+    var head = tickFutures.headMap(c, true);
+    for (var e : head.entrySet()) {
+      due.addAll(e.getValue());
+      tickDemand.compute(e.getKey(), (k, n) -> n == null || n <= e.getValue().size() ? null : n - e.getValue().size());
+    }
+    head.clear();
+    return due;
+  }
+
   /**
    * Gets the current value of the thread metronome.
    * Primarily useful in assert statements.
@@ -260,9 +810,13 @@ public abstract class TestCase {
    * @return the current tick value
    */
   public int getTick() {
-    synchronized (lock) {
+    lock.lock();
+    try {
       return clock;
     }
+    finally {
+      lock.unlock();
+    }
   }
 
   /**
@@ -271,9 +825,29 @@ public abstract class TestCase {
    * @param tick - a number >= 0
    */
   public void assertTick(int tick) {
+    if (benchmarking) {
+      return; // there is no clock
+    }
     assertEquals(tick, getTick());
   }
 
+  // -- Virtual time --
+
+  /**
+   * Sleep for <code>ticks</code> ticks of the metronome.
+   *
+   * Unlike {@link Thread#sleep(long)}, this takes no real time:
+   * once all other threads are blocked,
+   * the clock jumps straight to the end of the sleep.
+   *
+   * @param ticks - the number of ticks to sleep
+   */
+  public void sleepTicks(int ticks) {
+    if (ticks > 0) {
+      waitForTick(getTick() + ticks);
+    }
+  }
+
   // -- Components for freezing the clock --
 
   /**
@@ -338,44 +912,253 @@ public abstract class TestCase {
   }
 
   /**
-   * This method is a replacement for {@link Object#wait()}.
+   * A thread blocked in one of the customized wait functions,
+   * and whether the framework has woken it up.
+   */
+  static class Waiter {
+    final int deadline;
+    boolean woken;
+
+    Waiter(int deadline) {
+      this.deadline = deadline;
+    }
+  }
+
+  /**
+   * Map each thread blocked in a customized wait function to its {@link Waiter}.
    *
-   * It suppresses the {@link InterruptedException}
-   * that you would otherwise have to deal with,
-   * and allows automated skipping of the next wait.
+   * @see #waitOn(Object)
+   * @see #awaitOn(Condition)
+   */
+  final Map<Thread, Waiter> waiters = new IdentityHashMap<>();
+
+  /**
+   * Register the current thread as blocked in a customized wait function.
    *
-   * The method {@link #skipNextWait()} will force that thread
-   * to immediately return from the next call to this method.
+   * If <code>deadline</code> is not negative the clock thread counts it as a tick to advance to,
+   * and wakes the thread when the clock gets there;
+   * otherwise the thread is woken whenever the clock advances.
+   */
+  Waiter startWait(int deadline) {
+    lock.lock();
+    try {
+      var waiter = new Waiter(deadline);
+      var currentThread = Thread.currentThread();
+      waiters.put(currentThread, waiter);
+      if (deadline >= 0) {
+        setWaitingFor(currentThread, deadline);
+      }
+      if (failed) {
+        wake(currentThread, waiter);
+      }
+      return waiter;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Unregister the current thread after a customized wait,
+   * clearing an interrupt the framework may have delivered after the wait already returned.
+   */
+  void endWait(Waiter waiter) {
+    lock.lock();
+    try {
+      var currentThread = Thread.currentThread();
+      waiters.remove(currentThread);
+      setWaitingFor(currentThread, 0);
+      if (waiter.woken) {
+        Thread.interrupted();
+      }
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Wake up a thread blocked in a customized wait function,
+   * by interrupting it. Called with {@link #lock} held.
+   */
+  void wake(Thread t, Waiter waiter) {
+    if (!waiter.woken) {
+      waiter.woken = true;
+      t.interrupt();
+    }
+  }
+
+  /**
+   * Wake up the waiting threads after the clock has advanced:
+   * those whose deadline has been reached and those without a deadline.
+   * Called by the clock thread, with {@link #lock} held.
+   */
+  void wakeWaiters() {
+    for (var e : waiters.entrySet()) {
+      var waiter = e.getValue();
+      if (waiter.deadline <= clock) {
+        wake(e.getKey(), waiter);
+      }
+    }
+  }
+
+  /**
+   * Wake up the threads blocked in a customized wait function without a deadline:
+   * a spurious wakeup, which lets a retry loop recheck its condition
+   * after a missed notification.
+   * Called by the clock thread, with {@link #lock} held.
    *
-   * Designing your tests so that they work even if {@link Object#wait()}
-   * occasionally returns immediately will make your code much more robust
-   * in face of several potential threading issues.
+   * @return true if any thread was woken up
+   */
+  boolean wakeUntimedWaiters() {
+    var any = false;
+    for (var e : waiters.entrySet()) {
+      var waiter = e.getValue();
+      if (waiter.deadline < 0 && !waiter.woken) {
+        wake(e.getKey(), waiter);
+        any = true;
+      }
+    }
+    return any;
+  }
+
+  /**
+   * Mark this test case as failed, and wake up every thread
+   * waiting for a tick or blocked in a customized wait function,
+   * so that none of them lingers after a failure or cancellation.
+   */
+  void signalFailure() {
+    List<CompletableFuture<Void>> due;
+    lock.lock();
+    try {
+      failed = true;
+      tick.signalAll();
+      for (var e : waiters.entrySet()) {
+        wake(e.getKey(), e.getValue());
+      }
+      due = takeTickFutures(Integer.MAX_VALUE);
+    }
+    finally {
+      lock.unlock();
+    }
+    for (var f : due) {
+      f.completeExceptionally(new IllegalStateException("Test case has failed"));
+    }
+    var scheduler = this.scheduler;
+    if (scheduler != null) {
+      scheduler.release();
+    }
+  }
+
+  /**
+   * Something a customized wait function blocks on.
+   */
+  interface Blocker {
+    /**
+     * @param millis - the time limit of the wait in milliseconds, or 0 for no time limit
+     */
+    void block(long millis) throws InterruptedException;
+  }
+
+  /**
+   * The time limit (in ms) of a customized wait that the framework can not wake up:
+   * outside of a thread method, or in a benchmark.
+   */
+  static final long UNTRACKED_WAIT = 3000;
+
+  /**
+   * Block the current thread in a customized wait function.
    *
-   * @param o - the object to wait on
+   * In a test case thread the wait is registered with the test case,
+   * so that a failure, a cancellation or an advance of the clock wakes it up promptly.
+   *
+   * @param deadline - the tick at which the wait times out, or -1 for no time limit
+   * @param blocker - performs the actual wait
+   * @return false if the clock reached the deadline, true otherwise
    */
-  public static void waitOn(Object o) {
-    // System.out.println("About to wait on " + System.identityHashCode(o));
+  static boolean waitFor(int deadline, Blocker blocker) {
     var thisTestCase = currentTestCase.get();
     if (thisTestCase != null && thisTestCase.failed) {
       throw new RuntimeException("Test case has failed");
     }
     if (skipNextWait.get()) {
       skipNextWait.set(false);
-      return;
+      return true;
     }
+    if (thisTestCase != null && thisTestCase.benchmarking && deadline >= 0) {
+      return false; // the clock does not run in a benchmark, so the deadline is reached at once
+    }
+    if (thisTestCase == null || thisTestCase.benchmarking) {
+      try {
+        blocker.block(UNTRACKED_WAIT); // nothing wakes this thread if a notification is missed
+      }
+      catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+      return true;
+    }
+    var waiter = thisTestCase.startWait(deadline);
+    InterruptedException interrupted = null;
     try {
-      o.wait(3000);
+      blocker.block(0);
     }
     catch (InterruptedException e) {
-      throw new AssertionError(e);
+      interrupted = e;
     }
-    catch (IllegalMonitorStateException e) {
-      System.out.println("Got illegal monitor state exception");
+    finally {
+      thisTestCase.endWait(waiter);
     }
-    if (thisTestCase != null && thisTestCase.failed) {
+    if (thisTestCase.failed) {
       throw new RuntimeException("Test case has failed");
     }
-    // System.out.println("waited on " + System.identityHashCode(o));
+    if (interrupted != null && !waiter.woken) {
+      throw new AssertionError(interrupted);
+    }
+    return deadline < 0 || thisTestCase.getTick() < deadline;
+  }
+
+  /**
+   * The current test case, which must exist for the timed wait functions.
+   */
+  static TestCase requireTestCase() {
+    var thisTestCase = currentTestCase.get();
+    if (thisTestCase == null) {
+      throw new IllegalStateException("Virtual time is only available in a thread method");
+    }
+    return thisTestCase;
+  }
+
+  /**
+   * This method is a replacement for {@link Object#wait()}.
+   *
+   * It suppresses the {@link InterruptedException}
+   * that you would otherwise have to deal with,
+   * and allows automated skipping of the next wait.
+   *
+   * The method {@link #skipNextWait()} will force that thread
+   * to immediately return from the next call to this method.
+   *
+   * Designing your tests so that they work even if {@link Object#wait()}
+   * occasionally returns immediately will make your code much more robust
+   * in face of several potential threading issues.
+   *
+   * <p>
+   * In a thread method, the wait also returns when the clock advances,
+   * or spuriously when all threads are blocked, before a deadlock is declared,
+   * and throws promptly when the test case fails;
+   * anywhere else (or in a benchmark) it returns after at most 3 seconds.
+   *
+   * @param o - the object to wait on
+   */
+  public static void waitOn(Object o) {
+    waitFor(-1, millis -> {
+      try {
+        o.wait(millis);
+      }
+      catch (IllegalMonitorStateException e) {
+        System.out.println("Got illegal monitor state exception");
+      }
+    });
   }
 
   /**
@@ -392,29 +1175,62 @@ public abstract class TestCase {
    * occasionally returns immediately will make your code
    * much more robust in face of several potential threading issues.
    *
+   * <p>
+   * In a thread method, the wait also returns when the clock advances,
+   * or spuriously when all threads are blocked, before a deadlock is declared,
+   * and throws promptly when the test case fails;
+   * anywhere else (or in a benchmark) it returns after at most 3 seconds.
+   *
    * @param c - the condition to await on
    */
   public static void awaitOn(Condition c) {
-    var thisTestCase = currentTestCase.get();
-    if (thisTestCase != null && thisTestCase.failed) {
-      throw new RuntimeException("Test case has failed");
-    }
-    if (skipNextWait.get()) {
-      skipNextWait.set(false);
-      return;
-    }
-    try {
-      c.await(3, TimeUnit.SECONDS);
-    }
-    catch (InterruptedException e) {
-      if (thisTestCase != null && thisTestCase.failed) {
-        throw new RuntimeException("Test case has failed");
+    waitFor(-1, millis -> {
+      if (millis == 0) {
+        c.await();
+      } else {
+        c.await(millis, TimeUnit.MILLISECONDS);
       }
-      throw new AssertionError(e);
-    }
-    if (thisTestCase != null && thisTestCase.failed) {
-      throw new RuntimeException("Test case has failed");
-    }
+    });
+  }
+
+  /**
+   * This method is a replacement for {@link Object#wait(long)},
+   * with the time limit measured in ticks of the metronome.
+   *
+   * While waiting, the thread counts as waiting for the tick <code>getTick() + ticks</code>:
+   * once all threads are blocked, the clock jumps straight to that tick
+   * and the wait returns.
+   * It may also return early when <code>o</code> is notified, or spuriously.
+   *
+   * The method {@link #skipNextWait()} will force that thread
+   * to immediately return from the next call to this method.
+   *
+   * @param o - the object to wait on
+   * @param ticks - the maximum number of ticks to wait
+   * @return false if the clock reached the end of the wait, true otherwise
+   */
+  public static boolean waitOn(Object o, int ticks) {
+    return waitFor(requireTestCase().getTick() + ticks, millis -> o.wait(millis));
+  }
+
+  /**
+   * This method is a replacement for {@link Condition#await(long, java.util.concurrent.TimeUnit)},
+   * with the time limit measured in ticks of the metronome.
+   *
+   * While waiting, the thread counts as waiting for the tick <code>getTick() + ticks</code>:
+   * once all threads are blocked, the clock jumps straight to that tick
+   * and the wait returns.
+   * It may also return early when <code>c</code> is signalled, or spuriously.
+   *
+   * The method {@link #skipNextWait()} will force that thread
+   * to immediately return from the next call to this method.
+   *
+   * @param c - the condition to await on
+   * @param ticks - the maximum number of ticks to wait
+   * @return false if the clock reached the end of the wait, true otherwise
+   */
+  public static boolean awaitOn(Condition c, int ticks) {
+    return waitFor(requireTestCase().getTick() + ticks, millis -> c.await());
   }
 
   // -- Experimental --
@@ -444,12 +1260,57 @@ public abstract class TestCase {
    * Calling this method from one of the test threads may cause the thread to yield.
    * Use this between statements to generate more interleavings.
    *
+   * <p>
+   * With a PCT scheduler (see {@link #setPct(PctScheduler)}), or while a {@link ScheduleExplorer}
+   * runs the test case, this is a scheduling point in a thread method,
+   * and the scheduler decides whether the thread goes on; <code>probability</code> is ignored.
+   *
    * @param probability - (a number between 0 and 1) the likelihood that Thread.yield() is called
    */
   public void mayYield(double probability) {
+    var scheduler = this.scheduler;
+    if (scheduler != null && scheduler.yieldPoint()) {
+      return;
+    }
     if (mtcRandomizer.get().nextDouble() < probability) {
       Thread.yield();
     }
   }
 
+  /**
+   * The likelihood that a thread method yields at a yield point inserted by the {@link YieldAgent}
+   * (-Dtunit.autoYield=p).
+   */
+  double autoYield = Double.parseDouble(System.getProperty("tunit.autoYield", "0.1"));
+
+  /**
+   * Set the likelihood that a thread method yields at each of the yield points
+   * that the {@link YieldAgent} inserts before field accesses and synchronization actions.
+   * These yield points are far more frequent than calls to {@link #mayYield()},
+   * so the likelihood is lower (0.1 by default).
+   * With a PCT scheduler, every inserted yield point is a scheduling point, and the likelihood is ignored.
+   *
+   * @param probability - (a number between 0 and 1) the likelihood that Thread.yield() is called
+   */
+  public void setAutoYield(double probability) {
+    this.autoYield = probability;
+  }
+
+  /**
+   * @return the likelihood that a thread method yields at a yield point inserted by the {@link YieldAgent}
+   */
+  public double getAutoYield() {
+    return autoYield;
+  }
+
+  /**
+   * A yield point inserted by the {@link YieldAgent}, reached in a thread method of this test case.
+   */
+  void autoYield() {
+    if (benchmarking) {
+      return; // measure the code as written
+    }
+    mayYield(autoYield);
+  }
+
 }
@@ -1,21 +1,39 @@
 package edu.umd.cs.mtc;
 
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 
 import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
 
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 
+import java.nio.file.Files;
+
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class provides static methods to perform a {@link TestCase}.
@@ -37,6 +55,9 @@ import java.util.concurrent.TimeUnit;
  *
  * If all threads are blocked and at least one is waiting for a tick,
  * the clock thread advances the clock to the next desired tick.
+ * A thread in a virtual time wait ({@link TestCase#waitOn(Object, int)},
+ * {@link TestCase#awaitOn(java.util.concurrent.locks.Condition, int)})
+ * counts as waiting for the tick at the end of its wait.
  *
  * (A slight delay -- about a clock period -- is applied before advancing
  * the clock to ensure that this is not done prematurely and
@@ -56,6 +77,9 @@ import java.util.concurrent.TimeUnit;
  * All threads in the thread group will be considered by the clock thread
  * when deciding whether to advance the clock, declare a deadlock,
  * or stop a long-running test.
+ * So will the threads running tasks for an executor wrapped with
+ * {@link TestCase#tickAware(java.util.concurrent.ExecutorService)},
+ * and tasks waiting to run in such an executor count as progress.
  *
  * <p>
  * The framework catches exceptions thrown in the threads
@@ -67,11 +91,23 @@ import java.util.concurrent.TimeUnit;
  * Set command line parameter -Dtunit.runLimit=<em>n</em>
  * to cause a test case to fail if at least one thread stays in a runnable state
  * for more than <em>n</em> seconds without becoming blocked or waiting for a metronome tick.
+ * The garbage collection pauses of the JVM do not count towards the limit, and the failure
+ * tells how much CPU time each thread got, to tell a thread that spins from one that is starved.
  *
  * Set command line parameter -Dtunit.clockPeriod=<em>p</em>
  * to cause the clock thread to check the status of all the threads
  * every <em>p</em> milliseconds.
  *
+ * Set command line parameter -Dtunit.shutdownLimit=<em>m</em>
+ * to give the threads of a failed test case <em>m</em> milliseconds to end
+ * after they are interrupted; threads that ignore the interrupt are quarantined
+ * (see {@link #getQuarantinedThreads()}) instead of hanging the test run.
+ *
+ * Set command line parameter -Dtunit.clockThreads=<em>k</em>
+ * to drive the clocks of all the runs from a shared scheduler with <em>k</em> threads,
+ * instead of starting a clock thread for every run;
+ * this helps when many test cases run in parallel.
+ *
  * @see TestCase
  * @see #runOnce(TestCase)
  * @see #runManyTimes(TestCase, int)
@@ -92,6 +128,17 @@ public class TestFramework {
    */
   public static final String RUNLIMIT_KEY = "tunit.runLimit";
 
+  /**
+   * Command line key for indicating the time limit (in milliseconds) for threads to end after a failure.
+   */
+  public static final String SHUTDOWNLIMIT_KEY = "tunit.shutdownLimit";
+
+  /**
+   * Command line key for indicating the number of threads of the shared clock scheduler
+   * (0 to give each run a clock thread of its own).
+   */
+  public static final String CLOCKTHREADS_KEY = "tunit.clockThreads";
+
   /**
    * The default clock period in milliseconds
    */
@@ -102,6 +149,16 @@ public class TestFramework {
    */
   public static final Integer DEFAULT_RUNLIMIT = 5;
 
+  /**
+   * The default shutdown limit in milliseconds
+   */
+  public static final Integer DEFAULT_SHUTDOWNLIMIT = 1000;
+
+  /**
+   * The default number of threads of the shared clock scheduler: each run has a clock thread of its own
+   */
+  public static final Integer DEFAULT_CLOCKTHREADS = 0;
+
   /**
    * Change/set the system property for the clock period
    * @param v - the new value for the clock period
@@ -120,6 +177,45 @@ public class TestFramework {
     System.setProperty(RUNLIMIT_KEY, Integer.toString(v));
   }
 
+  /**
+   * Change/set the system property for the number of threads of the shared clock scheduler
+   * @param v - the new value for the number of clock threads (0 for a clock thread per run)
+   */
+  public static void setGlobalClockThreads(int v) {
+    if (v < 0) v = 0;
+    System.setProperty(CLOCKTHREADS_KEY, Integer.toString(v));
+  }
+
+  /**
+   * Change/set the system property for the shutdown limit
+   * @param v - the new value for the shutdown limit
+   */
+  public static void setGlobalShutdownLimit(int v) {
+    if (v < 0) v = 0;
+    System.setProperty(SHUTDOWNLIMIT_KEY, Integer.toString(v));
+  }
+
+  /**
+   * Threads that did not end within the shutdown limit after a failure.
+   *
+   * @see #getQuarantinedThreads()
+   */
+  static final List<Thread> quarantined = new ArrayList<>();
+
+  /**
+   * Get the threads that did not end within the shutdown limit after a test case failed.
+   * The framework has given up on these threads; they may still be running
+   * (at minimum priority) and may still modify the state of their test case.
+   *
+   * @return the quarantined threads that are still alive
+   */
+  public static List<Thread> getQuarantinedThreads() {
+    synchronized (quarantined) {
+      quarantined.removeIf(t -> !t.isAlive());
+      return new ArrayList<>(quarantined);
+    }
+  }
+
 
   /**
    * Run multithreaded test case multiple times
@@ -245,26 +341,164 @@ public class TestFramework {
     if (fixture.setUp != null) {
       fixture.setUp.invoke(test); // test.initialize()
     }
-    test.clock = 0;
+    List<CompletableFuture<Void>> stale;
+    test.lock.lock();
+    try {
+      test.clock = 0;
+      test.failed = false;
+      test.threads.clear();
+      stale = test.takeTickFutures(Integer.MAX_VALUE); // left by a previous run
+      test.tickDemand.clear();
+      test.discardTasks();
+      test.traceBuffer = test.getTrace() || test.getTimeline() != null ? new TraceBuffer() : null;
+    } finally {
+      test.lock.unlock();
+    }
+    for (var f : stale) {
+      f.completeExceptionally(new IllegalStateException("Test case run has ended"));
+    }
+    var trace = test.traceBuffer;
+    var scheduler = test.scheduler;
+    var history = test.history;
+    if (history != null) {
+      history.clear();
+    }
+    var races = test.raceDetector;
+    if (races != null) {
+      races.begin();
+    }
+    var pinning = test.pinning;
+    if (pinning != null) {
+      pinning.begin(fixture.id);
+    }
+    Clock clock = null;
+
+    try {
+      if (scheduler != null) {
+        scheduler.begin(fixture.id);
+      }
 
-    // invoke each thread method in a separate thread and place all threads in a new thread group
-    var threadGroup = startMethodThreads(test, fixture, threads, error);
+      // invoke each thread method in a separate thread and place all threads in a new thread group
+      var threadGroup = startMethodThreads(test, fixture, threads, error);
+
+      // start the clock, in a clock thread of its own (which is added to the threads)
+      // or on the shared clock scheduler
+      clock = new Clock(test, threadGroup, Thread.currentThread(), error, clockPeriod, runLimit);
+      var clockThreads = Integer.getInteger(CLOCKTHREADS_KEY, DEFAULT_CLOCKTHREADS);
+      if (clockThreads > 0) {
+        clock.schedule(ClockScheduler.get(clockThreads));
+      } else {
+        threads.add(startClock(clock));
+      }
 
-    // start and add clock thread
-    threads.add(startClock(test, threadGroup, error, clockPeriod, runLimit));
+      // wait until all threads have ended
+      waitForMethodThreads(test, threadGroup, threads, error, clock);
 
-    // wait until all threads have ended
-    waitForMethodThreads(threads, error);
+      // invoke finish at the end of each run
+      if (fixture.tearDown != null) {
+        fixture.tearDown.invoke(test); // test.finish()
+      }
 
-    // invoke finish at the end of each run
-    if (fixture.tearDown != null) {
-      fixture.tearDown.invoke(test); // test.finish()
+      // check that the operations of the run are linearizable
+      if (history != null) {
+        history.assertLinearizable();
+      }
+
+      // report the lock-order cycles the run has made
+      var lockOrder = test.lockOrder;
+      if (lockOrder != null) {
+        lockOrder.check();
+      }
+
+      // report the data races found in the run
+      if (races != null) {
+        races.check();
+      }
+
+      // report the virtual threads that pinned their carrier in the run
+      if (pinning != null) {
+        pinning.check();
+      }
+    }
+    catch (Throwable e) {
+      if (trace != null && test.getTrace()) {
+        trace.print(System.out);
+      }
+      if (trace != null && test.getTimeline() != null) {
+        writeTimeline(test, trace, e);
+      }
+      var schedule = scheduler == null ? null : scheduler.describeRun();
+      if (schedule != null) {
+        System.out.println("Schedule of failed run: " + schedule);
+      }
+      throw e;
+    }
+    finally {
+      if (clock != null) {
+        clock.stop();
+      }
+      test.discardTasks();
+      if (pinning != null) {
+        pinning.end();
+      }
+      if (scheduler != null) {
+        scheduler.end();
+      }
+    }
+    if (trace != null && test.getTrace() && !test.getTraceOnlyOnFailure()) {
+      trace.print(System.out);
+    }
+  }
+
+  /**
+   * Write the timeline of a failed run to a new file in the timeline directory of the test case.
+   * A failure to write the file is added to the failure of the run.
+   *
+   * @param test - the test case that failed
+   * @param trace - the trace of the run
+   * @param failure - the failure of the run
+   */
+  static void writeTimeline(TestCase test, TraceBuffer trace, Throwable failure) {
+    try {
+      var dir = test.getTimeline().toPath();
+      Files.createDirectories(dir);
+      var file = Files.createTempFile(dir, test.getClass().getSimpleName() + "-", ".json");
+      try (var out = Files.newBufferedWriter(file)) {
+        new Timeline(trace).write(out);
+      }
+      System.out.println("Timeline of failed run written to " + file);
+    }
+    catch (IOException e) {
+      failure.addSuppressed(e);
     }
   }
 
   /**
    * Start and return a clock thread
-   * which periodically checks all the test case threads and regulates them.
+   * which periodically polls the clock of a run until the run is over.
+   *
+   * @param clock - the clock of the run
+   * @return The (already started) clock thread
+   */
+  static Thread startClock(Clock clock) {
+    var t = new Thread(() -> {
+      try {
+        do {
+          Thread.sleep(clock.clockPeriod);
+        } while (clock.poll());
+      }
+      catch (Throwable e) {
+        clock.killed();
+      }
+    }, "Tick thread");
+
+    t.setDaemon(true);
+    t.start();
+    return t;
+  }
+
+  /**
+   * The clock of one run, which periodically checks all the test case threads and regulates them.
    *
    * <p>
    * If all the threads are blocked and at least one is waiting for a tick,
@@ -273,107 +507,280 @@ public class TestFramework {
    * If none of the threads are waiting for a tick or in timed waiting,
    * a deadlock is detected.
    *
-   * The clock thread times out if a thread is in runnable or
-   * all are blocked and one is in timed waiting for longer than the runLimit.
+   * The clock times out if a thread is in runnable or
+   * all are blocked and one is in timed waiting for longer than the runLimit,
+   * or if the clock is frozen for longer than the runLimit.
+   * The time is measured with {@link System#nanoTime()}, less the garbage collection pauses,
+   * which stop every thread and are no fault of the test case.
    *
-   * @param test - the test case the clock thread is regulating
-   * @param threadGroup - the thread group containing the running thread methods
-   * @param error - an array containing any Errors/Exceptions that occur in thread methods or that are thrown by the clock thread
-   * @param clockPeriod - The period (in ms) between checks for the clock (or null for default or global setting)
-   * @param runLimit - The limit to run the test in seconds (or null for default or global setting)
-   * @return The (already started) clock thread
+   * <p>
+   * All the state of the clock is kept here, and each check is a call to {@link #poll()},
+   * so the clock can be driven by a clock thread of its own ({@link #startClock(Clock)})
+   * or by the shared {@link ClockScheduler} together with the clocks of other runs.
+   * Only one poll of a clock runs at a time, and none after the clock is stopped.
    */
-  static Thread startClock(TestCase test, ThreadGroup threadGroup, Throwable[] error, int clockPeriod, int runLimit) {
+  static class Clock implements Runnable {
+    final TestCase test;
+    final ThreadGroup threadGroup;
+
+    /**
+     * This thread will be waiting for all the test threads to finish.
+     * It is interrupted if there is an deadlock or timeout.
+     */
+    final Thread mainThread;
+
+    /** An array containing any Errors/Exceptions that occur in thread methods or that are thrown by the clock */
+    final Throwable[] error;
+
+    /** The period (in ms) between polls */
+    final int clockPeriod;
+
+    /** The limit to run the test in seconds */
+    final int runLimit;
+
+    final ThreadScan scan;
+    final TraceBuffer trace;
+
+    /** The last progress: the start of the run, or the last tick */
+    Mark lastProgress;
+    int deadlocksDetected = 0;
+
+    /** Set when the untimed waits were woken up once since the last tick, before declaring a deadlock */
+    boolean wokeUntimedWaiters;
+    int readyToTick = 0;
+
+    /** When the clock was first found frozen, or null if it was not frozen at the last poll */
+    Mark frozenSince;
+
+    /**
+     * The CPU time of the threads, taken once half the run limit has passed
+     * without progress, or null: the baseline of the report of a run that makes no progress.
+     */
+    Mark baseline;
+
+    /** Set when the run is over, so that a scheduled poll does nothing */
+    volatile boolean stopped;
+
+    /** The scheduler driving this clock, or null if it has a clock thread */
+    ScheduledExecutorService scheduler;
+
+    Clock(TestCase test, ThreadGroup threadGroup, Thread mainThread, Throwable[] error, int clockPeriod, int runLimit) {
+      this.test = test;
+      this.threadGroup = threadGroup;
+      this.mainThread = mainThread;
+      this.error = error;
+      this.clockPeriod = clockPeriod;
+      this.runLimit = runLimit;
+      this.scan = new ThreadScan(test, threadGroup);
+      this.trace = test.traceBuffer;
+      this.lastProgress = mark();
+    }
 
-    // Hold a reference to the current thread.
-    Thread mainThread = Thread.currentThread();
+    /** The collectors whose collection time is spent in pauses (not in concurrent cycles) */
+    static final List<GarbageCollectorMXBean> PAUSING = ManagementFactory.getGarbageCollectorMXBeans().stream()
+      .filter(gc -> !gc.getName().contains("Concurrent") && !gc.getName().contains("Cycles"))
+      .toList();
 
-    // This thread will be waiting for all the test threads to finish.
-    // It should be interrupted if there is an deadlock or timeout in the clock thread.
+    static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
 
-    var t = new Thread(() -> {
+    /**
+     * @return the total time of the garbage collection pauses of the JVM so far, in nanoseconds
+     */
+    static long pauses() {
+      var ms = 0L;
+      for (var gc : PAUSING) {
+        ms += Math.max(0, gc.getCollectionTime());
+      }
+      return ms * 1_000_000;
+    }
+
+    /**
+     * A point in time of the run, and the CPU time each of its threads had used by then
+     * (only for a {@link #snapshot()}, null otherwise).
+     */
+    record Mark(long nanoTime, long pauses, Map<Thread, Long> cpu) {
+      /** @return the time without garbage collection pauses */
+      long running() {
+        return nanoTime - pauses;
+      }
+    }
+
+    /**
+     * @return the current time of the run, without the CPU time of its threads:
+     * this is cheap enough for every tick
+     */
+    Mark mark() {
+      return new Mark(System.nanoTime(), pauses(), null);
+    }
+
+    /**
+     * @return the current time of the run, and the CPU time each of its threads has used
+     */
+    Mark snapshot() {
+      var threads = new ArrayList<Thread>();
+      test.lock.lock();
       try {
-        ticker(test,threadGroup,mainThread,error,clockPeriod,runLimit);
+        threads.addAll(test.threads.keySet());
+      } finally {
+        test.lock.unlock();
       }
-      catch (Throwable e) {
-        // killed
-        if (test.getTrace()) {
-          System.out.println("Tick thread killed");
+      for (var w : test.workers) {
+        if (!threads.contains(w)) threads.add(w);
+      }
+      threads.sort(Comparator.comparing(Thread::getName));
+      var cpu = new LinkedHashMap<Thread, Long>();
+      if (THREADS.isThreadCpuTimeSupported() && THREADS.isThreadCpuTimeEnabled()) {
+        for (var t : threads) {
+          var ns = THREADS.getThreadCpuTime(t.threadId());
+          if (ns >= 0) {
+            cpu.put(t, ns);
+          }
         }
       }
-    }, "Tick thread");
+      return new Mark(System.nanoTime(), pauses(), cpu);
+    }
 
-    t.setDaemon(true);
-    t.start();
-    return t;
-  }
+    /**
+     * Take the {@link #baseline} once half the run limit has passed since <code>since</code>.
+     *
+     * @return true if more than the run limit has passed since <code>since</code>, not counting pauses
+     */
+    boolean overLimit(Mark since) {
+      var idle = System.nanoTime() - pauses() - since.running();
+      if (baseline == null && idle > 500_000_000L * runLimit) {
+        baseline = snapshot();
+      }
+      return idle > 1_000_000_000L * runLimit;
+    }
 
-  static void ticker(TestCase test, ThreadGroup threadGroup, Thread mainThread, Throwable[] error, int clockPeriod, int runLimit) throws Throwable {
-    var lastProgress = System.currentTimeMillis();
-    var deadlocksDetected = 0;
-    var readyToTick = 0;
+    /**
+     * The failure of a run that made no progress since <code>since</code>:
+     * how long, and how much CPU time each thread got since the {@link #baseline}.
+     */
+    IllegalStateException noProgress(Mark since) {
+      var now = snapshot();
+      var s = new StringBuilder(String.format("No progress in %.1f s", (now.running() - since.running()) / 1e9));
+      var pauses = now.pauses() - since.pauses();
+      if (pauses > 0) {
+        s.append(String.format(" (not counting %.1f s of GC pauses)", pauses / 1e9));
+      }
+      if (baseline == null) {
+        return new IllegalStateException(s.toString());
+      }
+      var window = now.running() - baseline.running();
+      s.append(String.format(", CPU time of its last %.1f s:", window / 1e9));
+      for (var e : now.cpu().entrySet()) {
+        var t = e.getKey();
+        var cpu = e.getValue() - baseline.cpu().getOrDefault(t, 0L);
+        var progress = cpu < window / 100 ? "no" : cpu < window / 10 ? "little" : "plenty of";
+        s.append(String.format("%n  %s (%s) made %s CPU progress: %d ms of CPU time",
+          t.getName(), t.getState(), progress, cpu / 1_000_000));
+      }
+      return new IllegalStateException(s.toString());
+    }
 
-    for (;;) {
-      Thread.sleep(clockPeriod);
+    /**
+     * Let a shared scheduler drive this clock, one poll every clock period.
+     */
+    void schedule(ScheduledExecutorService scheduler) {
+      this.scheduler = scheduler;
+      scheduler.schedule(this, clockPeriod, TimeUnit.MILLISECONDS);
+    }
 
-      // Attempt to get a write lock;
-      // this succeeds if clock is not frozen
-      if (!test.clockLock.writeLock().tryLock(1000L * runLimit, TimeUnit.MILLISECONDS)) {
-        synchronized (test.lock) {
-          test.failed = true;
-          test.lock.notifyAll();
-          if (error[0] == null) {
-            error[0] = new IllegalStateException("No progress");
-          }
-          mainThread.interrupt();
-          return;
+    /**
+     * Poll once, and schedule the next poll unless the clock is done.
+     * A failure of the clock ends this clock only.
+     */
+    @Override
+    public void run() {
+      try {
+        if (poll()) {
+          scheduler.schedule(this, clockPeriod, TimeUnit.MILLISECONDS);
         }
       }
+      catch (Throwable e) {
+        killed();
+      }
+    }
 
-      synchronized (test.lock) {
-        try {
+    /**
+     * Stop the clock, waiting for a poll in progress to end,
+     * so that it can not act on the rest of the run (or on the next run) of the test case:
+     * once stopped it never interrupts the main thread.
+     */
+    synchronized void stop() {
+      stopped = true;
+    }
 
-          // Get the contents of the thread group
-          var tgCount = threadGroup.activeCount() + 10;
-          var ths = new Thread[tgCount];
+    void killed() {
+      if (trace != null) {
+        trace.record(TraceBuffer.KILLED, test.clock);
+      }
+    }
 
-          tgCount = threadGroup.enumerate(ths, false);
-          if (tgCount == 0) return; // all threads are done
+    /**
+     * Fail the run.
+     */
+    void fail(Throwable e) {
+      test.lock.lock();
+      try {
+        test.signalFailure();
+        if (error[0] == null) {
+          error[0] = e;
+        }
+      } finally {
+        test.lock.unlock();
+      }
+      mainThread.interrupt();
+    }
 
-          // will set to true to force a check for timeout conditions and restart the loop
-          var checkProgress = false;
+    /**
+     * Check the threads once, and advance the clock or fail the run if needed.
+     *
+     * @return false if the clock has nothing more to do (the run is over or has failed)
+     */
+    synchronized boolean poll() {
+      if (stopped) {
+        return false;
+      }
 
-          // will set true if any thread is in state TIMED_WAITING
-          var timedWaiting = false;
+      // Attempt to get a write lock, without waiting;
+      // this succeeds if clock is not frozen
+      if (!test.clockLock.writeLock().tryLock()) {
+        if (frozenSince == null) {
+          frozenSince = mark();
+        }
+        if (overLimit(frozenSince)) {
+          if (trace != null) {
+            trace.record(TraceBuffer.NO_PROGRESS, test.clock);
+          }
+          fail(noProgress(frozenSince));
+          return false;
+        }
+        return true;
+      }
+      frozenSince = null;
 
-          var nextTick = Integer.MAX_VALUE;
+      List<CompletableFuture<Void>> due = List.of();
+      try {
 
-          // examine the threads in the thread group; look for next tick
-          for (var i = 0; i < tgCount; i++) {
-            var t = ths[i];
+        // Examine the thread states, without holding the test case lock.
+        // will set to true to force a check for timeout conditions and restart the loop;
+        // tasks waiting to run in a tick-aware executor count as progress
+        var checkProgress = scan.findRunnable(trace) || !test.pendingTasks.isEmpty();
+        if (!checkProgress) {
+          // The clock may act on this scan, so look for threads started since the last snapshot
+          if (scan.refresh() == 0) return false; // all threads are done
+          checkProgress = scan.findRunnable(null);
+        }
 
-            try {
-              if (test.getTrace()) {
-                System.out.println(t.getName() + " is in state " + t.getState());
-              }
-              if (t.getState() == Thread.State.RUNNABLE) {
-                checkProgress = true;
-              }
-              if (t.getState() == Thread.State.TIMED_WAITING) {
-                timedWaiting = true;
-              }
-            }
-            catch (Throwable e) {
-              // JVM may not support Thread.State
-              checkProgress = false;
-              timedWaiting = true;
-            }
+        // will set true if any thread is in state TIMED_WAITING
+        var timedWaiting = scan.timedWaiting;
 
-            var waitingFor = test.threads.get(t);
-            if (waitingFor != null && waitingFor > test.clock) {
-              nextTick = Math.min(nextTick, waitingFor);
-            }
-          }
+        test.lock.lock();
+        try {
+
+          var nextTick = test.nextTick();
 
           // If not waiting for anything, but a thread is in TIMED_WAITING,
           // then check progress and loop again
@@ -383,81 +790,203 @@ public class TestFramework {
           // Check for timeout conditions and restart the loop
           if (checkProgress) {
             if (readyToTick > 0) {
-              if (test.getTrace()) {
-                System.out.println("Was Ready to tick too early");
+              if (trace != null) {
+                trace.record(TraceBuffer.TOO_EARLY, test.clock);
               }
               readyToTick = 0;
             }
-            var now = System.currentTimeMillis();
-            if (now - lastProgress > 1000L * runLimit) {
-              test.failed = true;
-              test.lock.notifyAll();
-              if (error[0] == null) {
-                error[0] = new IllegalStateException("No progress");
+            if (overLimit(lastProgress)) {
+              if (trace != null) {
+                trace.record(TraceBuffer.NO_PROGRESS, test.clock);
               }
-              mainThread.interrupt();
-              return;
+              fail(noProgress(lastProgress));
+              return false;
             }
             deadlocksDetected = 0;
-            continue;
+            return true;
           }
 
           // Detect deadlock
           if (nextTick == Integer.MAX_VALUE) {
             if (readyToTick > 0) {
-              if (test.getTrace()) {
-                System.out.println("Was Ready to tick too early");
+              if (trace != null) {
+                trace.record(TraceBuffer.TOO_EARLY, test.clock);
               }
               readyToTick = 0;
             }
             if (++deadlocksDetected < 50) {
-              if (deadlocksDetected % 10 == 0 && test.getTrace()) {
-                System.out.println("[Detecting deadlock... " + deadlocksDetected + " trys]");
+              if (deadlocksDetected % 10 == 0 && trace != null) {
+                trace.record(Thread.currentThread(), TraceBuffer.DEADLOCK_CHECK, test.clock, deadlocksDetected);
               }
-              continue;
+              return true;
             }
-            if (test.getTrace()) {
-              System.out.println("Deadlock!");
+            // A wait without a deadline may have missed its notification:
+            // wake it up once, and declare a deadlock only if no tick follows
+            if (!wokeUntimedWaiters && test.wakeUntimedWaiters()) {
+              wokeUntimedWaiters = true;
+              deadlocksDetected = 0;
+              return true;
+            }
+            if (trace != null) {
+              trace.record(TraceBuffer.DEADLOCK, test.clock);
             }
             var sw = new StringWriter();
             var out = new PrintWriter(sw);
-            for (var e : test.threads.entrySet()) {
-              var t = e.getKey();
+            var blocked = new ArrayList<Thread>(test.threads.keySet());
+            for (var w : test.workers) {
+              if (!blocked.contains(w)) blocked.add(w);
+            }
+            for (var t : blocked) {
               out.println(t.getName() + " " + t.getState());
               for (var st : t.getStackTrace()) {
                 out.println("  " + st);
               }
             }
-            test.failed = true;
-            if (error[0] == null) {
-              error[0] = new IllegalStateException("Apparent deadlock\n" + sw.toString());
-            }
-            mainThread.interrupt();
-            return;
+            fail(new IllegalStateException("Apparent deadlock\n" + sw.toString()));
+            return false;
           }
 
           deadlocksDetected = 0;
 
           if (++readyToTick < 2) {
-            continue;
+            return true;
           }
           readyToTick = 0;
 
           // Advance to next tick
           test.clock = nextTick;
-          lastProgress = System.currentTimeMillis();
-
-          // notify any threads that are waiting for this tick
-          test.lock.notifyAll();
-          if (test.getTrace()) {
-            System.out.println("Time is now " + test.clock);
+          var races = test.raceDetector;
+          if (races != null) {
+            races.tick(nextTick);
+          }
+          lastProgress = mark();
+          wokeUntimedWaiters = false;
+          baseline = null;
+
+          // notify any threads (and futures) that are waiting for this tick
+          test.tick.signalAll();
+          test.wakeWaiters();
+          due = test.takeTickFutures(nextTick);
+          if (trace != null) {
+            trace.record(TraceBuffer.TICK, test.clock);
           }
         } finally {
-          test.clockLock.writeLock().unlock();
+          test.lock.unlock();
         }
+      } finally {
+        test.clockLock.writeLock().unlock();
+      }
+
+      // complete futures without holding any lock, since dependent actions run in this thread
+      for (var f : due) {
+        f.complete(null);
       }
+      return true;
+    }
+  }
+
+  /**
+   * The threads of a thread group, as seen by the clock thread.
+   *
+   * <p>
+   * Enumerating a thread group walks every live thread in the JVM,
+   * so the snapshot of the group is only refreshed when the clock thread
+   * is about to act on what it sees (advance the clock or declare a deadlock).
+   *
+   * <p>
+   * A scan stops at the first RUNNABLE thread, starting with the one found last time,
+   * since a single runnable thread is enough to keep the clock from advancing.
+   * The cost of a poll while the test case is busy therefore does not grow
+   * with the number of threads.
+   */
+  static class ThreadScan {
+    final TestCase test;
+    final ThreadGroup threadGroup;
+    Thread[] ths = new Thread[16];
+    int count;
+
+    /** The threads in the snapshot from this index on are executor workers */
+    int groupCount;
+
+    /** Index of the thread found RUNNABLE by the last scan */
+    int runnable;
 
-    } // for(;;)
+    /** Set by the last scan that found no RUNNABLE thread if any thread is in state TIMED_WAITING */
+    boolean timedWaiting;
+
+    ThreadScan(TestCase test, ThreadGroup threadGroup) {
+      this.test = test;
+      this.threadGroup = threadGroup;
+    }
+
+    /**
+     * Take a new snapshot of the threads in the group,
+     * and of the threads running tasks for a tick-aware executor.
+     *
+     * @return the number of threads in the group; the run is over when it is 0
+     */
+    int refresh() {
+      for (;;) {
+        count = threadGroup.enumerate(ths, false);
+        if (count < ths.length) break;
+        ths = new Thread[2 * ths.length];
+      }
+      // common pool workers are shared by the whole JVM;
+      // they are only in the group because a thread method caused their creation
+      var n = 0;
+      for (var i = 0; i < count; i++) {
+        if (isCommonPoolWorker(ths[i])) continue;
+        ths[n++] = ths[i];
+      }
+      count = n;
+      groupCount = count;
+      for (var w : test.workers) {
+        if (w.getThreadGroup() == threadGroup && !isCommonPoolWorker(w)) continue;
+        if (count == ths.length) {
+          ths = Arrays.copyOf(ths, 2 * ths.length);
+        }
+        ths[count++] = w;
+      }
+      for (var i = count; i < ths.length && ths[i] != null; i++) {
+        ths[i] = null; // do not hold on to ended threads
+      }
+      return groupCount;
+    }
+
+    static boolean isCommonPoolWorker(Thread t) {
+      return t instanceof ForkJoinWorkerThread w && w.getPool() == ForkJoinPool.commonPool();
+    }
+
+    /**
+     * Look for a thread in state RUNNABLE.
+     *
+     * @param trace - if not null, record the state of every thread in this trace
+     * @return true if a RUNNABLE thread was found
+     */
+    boolean findRunnable(TraceBuffer trace) {
+      var found = false;
+      timedWaiting = false;
+      for (var k = 0; k < count; k++) {
+        var i = (runnable + k) % count;
+        var t = ths[i];
+        if (i >= groupCount && !test.workers.contains(t)) {
+          continue; // no longer running a task
+        }
+        var state = t.getState();
+        if (trace != null) {
+          trace.record(t, TraceBuffer.STATE, test.clock, state.ordinal());
+        }
+        if (state == Thread.State.RUNNABLE) {
+          if (!found) runnable = i;
+          found = true;
+          if (trace == null) break;
+        }
+        else if (state == Thread.State.TIMED_WAITING) {
+          timedWaiting = true;
+        }
+      }
+      return found;
+    }
   }
 
   /**
@@ -466,33 +995,112 @@ public class TestFramework {
    * or for the clock thread to interrupt this (main) thread of execution.
    *
    * When the clock thread or other threads fail,
-   * the error is placed in the shared error array and thrown by this method.
+   * the remaining threads are shut down (see {@link #shutDown(TestCase, ThreadGroup, List, Throwable)})
+   * and the error placed in the shared error array is thrown by this method.
    *
+   * @param test - the test case being run
+   * @param threadGroup - the thread group containing the running thread methods
    * @param threads - List of all the test case threads and the clock thread
    * @param error - an array containing any Errors/Exceptions that occur in thread methods or that are thrown by the clock thread
+   * @param clock - the clock of the run, stopped when the wait is over
    * @throws Throwable - The first error or exception that is thrown by one of the threads
    */
-  static void waitForMethodThreads(List<Thread> threads, Throwable[] error) throws Throwable {
-    for (var t : threads) {
-      try {
-        if (t.isAlive() && error[0] != null) {
-          t.interrupt(); // and hope for the best; was t.stop();
-        } else {
-          t.join();
+  static void waitForMethodThreads(TestCase test, ThreadGroup threadGroup, List<Thread> threads, Throwable[] error,
+    Clock clock) throws Throwable
+  {
+    try {
+      for (var t : threads) {
+        // poll, since a failing thread does not interrupt this one
+        while (t.isAlive() && error[0] == null) {
+          t.join(10);
         }
       }
-      catch (InterruptedException e1) {
-        if (error[0] != null) {
-          throw error[0];
-        }
+    }
+    catch (InterruptedException e1) {
+      if (error[0] == null) {
         throw new AssertionError(e1);
       }
     }
+    finally {
+      // the wait is over: the clock must not poll during the shutdown, nor interrupt this thread
+      clock.stop();
+      Thread.interrupted(); // an interrupt from the clock that arrived after the wait
+    }
     if (error[0] != null) {
+      shutDown(test, threadGroup, threads, error[0]);
       throw error[0];
     }
   }
 
+  /**
+   * Shut down the threads of a failed test case, within a bounded time.
+   *
+   * All the remaining threads are interrupted and given until the shutdown limit
+   * (-Dtunit.shutdownLimit, in milliseconds) to end.
+   * Threads still alive after that are quarantined: they are reported,
+   * with their stack and the CPU time they consumed, as an exception suppressed by <code>error</code>,
+   * and the test run moves on without them.
+   *
+   * @param test - the test case that failed
+   * @param threadGroup - the thread group containing the running thread methods
+   * @param threads - List of all the test case threads and the clock thread
+   * @param error - the failure of the test case
+   */
+  static void shutDown(TestCase test, ThreadGroup threadGroup, List<Thread> threads, Throwable error) {
+    test.signalFailure();
+    var all = new ArrayList<Thread>(threads);
+    var ths = new Thread[threadGroup.activeCount() + 10];
+    var n = threadGroup.enumerate(ths);
+    for (var i = 0; i < n; i++) {
+      if (!all.contains(ths[i])) all.add(ths[i]);
+    }
+    for (var t : all) {
+      t.interrupt();
+    }
+
+    var shutdownLimit = Math.max(0, Integer.getInteger(SHUTDOWNLIMIT_KEY, DEFAULT_SHUTDOWNLIMIT));
+    var deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(shutdownLimit);
+    var interrupted = false;
+    for (var t : all) {
+      try {
+        var remaining = deadline - System.nanoTime();
+        if (remaining > 0) {
+          t.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+        }
+      }
+      catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+
+    var sw = new StringWriter();
+    var out = new PrintWriter(sw);
+    var mx = ManagementFactory.getThreadMXBean();
+    var stuck = 0;
+    for (var t : all) {
+      if (!t.isAlive()) continue;
+      stuck++;
+      t.setPriority(Thread.MIN_PRIORITY);
+      synchronized (quarantined) {
+        quarantined.add(t);
+      }
+      var cpu = mx.isThreadCpuTimeSupported() ? mx.getThreadCpuTime(t.threadId()) : -1;
+      out.println(t.getName() + " " + t.getState() + ", cpu time "
+        + (cpu < 0 ? "unknown" : TimeUnit.NANOSECONDS.toMillis(cpu) + " ms"));
+      for (var st : t.getStackTrace()) {
+        out.println("  " + st);
+      }
+    }
+    if (stuck > 0) {
+      var report = "Quarantined " + stuck + " thread(s) still running " + shutdownLimit + " ms after failure\n" + sw;
+      System.err.println(report);
+      error.addSuppressed(new IllegalStateException(report));
+    }
+  }
+
   /**
    * Invoke each of the thread methods in a seperate thread
    * and place them all in a common (new) thread group.
@@ -509,22 +1117,42 @@ public class TestFramework {
   static ThreadGroup startMethodThreads(TestCase test, Fixture fixture,  List<Thread> threads, Throwable[] error) {
     var threadGroup = new ThreadGroup("MTC-Threads");
     var latch = new CountDownLatch(fixture.run.length);
+    var checkedIn = new AtomicInteger();
+    var spinStart = test.getSpinStart();
+    var startTimes = new long[fixture.run.length];
     var waitForRegistration = new Semaphore(0);
+    var scheduler = test.scheduler;
+    test.startTimes = startTimes;
 
     for (var i = 0; i < fixture.run.length; i++) {
       var method = fixture.run[i];
       var name = fixture.id[i];
+      var index = i;
       var t = new Thread(threadGroup, () -> {
         try {
+          test.hello();
           waitForRegistration.release();
-          latch.countDown();
-          latch.await();
+          if (spinStart) {
+            spinUntil(checkedIn, fixture.run.length);
+          } else {
+            latch.countDown();
+            latch.await();
+          }
 
           // At this point all threads are created and released
           // (in random order?) together to run in parallel
 
-          test.hello();
-          method.invoke(test);
+          startTimes[index] = System.nanoTime();
+          if (test.traceBuffer != null) {
+            test.traceBuffer.record(TraceBuffer.STARTED, 0);
+          }
+          if (scheduler != null) {
+            scheduler.enter(index); // wait for the turn of this thread
+          }
+          Object result = method.invoke(test);
+          if (result instanceof CompletionStage<?> stage) {
+            awaitStage(stage);
+          }
         }
         catch (InvocationTargetException e) {
           var cause = e.getCause();
@@ -534,7 +1162,8 @@ public class TestFramework {
           if (error[0] == null) {
             error[0] = cause;
           }
-          signalError(threads);
+          recordFailure(test);
+          signalError(test, threads);
         }
         catch (ThreadDeath ignore) {
           // ignore it
@@ -544,9 +1173,13 @@ public class TestFramework {
           if (error[0] == null) {
             error[0] = e;
           }
-          signalError(threads);
+          recordFailure(test);
+          signalError(test, threads);
         }
         finally {
+          if (scheduler != null) {
+            scheduler.exit();
+          }
           test.goodbye();
         }
       }, name.substring(6) + " thread");
@@ -562,13 +1195,67 @@ public class TestFramework {
     return threadGroup;
   }
 
+  /**
+   * Check in at a busy-spin start gate, and spin until all the threads have checked in.
+   * Falls back to yielding after a while, in case there are more threads than processors
+   * and the threads still to check in are not running.
+   *
+   * @param checkedIn - the number of threads that have checked in
+   * @param parties - the number of threads to wait for
+   */
+  static void spinUntil(AtomicInteger checkedIn, int parties) {
+    checkedIn.incrementAndGet();
+    for (var spins = 1; checkedIn.get() < parties; spins++) {
+      if ((spins & 0x3FFF) == 0) {
+        Thread.yield();
+      } else {
+        Thread.onSpinWait();
+      }
+    }
+  }
+
+  /**
+   * Record in the trace of the run that the current thread method failed.
+   */
+  static void recordFailure(TestCase test) {
+    TraceBuffer trace;
+    int clock;
+    test.lock.lock();
+    try {
+      trace = test.traceBuffer;
+      clock = test.clock;
+    } finally {
+      test.lock.unlock();
+    }
+    if (trace != null) {
+      trace.record(TraceBuffer.FAILED, clock);
+    }
+  }
+
+  /**
+   * Wait for the stage returned by an asynchronous thread method to complete.
+   *
+   * @param stage - the stage returned by the thread method
+   * @throws Throwable - the exception that the stage completed with
+   */
+  static void awaitStage(CompletionStage<?> stage) throws Throwable {
+    try {
+      stage.toCompletableFuture().get();
+    }
+    catch (ExecutionException e) {
+      throw e.getCause();
+    }
+  }
+
   /**
    * Stop all test case threads and clock thread, except the thread from which this method is called.
    * This method is used when a thread is ready to end in failure and it wants to make sure all the other threads have ended before throwing an exception.
    *
+   * @param test - the test case whose waiting threads are woken up
    * @param threads - List of all the test case threads and the clock thread
    */
-  static void signalError(List<Thread> threads) {
+  static void signalError(TestCase test, List<Thread> threads) {
+    test.signalFailure();
     var currentThread = Thread.currentThread();
     for (var t : threads) {
       if (t != currentThread) {
@@ -591,8 +1278,11 @@ public class TestFramework {
     var id = new ArrayList<String>();
     for (var m : type.getDeclaredMethods()) {
       if (m.getParameterCount() != 0) continue;
-      if (!m.getReturnType().equals(Void.TYPE)) continue;
       var n = m.getName();
+      if (!m.getReturnType().equals(Void.TYPE)) {
+        // asynchronous thread methods return a CompletionStage
+        if (!n.startsWith("thread") || !CompletionStage.class.isAssignableFrom(m.getReturnType())) continue;
+      }
       if (n.startsWith("thread")) {
         id.add(n);
         run.add(methodHandle(m));
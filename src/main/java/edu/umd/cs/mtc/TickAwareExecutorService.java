@@ -0,0 +1,202 @@
+package edu.umd.cs.mtc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An {@link ExecutorService} that lets the clock of a {@link TestCase}
+ * account for the tasks it runs.
+ *
+ * <p>
+ * The threads of an executor (a pool injected into the code under test,
+ * or {@link java.util.concurrent.ForkJoinPool#commonPool()}) are usually
+ * not in the thread group of the test case, so the clock thread does not see them:
+ * it could advance the clock, or declare a deadlock, while tasks are still running.
+ *
+ * <p>
+ * This executor forwards every task to the executor it wraps, and
+ * <ul>
+ * <li>counts a task as progress from the moment it is submitted until it starts;
+ * the clock does not advance (and no deadlock is declared) while tasks are pending,
+ * <li>registers the worker thread with the test case while it runs a task;
+ * the clock thread then examines that thread like the test case threads,
+ * and the task can use the test case (e.g. {@link TestCase#waitForTick(int)}).
+ * </ul>
+ *
+ * Use {@link TestCase#tickAware(ExecutorService)} to create one.
+ *
+ * @see TickAwareScheduledExecutorService
+ */
+public class TickAwareExecutorService extends AbstractExecutorService {
+
+  final TestCase test;
+  final ExecutorService delegate;
+
+  TickAwareExecutorService(TestCase test, ExecutorService delegate) {
+    this.test = test;
+    this.delegate = delegate;
+  }
+
+  /**
+   * A task that registers its worker thread with the test case while it runs.
+   * A <em>pending</em> task also counts as in flight until it starts (or is discarded);
+   * one still pending at the end of its run is cancelled, and never runs.
+   */
+  class Task<V> implements Runnable, Callable<V> {
+    final Runnable runnable;
+    final Callable<V> callable;
+    final boolean pending;
+    final AtomicBoolean started;
+
+    /** The future of a delayed task, cancelled with the task */
+    volatile Future<?> future;
+
+    Task(Runnable runnable, Callable<V> callable, boolean pending) {
+      this.runnable = runnable;
+      this.callable = callable;
+      this.pending = pending;
+      this.started = new AtomicBoolean(!pending);
+      if (pending) {
+        test.pendingTasks.add(this);
+      }
+    }
+
+    @Override
+    public void run() {
+      var outer = TestCase.currentTestCase.get();
+      if (!enter(outer)) {
+        return; // cancelled: its run has ended
+      }
+      try {
+        runnable.run();
+      }
+      finally {
+        exit(outer);
+      }
+    }
+
+    @Override
+    public V call() throws Exception {
+      var outer = TestCase.currentTestCase.get();
+      if (!enter(outer)) {
+        return null; // cancelled, so its future ignores the result
+      }
+      try {
+        return callable.call();
+      }
+      finally {
+        exit(outer);
+      }
+    }
+
+    /**
+     * Stop counting this task as pending, if it still is.
+     *
+     * @return true if it was pending
+     */
+    boolean discard() {
+      if (started.compareAndSet(false, true)) {
+        test.pendingTasks.remove(this);
+        return true;
+      }
+      return false;
+    }
+
+    /**
+     * Cancel this task if it has not started: its run ended without it.
+     * The future returned for it (by <code>submit</code> or <code>schedule</code>)
+     * is cancelled too, so that nobody waits for it in vain.
+     */
+    void cancel() {
+      if (discard()) {
+        var future = this.future;
+        if (future != null) {
+          future.cancel(false);
+        }
+        if (runnable instanceof Future<?> task) {
+          task.cancel(false); // the FutureTask of submit() or invokeAll()
+        }
+      }
+    }
+
+    /**
+     * Register the worker thread and start this task.
+     *
+     * @param outer - the test case of the worker thread before the task
+     * @return false if the task was cancelled, and must not run
+     */
+    boolean enter(TestCase outer) {
+      if (outer != test) {
+        test.workers.add(Thread.currentThread()); // before the task stops being pending
+      }
+      if (pending && !discard()) {
+        exit(outer);
+        return false;
+      }
+      TestCase.currentTestCase.set(test);
+      return true;
+    }
+
+    void exit(TestCase outer) {
+      TestCase.currentTestCase.set(outer);
+      if (outer != test) {
+        test.workers.remove(Thread.currentThread());
+      }
+    }
+  }
+
+  @Override
+  public void execute(Runnable command) {
+    var task = new Task<Void>(command, null, true);
+    try {
+      delegate.execute(task);
+    }
+    catch (RejectedExecutionException e) {
+      task.discard();
+      throw e;
+    }
+  }
+
+  @Override
+  public void shutdown() {
+    delegate.shutdown();
+  }
+
+  @Override
+  public List<Runnable> shutdownNow() {
+    var tasks = new ArrayList<Runnable>();
+    for (var r : delegate.shutdownNow()) {
+      if (r instanceof TickAwareExecutorService.Task<?> task) {
+        task.discard();
+        tasks.add(task.runnable != null ? task.runnable : r);
+      } else {
+        tasks.add(r);
+      }
+    }
+    return tasks;
+  }
+
+  @Override
+  public boolean isShutdown() {
+    return delegate.isShutdown();
+  }
+
+  @Override
+  public boolean isTerminated() {
+    return delegate.isTerminated();
+  }
+
+  @Override
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    return delegate.awaitTermination(timeout, unit);
+  }
+
+}
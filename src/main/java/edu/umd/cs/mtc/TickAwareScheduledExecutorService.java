@@ -0,0 +1,122 @@
+package edu.umd.cs.mtc;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A {@link ScheduledExecutorService} that lets the clock of a {@link TestCase}
+ * account for the tasks it runs.
+ *
+ * <p>
+ * In addition to the behavior of {@link TickAwareExecutorService},
+ * a delayed one-shot task counts as progress from the moment it is scheduled
+ * until it starts or is cancelled, so the clock does not advance past it.
+ * Periodic tasks only count while one of their executions is running,
+ * since they would otherwise keep the clock from ever advancing.
+ *
+ * Use {@link TestCase#tickAware(ScheduledExecutorService)} to create one.
+ */
+public class TickAwareScheduledExecutorService extends TickAwareExecutorService implements ScheduledExecutorService {
+
+  final ScheduledExecutorService scheduler;
+
+  TickAwareScheduledExecutorService(TestCase test, ScheduledExecutorService delegate) {
+    super(test, delegate);
+    this.scheduler = delegate;
+  }
+
+  /**
+   * The future of a delayed task, which stops counting the task as pending when it is cancelled.
+   */
+  class TaskFuture<V> implements ScheduledFuture<V> {
+    final ScheduledFuture<V> future;
+    final Task<V> task;
+
+    TaskFuture(ScheduledFuture<V> future, Task<V> task) {
+      this.future = future;
+      this.task = task;
+      task.future = future;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      var cancelled = future.cancel(mayInterruptIfRunning);
+      if (cancelled) {
+        task.discard();
+      }
+      return cancelled;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+      return future.getDelay(unit);
+    }
+
+    @Override
+    public int compareTo(Delayed o) {
+      return future.compareTo(o);
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return future.isCancelled();
+    }
+
+    @Override
+    public boolean isDone() {
+      return future.isDone();
+    }
+
+    @Override
+    public V get() throws InterruptedException, ExecutionException {
+      return future.get();
+    }
+
+    @Override
+    public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+      return future.get(timeout, unit);
+    }
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+    var task = new Task<Object>(command, null, true);
+    try {
+      return new TaskFuture<>((ScheduledFuture<Object>) scheduler.schedule((Runnable) task, delay, unit), task);
+    }
+    catch (RejectedExecutionException e) {
+      task.discard();
+      throw e;
+    }
+  }
+
+  @Override
+  public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+    var task = new Task<V>(null, callable, true);
+    try {
+      return new TaskFuture<>(scheduler.schedule((Callable<V>) task, delay, unit), task);
+    }
+    catch (RejectedExecutionException e) {
+      task.discard();
+      throw e;
+    }
+  }
+
+  @Override
+  public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+    return scheduler.scheduleAtFixedRate(new Task<Void>(command, null, false), initialDelay, period, unit);
+  }
+
+  @Override
+  public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+    return scheduler.scheduleWithFixedDelay(new Task<Void>(command, null, false), initialDelay, delay, unit);
+  }
+
+}
@@ -0,0 +1,181 @@
+package edu.umd.cs.mtc;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+
+/**
+ * Writes the {@link TraceBuffer} of a run as a timeline in the trace-event JSON format,
+ * which trace viewers such as <code>chrome://tracing</code> or Perfetto can open.
+ *
+ * <p>
+ * Every thread of the run gets a track, on which
+ * <ul>
+ * <li>the states the clock thread saw the thread in are shown as spans
+ * (consecutive samples of the same state are merged into one span),
+ * <li>each {@link TestCase#waitForTick(int)} is shown as a span
+ * from the moment the thread starts waiting until it is released.
+ * </ul>
+ * Clock ticks and failures (deadlock, no progress, an exception in a thread method)
+ * are shown as instant events across all the tracks.
+ *
+ * <p>
+ * The timeline only covers the records still held by the trace,
+ * so the memory it takes is bounded by the capacity of the trace.
+ *
+ * @see TestCase#setTimeline(java.io.File)
+ */
+final class Timeline {
+
+  final TraceBuffer trace;
+
+  Timeline(TraceBuffer trace) {
+    this.trace = trace;
+  }
+
+  /**
+   * An open span of a thread state.
+   */
+  static class Span {
+    final int state;
+    final long start;
+    long end;
+    int tick;
+
+    Span(int state, long start, int tick) {
+      this.state = state;
+      this.start = start;
+      this.end = start;
+      this.tick = tick;
+    }
+  }
+
+  /**
+   * Write the timeline.
+   *
+   * @param out - the writer to write the JSON document to
+   * @throws IOException - if writing fails
+   */
+  void write(Writer out) throws IOException {
+    var events = trace.events();
+    var json = new Json(out);
+    out.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+    json.metadata("process_name", 0, "MultithreadedTC");
+    for (var t : trace.threads()) {
+      json.metadata("thread_name", trace.slot(t), t.getName());
+    }
+
+    var spans = new HashMap<Integer, Span>();
+    var waiting = new HashSet<Integer>();
+    for (var e : events) {
+      var tid = trace.slot(e.thread());
+      switch (e.event()) {
+        case TraceBuffer.STATE -> {
+          var span = spans.get(tid);
+          if (span != null && span.state == e.arg()) {
+            span.end = e.time();
+            continue;
+          }
+          if (span != null) {
+            span.end = e.time();
+            json.span(tid, span);
+          }
+          spans.put(tid, new Span(e.arg(), e.time(), e.tick()));
+        }
+        case TraceBuffer.WAIT_FOR_TICK -> {
+          waiting.add(tid);
+          json.event("waitForTick(" + e.tick() + ")", "tick", "B", e.time(), tid, null);
+        }
+        case TraceBuffer.RELEASED -> {
+          // a thread that did not wait, or whose wait is no longer in the trace, has no span to end
+          if (waiting.remove(tid)) {
+            json.event("waitForTick", "tick", "E", e.time(), tid, "\"tick\":" + e.tick());
+          }
+        }
+        case TraceBuffer.TICK -> json.instant("Time is now " + e.tick(), "tick", "g", e.time(), tid);
+        case TraceBuffer.TOO_EARLY, TraceBuffer.DEADLOCK_CHECK -> json.instant(e.toString(), "clock", "t", e.time(), tid);
+        case TraceBuffer.STARTED -> json.instant("started", "start", "t", e.time(), tid);
+        default -> json.instant(e.toString(), "failure", "g", e.time(), tid);
+      }
+    }
+    for (var entry : spans.entrySet()) {
+      json.span(entry.getKey(), entry.getValue());
+    }
+    out.write("\n]}\n");
+    out.flush();
+  }
+
+  /**
+   * Writes the events of the JSON array, separated by commas.
+   */
+  static class Json {
+    final Writer out;
+    boolean first = true;
+
+    Json(Writer out) {
+      this.out = out;
+    }
+
+    void metadata(String name, int tid, String value) throws IOException {
+      next();
+      out.write("{\"name\":\"" + name + "\",\"ph\":\"M\",\"pid\":1,\"tid\":" + tid
+        + ",\"args\":{\"name\":" + quote(value) + "}}");
+    }
+
+    void span(int tid, Span span) throws IOException {
+      next();
+      out.write("{\"name\":\"" + TraceBuffer.STATES[span.state] + "\",\"cat\":\"state\",\"ph\":\"X\",\"ts\":" + micros(span.start)
+        + ",\"dur\":" + micros(span.end - span.start) + ",\"pid\":1,\"tid\":" + tid
+        + ",\"args\":{\"tick\":" + span.tick + "}}");
+    }
+
+    void event(String name, String category, String phase, long time, int tid, String args) throws IOException {
+      next();
+      out.write("{\"name\":" + quote(name) + ",\"cat\":\"" + category + "\",\"ph\":\"" + phase + "\",\"ts\":" + micros(time)
+        + ",\"pid\":1,\"tid\":" + tid + (args == null ? "" : ",\"args\":{" + args + "}") + "}");
+    }
+
+    /**
+     * @param scope - "g" for an event across all the tracks, "t" for an event of one thread
+     */
+    void instant(String name, String category, String scope, long time, int tid) throws IOException {
+      next();
+      out.write("{\"name\":" + quote(name) + ",\"cat\":\"" + category + "\",\"ph\":\"i\",\"s\":\"" + scope
+        + "\",\"ts\":" + micros(time) + ",\"pid\":1,\"tid\":" + tid + "}");
+    }
+
+    void next() throws IOException {
+      if (!first) {
+        out.write(",\n");
+      }
+      first = false;
+    }
+
+    static String micros(long nanos) {
+      return String.format(Locale.ROOT, "%.3f", nanos / 1000.0);
+    }
+
+    static String quote(String s) {
+      var q = new StringBuilder("\"");
+      for (var i = 0; i < s.length(); i++) {
+        var c = s.charAt(i);
+        switch (c) {
+          case '"' -> q.append("\\\"");
+          case '\\' -> q.append("\\\\");
+          case '\n' -> q.append("\\n");
+          default -> {
+            if (c < 0x20) {
+              q.append(String.format("\\u%04x", (int) c));
+            } else {
+              q.append(c);
+            }
+          }
+        }
+      }
+      return q.append('"').toString();
+    }
+  }
+}
@@ -0,0 +1,269 @@
+package edu.umd.cs.mtc;
+
+import java.io.PrintStream;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The trace of one run of a {@link TestCase}.
+ *
+ * <p>
+ * Tracing must not slow a run down so much that it hides the races being looked for,
+ * so nothing is formatted or printed while the test runs.
+ * Each thread that records an event appends a fixed-size binary record
+ * (timestamp, thread slot, event, tick) to a ring buffer of its own;
+ * no lock is taken and nothing is allocated once the thread has its buffer.
+ * The rings belong to the trace, not to the threads: a long-lived thread that records
+ * into the traces of many runs (a shared clock thread, an executor worker) does not keep them alive.
+ * A ring keeps the last <code>tunit.traceCapacity</code> records of its thread
+ * (4096 by default) and overwrites older ones.
+ *
+ * <p>
+ * The records of all the rings are merged and decoded to text
+ * when the run is over (see {@link #print(PrintStream)}).
+ *
+ * @see TestCase#setTrace(boolean)
+ * @see TestCase#setTraceOnlyOnFailure(boolean)
+ */
+final class TraceBuffer {
+
+  /**
+   * System property for the number of records kept per thread.
+   */
+  static final String CAPACITY_KEY = "tunit.traceCapacity";
+
+  static final int DEFAULT_CAPACITY = 4096;
+
+  // -- Events --
+
+  /** The clock thread saw the subject thread in a state (the argument is the state ordinal) */
+  static final int STATE = 0;
+
+  /** The subject thread waits for a tick */
+  static final int WAIT_FOR_TICK = 1;
+
+  /** The subject thread was released at a tick */
+  static final int RELEASED = 2;
+
+  /** The clock advanced to a tick */
+  static final int TICK = 3;
+
+  /** The clock thread was ready to tick, but a thread became runnable */
+  static final int TOO_EARLY = 4;
+
+  /** The clock thread found no thread runnable or waiting for a tick (the argument is the number of tries) */
+  static final int DEADLOCK_CHECK = 5;
+
+  /** The clock thread declared a deadlock */
+  static final int DEADLOCK = 6;
+
+  /** The clock thread declared that the run made no progress */
+  static final int NO_PROGRESS = 7;
+
+  /** The clock thread was killed */
+  static final int KILLED = 8;
+
+  /** A thread method threw an exception */
+  static final int FAILED = 9;
+
+  /** A thread method was released at the start of the run */
+  static final int STARTED = 10;
+
+  static final Thread.State[] STATES = Thread.State.values();
+
+  // A record is two longs: the time (in ns since the start of the run),
+  // and slot (20 bits) | event (6 bits) | argument (6 bits) | tick (32 bits)
+
+  static final int MAX_ARG = (1 << 6) - 1;
+
+  final long start = System.nanoTime();
+  final int capacity;
+
+  /** The threads that appear in this trace, indexed by slot */
+  final List<Thread> slots = new ArrayList<>();
+  final Map<Thread, Integer> slotOf = new IdentityHashMap<>();
+
+  /** All the rings, in the order they were created */
+  final List<Ring> rings = new ArrayList<>();
+
+  /** The ring of each thread that has recorded an event */
+  final ConcurrentHashMap<Thread, Ring> ringOf = new ConcurrentHashMap<>();
+
+  TraceBuffer() {
+    this(Integer.getInteger(CAPACITY_KEY, DEFAULT_CAPACITY));
+  }
+
+  TraceBuffer(int capacity) {
+    this.capacity = Math.max(capacity, 16);
+  }
+
+  /**
+   * The records written by one thread.
+   * Only the owner writes to a ring; a reader sees every record up to {@link #next}.
+   */
+  static final class Ring {
+    final int slot;
+    final long start;
+    final int capacity;
+    final long[] data;
+    final AtomicLong next = new AtomicLong();
+
+    /** Slots of the other threads this thread has recorded events about */
+    final Map<Thread, Integer> subjects = new IdentityHashMap<>();
+
+    Ring(int slot, long start, int capacity) {
+      this.slot = slot;
+      this.start = start;
+      this.capacity = capacity;
+      this.data = new long[2 * capacity];
+    }
+
+    void add(int slot, int event, int tick, int arg) {
+      var time = System.nanoTime() - start;
+      var n = next.get();
+      var i = (int) (n % capacity) << 1;
+      data[i] = time;
+      data[i + 1] = (long) slot << 44 | (long) event << 38 | (long) Math.min(arg, MAX_ARG) << 32 | tick & 0xFFFFFFFFL;
+      next.lazySet(n + 1);
+    }
+
+    int slotOf(TraceBuffer buffer, Thread t) {
+      var s = subjects.get(t);
+      if (s == null) {
+        s = buffer.slot(t);
+        subjects.put(t, s);
+      }
+      return s;
+    }
+  }
+
+  /**
+   * @return the ring of the current thread, created on its first event
+   */
+  Ring ring() {
+    var t = Thread.currentThread();
+    var r = ringOf.get(t);
+    if (r == null) {
+      r = new Ring(slot(t), start, capacity);
+      ringOf.put(t, r); // only the current thread adds its own ring
+      synchronized (this) {
+        rings.add(r);
+      }
+    }
+    return r;
+  }
+
+  synchronized int slot(Thread t) {
+    var s = slotOf.get(t);
+    if (s == null) {
+      s = slots.size();
+      slots.add(t);
+      slotOf.put(t, s);
+    }
+    return s;
+  }
+
+  /**
+   * @return the threads that appear in this trace, in the order of their slots
+   */
+  synchronized List<Thread> threads() {
+    return new ArrayList<>(slots);
+  }
+
+  /**
+   * Record an event about the current thread.
+   *
+   * @param event - the event
+   * @param tick - the tick the event refers to
+   */
+  void record(int event, int tick) {
+    var r = ring();
+    r.add(r.slot, event, tick, 0);
+  }
+
+  /**
+   * Record an event about another thread.
+   *
+   * @param subject - the thread the event is about
+   * @param event - the event
+   * @param tick - the tick the event refers to
+   * @param arg - a small argument of the event (at most 63)
+   */
+  void record(Thread subject, int event, int tick, int arg) {
+    var r = ring();
+    r.add(r.slotOf(this, subject), event, tick, arg);
+  }
+
+  /**
+   * A decoded record.
+   *
+   * @param time - the time of the event, in nanoseconds since the start of the run
+   * @param recorder - the thread that recorded the event
+   * @param thread - the thread the event is about
+   * @param event - the event
+   * @param tick - the tick the event refers to
+   * @param arg - the argument of the event
+   */
+  record Event(long time, Thread recorder, Thread thread, int event, int tick, int arg) {
+
+    @Override
+    public String toString() {
+      var name = thread.getName();
+      return switch (event) {
+        case STATE -> name + " is in state " + STATES[arg];
+        case WAIT_FOR_TICK -> name + " is waiting for time " + tick;
+        case RELEASED -> "Releasing " + name + " at time " + tick;
+        case TICK -> "Time is now " + tick;
+        case TOO_EARLY -> "Was Ready to tick too early";
+        case DEADLOCK_CHECK -> "[Detecting deadlock... " + arg + " trys]";
+        case DEADLOCK -> "Deadlock!";
+        case NO_PROGRESS -> "No progress";
+        case KILLED -> "Tick thread killed";
+        case FAILED -> name + " failed";
+        case STARTED -> name + " started";
+        default -> "Unknown event " + event;
+      };
+    }
+  }
+
+  /**
+   * Decode the records still held by the rings, in time order.
+   * Call this when the run is over; records written meanwhile may be missed.
+   *
+   * @return the decoded events
+   */
+  synchronized List<Event> events() {
+    var events = new ArrayList<Event>();
+    for (var r : rings) {
+      var end = r.next.get();
+      for (var n = Math.max(0, end - capacity); n < end; n++) {
+        var i = (int) (n % capacity) << 1;
+        var bits = r.data[i + 1];
+        events.add(new Event(r.data[i], slots.get(r.slot), slots.get((int) (bits >>> 44)),
+          (int) (bits >>> 38) & 0x3F, (int) bits, (int) (bits >>> 32) & MAX_ARG));
+      }
+    }
+    events.sort((a, b) -> Long.compare(a.time, b.time));
+    return events;
+  }
+
+  /**
+   * Print the trace, one event per line, with the time in microseconds since the start of the run.
+   *
+   * @param out - the stream to print to
+   */
+  void print(PrintStream out) {
+    var s = new StringBuilder();
+    for (var e : events()) {
+      s.append(String.format("[%10.1f us] ", e.time / 1000.0)).append(e).append('\n');
+    }
+    out.print(s);
+    out.flush();
+  }
+}
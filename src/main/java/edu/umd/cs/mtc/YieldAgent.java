@@ -0,0 +1,109 @@
+package edu.umd.cs.mtc;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+
+import java.util.ArrayList;
+
+/**
+ * A <code>java.lang.instrument</code> agent that inserts yield points automatically
+ * into the code under test.
+ *
+ * <p>
+ * Without the agent, the interleavings of a test case only vary where its author
+ * has written {@link TestCase#mayYield()}. The agent rewrites the classes of the configured packages
+ * so that their methods call a hook of {@link YieldHooks}:
+ * <ul>
+ * <li>before every field read and write,
+ * <li>before a synchronized block is entered and after it is exited,
+ * <li>before a lock of <code>java.util.concurrent.locks</code> is acquired and after it is released.
+ * </ul>
+ * In a thread method, each hook is a yield point of the current test case
+ * (see {@link TestCase#setAutoYield(double)}); with a {@link PctScheduler}
+ * it is a scheduling point, so every shared-memory access can be a priority change point.
+ * If the test case has a {@link LockOrderGraph}, the hooks at the synchronization actions
+ * also record the locks each thread acquires and releases,
+ * and if it has a {@link RaceDetector}, the hooks feed it the accesses and the synchronization actions.
+ * Outside the thread methods of a running test case the hooks do nothing.
+ *
+ * <p>
+ * Load the agent from a jar whose manifest names this class as <code>Premain-Class</code>,
+ * with the packages to instrument (comma separated) as its argument:
+ * <pre>
+ * java -javaagent:multithreadedtc.jar=com.example.queue,com.example.cache ...
+ * </pre>
+ * The classes of the framework and of the JDK are never instrumented.
+ * Loaded later (as <code>Agent-Class</code>), the agent also rewrites
+ * the classes of the packages that are already loaded.
+ */
+public class YieldAgent {
+
+  /**
+   * The entry point of the agent when it is loaded at startup.
+   *
+   * @param args - the packages to instrument, comma separated
+   * @param inst - the instrumentation of the JVM
+   */
+  public static void premain(String args, Instrumentation inst) {
+    install(args, inst, false);
+  }
+
+  /**
+   * The entry point of the agent when it is loaded into a running JVM.
+   *
+   * @param args - the packages to instrument, comma separated
+   * @param inst - the instrumentation of the JVM
+   */
+  public static void agentmain(String args, Instrumentation inst) {
+    install(args, inst, true);
+  }
+
+  /**
+   * Add the transformer for the configured packages.
+   *
+   * @param args - the packages to instrument, comma separated
+   * @param inst - the instrumentation of the JVM
+   * @param loaded - if true, also rewrite the classes that are already loaded
+   */
+  static void install(String args, Instrumentation inst, boolean loaded) {
+    var packages = packages(args);
+    if (packages.length == 0) {
+      throw new IllegalArgumentException("No packages to instrument; pass them as the argument of the agent");
+    }
+
+    var transformer = new YieldPointTransformer(packages);
+    inst.addTransformer(transformer, loaded);
+    if (loaded && inst.isRetransformClassesSupported()) {
+      var classes = new ArrayList<Class<?>>();
+      for (Class<?> c : inst.getAllLoadedClasses()) {
+        if (inst.isModifiableClass(c) && c.getClassLoader() != null
+          && transformer.instrumented(c.getName().replace('.', '/'))) {
+          classes.add(c);
+        }
+      }
+      try {
+        inst.retransformClasses(classes.toArray(new Class<?>[classes.size()]));
+      }
+      catch (UnmodifiableClassException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
+  /**
+   * @return the package names in the argument of the agent
+   */
+  static String[] packages(String args) {
+    if (args == null) {
+      return new String[0];
+    }
+    var packages = new ArrayList<String>();
+    for (var p : args.split(",")) {
+      if (!p.isBlank()) {
+        packages.add(p.strip());
+      }
+    }
+    return packages.toArray(new String[packages.size()]);
+  }
+
+}
@@ -0,0 +1,215 @@
+package edu.umd.cs.mtc;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The yield points that the {@link YieldAgent} inserts into the classes it instruments.
+ *
+ * <p>
+ * Each hook is a call to a static method, inserted before (or after)
+ * a shared-memory access or a synchronization action.
+ * In a thread method of a running test case the hook is a yield point of that test case
+ * (see {@link TestCase#setAutoYield(double)}), and with a PCT scheduler a scheduling point;
+ * the hooks that are passed a lock also record its acquisition or release
+ * in the {@link LockOrderGraph} of the test case, if it has one,
+ * and the hooks report the accesses and the synchronization actions to its {@link RaceDetector}, if it has one.
+ * Anywhere else it does nothing: when no thread method is running in the JVM
+ * a hook costs a single volatile read, and otherwise a lookup of {@link TestCase#currentTestCase}.
+ *
+ * <p>
+ * These methods are only public so that instrumented classes can call them;
+ * they are not meant to be called directly.
+ */
+public final class YieldHooks {
+
+  /**
+   * The number of thread method threads running in the JVM; the hooks do nothing while it is 0.
+   */
+  static final AtomicInteger active = new AtomicInteger();
+
+  private YieldHooks() {
+  }
+
+  /** Inserted before a field read (getfield, getstatic): the object (null for a static field) and the site */
+  public static void beforeRead(Object object, int site) {
+    yieldPoint();
+    var races = races();
+    if (races != null) {
+      races.read(object, site);
+    }
+  }
+
+  /** Inserted after a field read */
+  public static void afterRead() {
+    var races = races();
+    if (races != null) {
+      races.afterRead();
+    }
+  }
+
+  /** Inserted before a field write (putfield, putstatic): the object (null for a static field) and the site */
+  public static void beforeWrite(Object object, int site) {
+    yieldPoint();
+    var races = races();
+    if (races != null) {
+      races.write(object, site);
+    }
+  }
+
+  /** Inserted before a field write in a constructor, where the object may not be initialized yet */
+  public static void beforeWrite() {
+    yieldPoint();
+  }
+
+  /** Inserted before an array element is read */
+  public static void beforeArrayRead(Object array, int index, int site) {
+    var races = races();
+    if (races != null) {
+      races.arrayAccess(array, index, site, false);
+    }
+  }
+
+  /** Inserted before an array element is written */
+  public static void beforeArrayWrite(Object array, int index, int site) {
+    var races = races();
+    if (races != null) {
+      races.arrayAccess(array, index, site, true);
+    }
+  }
+
+  /** Inserted before a monitor is entered at the start of a synchronized block */
+  public static void beforeMonitorEnter(Object monitor) {
+    yieldPoint();
+  }
+
+  /** Inserted after a monitor is entered at the start of a synchronized block or method */
+  public static void afterMonitorEnter(Object monitor) {
+    var graph = lockOrder();
+    if (graph != null) {
+      graph.acquired(monitor);
+    }
+    var races = races();
+    if (races != null) {
+      races.acquired(monitor);
+    }
+  }
+
+  /** Inserted before a monitor is exited at the end of a synchronized block, or as a synchronized method ends */
+  public static void beforeMonitorExit(Object monitor) {
+    var races = races();
+    if (races != null) {
+      races.releasing(monitor);
+    }
+  }
+
+  /** Inserted after a monitor is exited at the end of a synchronized block, or as a synchronized method ends */
+  public static void afterMonitorExit(Object monitor) {
+    var graph = lockOrder();
+    if (graph != null) {
+      graph.released(monitor);
+    }
+    yieldPoint();
+  }
+
+  /** Inserted before a lock of <code>java.util.concurrent.locks</code> is acquired */
+  public static void beforeLock() {
+    yieldPoint();
+  }
+
+  /** Inserted after <code>lock()</code> or <code>lockInterruptibly()</code> has acquired a lock */
+  public static void afterLock(Object lock) {
+    var graph = lockOrder();
+    if (graph != null) {
+      graph.acquired(lock);
+    }
+    var races = races();
+    if (races != null) {
+      races.acquired(lock);
+    }
+  }
+
+  /** Inserted after <code>tryLock()</code>: returns its result */
+  public static boolean afterTryLock(Object lock, boolean acquired) {
+    if (acquired) {
+      afterLock(lock);
+    }
+    return acquired;
+  }
+
+  /** Inserted before <code>unlock()</code> releases a lock */
+  public static void beforeUnlock(Object lock) {
+    var races = races();
+    if (races != null) {
+      races.releasing(lock);
+    }
+  }
+
+  /** Inserted after a lock of <code>java.util.concurrent.locks</code> is released */
+  public static void afterUnlock() {
+    yieldPoint();
+  }
+
+  /** Inserted after <code>unlock()</code> has released a lock */
+  public static void afterUnlock(Object lock) {
+    var graph = lockOrder();
+    if (graph != null) {
+      graph.released(lock);
+    }
+    yieldPoint();
+  }
+
+  /**
+   * Inserted before a call that synchronizes on its receiver (a method of a class of
+   * <code>java.util.concurrent</code>, <code>Object.wait</code>, <code>notify</code>...):
+   * the receiver, or null if it could not be passed
+   */
+  public static void beforeSync(Object receiver) {
+    var races = races();
+    if (races != null) {
+      races.beforeCall(receiver);
+    }
+  }
+
+  /** Inserted after a call that synchronizes on its receiver */
+  public static void afterSync() {
+    var races = races();
+    if (races != null) {
+      races.afterCall();
+    }
+  }
+
+  /**
+   * @return the lock-order graph of the test case of the current thread, if any
+   */
+  static LockOrderGraph lockOrder() {
+    if (active.get() == 0) {
+      return null;
+    }
+    var test = TestCase.currentTestCase.get();
+    return test == null ? null : test.lockOrder;
+  }
+
+  /**
+   * @return the race detector of the test case of the current thread, if any
+   */
+  static RaceDetector races() {
+    if (active.get() == 0) {
+      return null;
+    }
+    var test = TestCase.currentTestCase.get();
+    return test == null ? null : test.raceDetector;
+  }
+
+  /**
+   * Route a hook to the test case of the current thread, if any.
+   */
+  static void yieldPoint() {
+    if (active.get() == 0) {
+      return;
+    }
+    var test = TestCase.currentTestCase.get();
+    if (test != null) {
+      test.autoYield();
+    }
+  }
+}
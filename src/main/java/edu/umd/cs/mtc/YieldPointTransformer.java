@@ -0,0 +1,414 @@
+package edu.umd.cs.mtc;
+
+import java.lang.instrument.ClassFileTransformer;
+
+import java.security.ProtectionDomain;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * Inserts calls to the {@link YieldHooks} into the methods of the classes in the configured packages.
+ *
+ * <p>
+ * The bytecode is rewritten with ASM (<code>org.ow2.asm:asm</code>, an optional dependency
+ * that the jar of the framework shades, so the agent jar needs nothing else).
+ * A hook is a static call that leaves the operand stack as it found it
+ * (the hooks that are passed an object, a lock or an array element take copies of them from the stack,
+ * and {@link YieldHooks#afterTryLock(Object, boolean)} returns the result of <code>tryLock()</code>),
+ * so the stack map frames of the rewritten methods stay valid; only the maximum stack sizes are recomputed.
+ * Each field and array access is registered as a site of the {@link RaceDetector},
+ * whose number is passed to its hook.
+ * A synchronized method is treated as a synchronized block around its body:
+ * the monitor hooks are called at its start, and before it returns or throws
+ * (through a handler that catches any exception, after the handlers of the method).
+ * Static initializers are left alone: a thread that stops in one holds the initialization
+ * lock of its class, and other threads using the class would block on it.
+ */
+final class YieldPointTransformer implements ClassFileTransformer {
+
+  static final String HOOKS = "edu/umd/cs/mtc/YieldHooks";
+
+  /** The instrumented packages, as internal name prefixes (e.g. <code>com/example/</code>) */
+  final String[] prefixes;
+
+  YieldPointTransformer(String[] packages) {
+    prefixes = new String[packages.length];
+    for (var i = 0; i < packages.length; i++) {
+      prefixes[i] = packages[i].replace('.', '/') + "/";
+    }
+  }
+
+  /**
+   * @param className - the internal name of a class
+   * @return true if the class is in one of the configured packages (or their subpackages)
+   */
+  boolean instrumented(String className) {
+    if (className.startsWith("edu/umd/cs/mtc/")) {
+      return false; // never the framework itself
+    }
+    for (var p : prefixes) {
+      if (className.startsWith(p)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+    ProtectionDomain protectionDomain, byte[] classfileBuffer)
+  {
+    if (loader == null || className == null || !instrumented(className)) {
+      return null;
+    }
+    try {
+      return instrument(classfileBuffer, loader);
+    }
+    catch (Throwable e) {
+      System.err.println("Could not instrument " + className.replace('/', '.') + ": " + e);
+      return null;
+    }
+  }
+
+  /**
+   * Insert the yield hooks into every method of a class, except its static initializer.
+   *
+   * @param bytes - the class file
+   * @param loader - the class loader of the class
+   * @return the instrumented class file
+   */
+  static byte[] instrument(byte[] bytes, ClassLoader loader) {
+    var reader = new ClassReader(bytes);
+    var writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+    reader.accept(new Hooks(writer, loader), 0);
+    return writer.toByteArray();
+  }
+
+  static final class Hooks extends ClassVisitor {
+    final ClassLoader loader;
+    String className, internalName, source;
+    int version;
+
+    Hooks(ClassVisitor cv, ClassLoader loader) {
+      super(Opcodes.ASM9, cv);
+      this.loader = loader;
+    }
+
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+      className = name.replace('/', '.');
+      internalName = name;
+      this.version = version & 0xFFFF;
+      super.visit(version, access, name, signature, superName, interfaces);
+    }
+
+    @Override
+    public void visitSource(String source, String debug) {
+      this.source = source;
+      super.visitSource(source, debug);
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+      var mv = super.visitMethod(access, name, descriptor, signature, exceptions);
+      if (mv == null || name.equals("<clinit>")) {
+        return mv;
+      }
+      return new YieldPoints(mv, this, name, (access & Opcodes.ACC_SYNCHRONIZED) != 0 ? access : -1);
+    }
+  }
+
+  static final class YieldPoints extends MethodVisitor {
+    final Hooks cls;
+    final String method;
+    int line = -1;
+
+    /** The access flags of a synchronized method, or -1 */
+    final int synchronizedAccess;
+
+    /** The body of a synchronized method, covered by the handler that exits its monitor */
+    final Label start = new Label(), end = new Label();
+
+    YieldPoints(MethodVisitor mv, Hooks cls, String method, int synchronizedAccess) {
+      super(Opcodes.ASM9, mv);
+      this.cls = cls;
+      this.method = method;
+      this.synchronizedAccess = synchronizedAccess;
+    }
+
+    /**
+     * Push the monitor of a synchronized method: <code>this</code>, or its class.
+     */
+    void monitor() {
+      if ((synchronizedAccess & Opcodes.ACC_STATIC) != 0) {
+        super.visitLdcInsn(Type.getObjectType(cls.internalName));
+      } else {
+        super.visitVarInsn(Opcodes.ALOAD, 0);
+      }
+    }
+
+    /**
+     * Call the hooks of a monitor exit, for the monitor of a synchronized method
+     * that is about to return or throw.
+     */
+    void monitorExit() {
+      monitor();
+      super.visitInsn(Opcodes.DUP);
+      hook("beforeMonitorExit", "(Ljava/lang/Object;)V");
+      hook("afterMonitorExit", "(Ljava/lang/Object;)V");
+    }
+
+    @Override
+    public void visitCode() {
+      super.visitCode();
+      if (synchronizedAccess >= 0) {
+        // the monitor was entered by the call
+        super.visitLabel(start);
+        monitor();
+        hook("afterMonitorEnter", "(Ljava/lang/Object;)V");
+      }
+    }
+
+    @Override
+    public void visitMaxs(int maxStack, int maxLocals) {
+      if (synchronizedAccess >= 0) {
+        // any exception that leaves the method: exit the monitor, and throw it again
+        super.visitLabel(end);
+        super.visitTryCatchBlock(start, end, end, null);
+        if (cls.version >= Opcodes.V1_6) {
+          var locals = (synchronizedAccess & Opcodes.ACC_STATIC) != 0 ? new Object[0] : new Object[] { cls.internalName };
+          super.visitFrame(Opcodes.F_FULL, locals.length, locals, 1, new Object[] { "java/lang/Throwable" });
+        }
+        monitorExit();
+        super.visitInsn(Opcodes.ATHROW);
+      }
+      super.visitMaxs(maxStack, maxLocals);
+    }
+
+    void hook(String name) {
+      hook(name, "()V");
+    }
+
+    void hook(String name, String descriptor) {
+      super.visitMethodInsn(Opcodes.INVOKESTATIC, HOOKS, name, descriptor, false);
+    }
+
+    /**
+     * Register an access site here and push its number.
+     */
+    void site(String owner, String name) {
+      var location = cls.className + "." + method + "(" + (cls.source == null ? "Unknown Source"
+        : line < 0 ? cls.source : cls.source + ":" + line) + ")";
+      super.visitLdcInsn(RaceDetector.site(cls.loader, owner, name, location));
+    }
+
+    @Override
+    public void visitLineNumber(int line, Label start) {
+      this.line = line;
+      super.visitLineNumber(line, start);
+    }
+
+    @Override
+    public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+      var wide = descriptor.equals("J") || descriptor.equals("D");
+      switch (opcode) {
+      case Opcodes.GETFIELD -> {
+        super.visitInsn(Opcodes.DUP);
+        site(owner, name);
+        hook("beforeRead", "(Ljava/lang/Object;I)V");
+      }
+      case Opcodes.GETSTATIC -> {
+        super.visitInsn(Opcodes.ACONST_NULL);
+        site(owner, name);
+        hook("beforeRead", "(Ljava/lang/Object;I)V");
+      }
+      case Opcodes.PUTFIELD -> {
+        if (method.equals("<init>")) {
+          hook("beforeWrite"); // the object may not be initialized yet
+        } else {
+          // object, value -> object, value, object
+          if (wide) {
+            super.visitInsn(Opcodes.DUP2_X1);
+            super.visitInsn(Opcodes.POP2);
+            super.visitInsn(Opcodes.DUP_X2);
+          } else {
+            super.visitInsn(Opcodes.DUP2);
+            super.visitInsn(Opcodes.POP);
+          }
+          site(owner, name);
+          hook("beforeWrite", "(Ljava/lang/Object;I)V");
+        }
+      }
+      default -> {
+        super.visitInsn(Opcodes.ACONST_NULL);
+        site(owner, name);
+        hook("beforeWrite", "(Ljava/lang/Object;I)V");
+      }
+      }
+      super.visitFieldInsn(opcode, owner, name, descriptor);
+      if (opcode == Opcodes.GETFIELD || opcode == Opcodes.GETSTATIC) {
+        hook("afterRead");
+      }
+    }
+
+    @Override
+    public void visitInsn(int opcode) {
+      switch (opcode) {
+      case Opcodes.MONITORENTER -> {
+        // monitor -> monitor, monitor, monitor -> (enter) monitor -> (hook)
+        super.visitInsn(Opcodes.DUP);
+        super.visitInsn(Opcodes.DUP);
+        hook("beforeMonitorEnter", "(Ljava/lang/Object;)V");
+        super.visitInsn(opcode);
+        hook("afterMonitorEnter", "(Ljava/lang/Object;)V");
+      }
+      case Opcodes.MONITOREXIT -> {
+        super.visitInsn(Opcodes.DUP);
+        super.visitInsn(Opcodes.DUP);
+        hook("beforeMonitorExit", "(Ljava/lang/Object;)V");
+        super.visitInsn(opcode);
+        hook("afterMonitorExit", "(Ljava/lang/Object;)V");
+      }
+      case Opcodes.IALOAD, Opcodes.LALOAD, Opcodes.FALOAD, Opcodes.DALOAD,
+        Opcodes.AALOAD, Opcodes.BALOAD, Opcodes.CALOAD, Opcodes.SALOAD -> {
+        super.visitInsn(Opcodes.DUP2);
+        site(null, null);
+        hook("beforeArrayRead", "(Ljava/lang/Object;II)V");
+        super.visitInsn(opcode);
+      }
+      case Opcodes.IASTORE, Opcodes.FASTORE, Opcodes.AASTORE,
+        Opcodes.BASTORE, Opcodes.CASTORE, Opcodes.SASTORE -> {
+        // array, index, value -> array, index, value, array, index
+        super.visitInsn(Opcodes.DUP_X2);
+        super.visitInsn(Opcodes.POP);
+        super.visitInsn(Opcodes.DUP2_X1);
+        site(null, null);
+        hook("beforeArrayWrite", "(Ljava/lang/Object;II)V");
+        super.visitInsn(opcode);
+      }
+      case Opcodes.LASTORE, Opcodes.DASTORE -> {
+        super.visitInsn(Opcodes.DUP2_X2);
+        super.visitInsn(Opcodes.POP2);
+        super.visitInsn(Opcodes.DUP2_X2);
+        site(null, null);
+        hook("beforeArrayWrite", "(Ljava/lang/Object;II)V");
+        super.visitInsn(opcode);
+      }
+      case Opcodes.IRETURN, Opcodes.LRETURN, Opcodes.FRETURN, Opcodes.DRETURN, Opcodes.ARETURN, Opcodes.RETURN -> {
+        if (synchronizedAccess >= 0) {
+          monitorExit();
+        }
+        super.visitInsn(opcode);
+      }
+      default -> super.visitInsn(opcode);
+      }
+    }
+
+    @Override
+    public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+      var kind = lockCall(owner, name);
+      var recorded = kind != 0 && opcode != Opcodes.INVOKESTATIC && !owner.endsWith("/StampedLock")
+        && (descriptor.equals("()V") || descriptor.equals("()Z") && name.equals("tryLock"));
+      if (kind > 0) {
+        if (recorded) {
+          super.visitInsn(Opcodes.DUP); // the lock, for the hook after the call
+        }
+        hook("beforeLock");
+      } else if (recorded) {
+        super.visitInsn(Opcodes.DUP);
+        super.visitInsn(Opcodes.DUP);
+        hook("beforeUnlock", "(Ljava/lang/Object;)V");
+      }
+      var sync = kind == 0 && opcode != Opcodes.INVOKESTATIC && opcode != Opcodes.INVOKESPECIAL
+        && synchronizes(owner, name);
+      if (sync) {
+        copyReceiver(Type.getArgumentTypes(descriptor));
+        hook("beforeSync", "(Ljava/lang/Object;)V");
+      }
+      super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+      if (sync) {
+        hook("afterSync");
+      }
+      if (recorded) {
+        if (kind < 0) {
+          hook("afterUnlock", "(Ljava/lang/Object;)V");
+        } else if (descriptor.equals("()Z")) {
+          hook("afterTryLock", "(Ljava/lang/Object;Z)Z");
+        } else {
+          hook("afterLock", "(Ljava/lang/Object;)V");
+        }
+      } else if (kind < 0) {
+        hook("afterUnlock");
+      }
+    }
+
+    /**
+     * Push a copy of the receiver of a call, below which are its arguments,
+     * or null if the arguments take more than two stack slots.
+     */
+    void copyReceiver(Type[] arguments) {
+      var slots = 0;
+      for (var t : arguments) {
+        slots += t.getSize();
+      }
+      if (slots == 0) {
+        super.visitInsn(Opcodes.DUP);
+      } else if (slots == 1) {
+        // receiver, a -> receiver, a, receiver
+        super.visitInsn(Opcodes.DUP2);
+        super.visitInsn(Opcodes.POP);
+      } else if (slots == 2) {
+        // receiver, a, b (or a wide a) -> receiver, a, b, receiver
+        super.visitInsn(Opcodes.DUP2_X1);
+        super.visitInsn(Opcodes.POP2);
+        super.visitInsn(Opcodes.DUP_X2);
+      } else {
+        super.visitInsn(Opcodes.ACONST_NULL);
+      }
+    }
+  }
+
+  /**
+   * @return true for a call that synchronizes on its receiver: a method of a class of
+   * <code>java.util.concurrent</code> (other than the locks), <code>Object.wait</code>
+   * and <code>notify</code>, and the <code>await</code> and <code>signal</code> methods of conditions
+   */
+  static boolean synchronizes(String owner, String name) {
+    if (owner.startsWith("java/util/concurrent/locks/")) {
+      return name.startsWith("await") || name.startsWith("signal");
+    }
+    if (owner.startsWith("java/util/concurrent/")) {
+      return true;
+    }
+    return name.equals("wait") || name.equals("notify") || name.equals("notifyAll");
+  }
+
+  /**
+   * Classify a call to a method of <code>java.util.concurrent.locks</code>.
+   *
+   * @return 1 if it acquires a lock, -1 if it releases one, 0 otherwise
+   */
+  static int lockCall(String owner, String name) {
+    if (!owner.startsWith("java/util/concurrent/locks/")) {
+      return 0;
+    }
+    if (owner.equals("java/util/concurrent/locks/StampedLock")) {
+      if (name.startsWith("unlock") || name.startsWith("tryUnlock")) return -1;
+      if (name.endsWith("Lock") || name.endsWith("LockInterruptibly")) {
+        return name.startsWith("as") ? 0 : 1; // asReadLock() and the like return views
+      }
+      return 0;
+    }
+    return switch (name) {
+      case "lock", "lockInterruptibly", "tryLock" -> 1;
+      case "unlock" -> -1;
+      default -> 0;
+    };
+  }
+}
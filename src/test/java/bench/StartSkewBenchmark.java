@@ -0,0 +1,50 @@
+package bench;
+
+import java.util.Arrays;
+
+import edu.umd.cs.mtc.TestCase;
+import edu.umd.cs.mtc.TestFramework;
+
+/**
+ * Measures how simultaneously the thread methods of a run start,
+ * with the default latch start and with the busy-spin start.
+ *
+ * <p>
+ * The start skew of a run is the time between the release of its first and its last thread method
+ * (see {@link TestCase#getStartSkew()}); the median and 90th percentile over RUNS runs are printed.
+ *
+ * <p>
+ * Run with <code>java -cp target/classes:target/test-classes bench.StartSkewBenchmark [runs]</code>.
+ */
+public class StartSkewBenchmark {
+
+  static class FourThreads extends TestCase {
+    void thread1() {}
+    void thread2() {}
+    void thread3() {}
+    void thread4() {}
+  }
+
+  static long[] skews(boolean spinStart, int runs) throws Throwable {
+    var test = new FourThreads();
+    test.setSpinStart(spinStart);
+    var skews = new long[runs];
+    for (var i = -runs / 10; i < runs; i++) { // warm up first
+      TestFramework.runOnce(test, 1, 60);
+      if (i >= 0) skews[i] = test.getStartSkew();
+    }
+    Arrays.sort(skews);
+    return skews;
+  }
+
+  public static void main(String[] args) throws Throwable {
+    var runs = args.length == 0 ? 200 : Integer.parseInt(args[0]);
+    System.out.println("start    median us    p90 us");
+    for (var spin : new boolean[] {false, true}) {
+      var skews = skews(spin, runs);
+      System.out.printf("%-6s %11.1f %9.1f%n", spin ? "spin" : "latch",
+        skews[runs / 2] / 1e3, skews[runs * 9 / 10] / 1e3);
+    }
+  }
+
+}
@@ -0,0 +1,94 @@
+package bench;
+
+import java.util.concurrent.CountDownLatch;
+
+import edu.umd.cs.mtc.TestCase;
+import edu.umd.cs.mtc.TestFramework;
+
+/**
+ * Measures how long the clock thread takes to advance a tick
+ * as the number of threads in the test case grows.
+ *
+ * <p>
+ * Each run has one thread that times TICKS consecutive ticks,
+ * while <em>n</em> other threads in the same thread group are either
+ * blocked for the whole run (<code>idle</code>) or also waiting for every tick (<code>ticking</code>).
+ * The clock period is 1 ms, so a tick costs at least 2 ms (two polls with all threads blocked);
+ * in the <code>idle</code> column anything above that is the cost of the clock thread's bookkeeping,
+ * in the <code>ticking</code> column it also includes the <em>n</em> threads waking up for every tick.
+ *
+ * <p>
+ * Run with <code>java -cp target/classes:target/test-classes bench.TickLatencyBenchmark [n...]</code>.
+ */
+public class TickLatencyBenchmark {
+
+  static final int TICKS = 50;
+
+  static class Ticking extends TestCase {
+    final int n;
+    final boolean allTick;
+    CountDownLatch done;
+    long elapsed;
+
+    Ticking(int n, boolean allTick) {
+      this.n = n;
+      this.allTick = allTick;
+    }
+
+    void setUp() {
+      done = new CountDownLatch(1);
+    }
+
+    void threadTicker() {
+      waitForTick(1); // the pool has started
+      var start = System.nanoTime();
+      for (var i = 2; i <= TICKS + 1; i++) {
+        waitForTick(i);
+      }
+      elapsed = System.nanoTime() - start;
+      done.countDown();
+    }
+
+    void threadPool() throws InterruptedException {
+      // threads started here join the MTC-Threads group
+      var pool = new Thread[n];
+      for (var i = 0; i < n; i++) {
+        pool[i] = new Thread(() -> {
+          try {
+            if (allTick) {
+              for (var j = 1; j <= TICKS + 1; j++) {
+                waitForTick(j);
+              }
+            } else {
+              done.await();
+            }
+          }
+          catch (InterruptedException e) {
+            // end of run
+          }
+        });
+        pool[i].start();
+      }
+      for (var t : pool) {
+        t.join();
+      }
+    }
+  }
+
+  static double msPerTick(int n, boolean allTick) throws Throwable {
+    var test = new Ticking(n, allTick);
+    TestFramework.runOnce(test, 1, 60); // warm up
+    TestFramework.runOnce(test, 1, 60);
+    return test.elapsed / 1e6 / TICKS;
+  }
+
+  public static void main(String[] args) throws Throwable {
+    var sizes = args.length == 0 ? new String[] {"0", "10", "100", "1000", "2000"} : args;
+    System.out.println("threads    idle ms/tick    ticking ms/tick");
+    for (var s : sizes) {
+      var n = Integer.parseInt(s);
+      System.out.printf("%7d %15.2f %18.2f%n", n, msPerTick(n, false), msPerTick(n, true));
+    }
+  }
+
+}
@@ -0,0 +1,202 @@
+package sanity;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+
+import edu.umd.cs.mtc.TestCase;
+import edu.umd.cs.mtc.TestFramework;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class AsyncTests {
+
+  class TUnitTestAsyncThreadMethodsFollowTicks extends TestCase {
+    String s;
+
+    void setUp() {
+      s = "";
+    }
+
+    CompletionStage<Void> thread1() {
+      return onTick(1)
+        .thenRun(() -> s += "A")
+        .thenCompose(v -> onTick(3))
+        .thenRun(() -> s += "C");
+    }
+
+    CompletableFuture<Void> thread2() {
+      return onTick(2).thenRun(() -> s += "B");
+    }
+
+    void tearDown() {
+      assertEquals("ABC", s);
+      assertTick(3);
+    }
+  }
+
+  @Test
+  void testAsyncThreadMethodsFollowTicks() throws Throwable {
+    TestFramework.runOnce( new TUnitTestAsyncThreadMethodsFollowTicks() );
+  }
+
+  // - - - -
+
+  class TUnitTestOnTickMixesWithWaitForTick extends TestCase {
+    String s;
+
+    void setUp() {
+      s = "";
+    }
+
+    void thread1() {
+      waitForTick(1);
+      s += "A";
+      waitForTick(3);
+      s += "C";
+    }
+
+    CompletionStage<Void> thread2() {
+      return onTick(2).thenRun(() -> {
+        s += "B";
+        assertTrue(onTick(1).isDone(), "Future for a past tick should be complete");
+      });
+    }
+
+    void tearDown() {
+      assertEquals("ABC", s);
+    }
+  }
+
+  @Test
+  void testOnTickMixesWithWaitForTick() throws Throwable {
+    TestFramework.runOnce( new TUnitTestOnTickMixesWithWaitForTick() );
+  }
+
+  // - - - -
+
+  class TUnitTestFailedStageFailsTest extends TestCase {
+    CompletionStage<Void> thread1() {
+      return onTick(1).thenRun(() -> {
+        throw new IllegalArgumentException("stage failed");
+      });
+    }
+  }
+
+  @Test
+  void testFailedStageFailsTest() throws Throwable {
+    try {
+      TestFramework.runOnce( new TUnitTestFailedStageFailsTest() );
+      fail("should throw exception");
+    } catch (IllegalArgumentException success) {
+      assertEquals("stage failed", success.getMessage());
+    }
+  }
+
+  // - - - -
+
+  class TUnitTestStageNeverCompletesIsDeadlock extends TestCase {
+    CompletionStage<Void> thread1() {
+      return new CompletableFuture<>();
+    }
+  }
+
+  @Test
+  void testStageNeverCompletesIsDeadlock() throws Throwable {
+    try {
+      TestFramework.runOnce( new TUnitTestStageNeverCompletesIsDeadlock() );
+      fail("should throw exception");
+    } catch (IllegalStateException success) {}
+  }
+
+  // - - - -
+
+  /**
+   * The stage runs on the common pool for longer than a clock period:
+   * the clock must wait for it before reaching tick 1.
+   */
+  class TUnitTestAsyncStageHoldsTheClock extends TestCase {
+    volatile boolean done;
+
+    void setUp() {
+      done = false;
+    }
+
+    CompletionStage<Void> thread1() {
+      return onTick(0).thenRunAsync(() -> {
+        var end = System.nanoTime() + 300_000_000L;
+        while (System.nanoTime() < end) {
+          Thread.onSpinWait();
+        }
+        done = true;
+      });
+    }
+
+    void thread2() {
+      waitForTick(1);
+      assertTrue(done, "Tick 1 arrived while the stage was running");
+    }
+  }
+
+  @Test
+  void testAsyncStageHoldsTheClock() throws Throwable {
+    TestFramework.runOnce( new TUnitTestAsyncStageHoldsTheClock() );
+  }
+
+  // - - - -
+
+  /**
+   * Work on the common pool that no stage of the run is waiting for
+   * must not keep the clock from reaching a tick.
+   */
+  class TUnitTestUnrelatedPoolWorkIsNotProgress extends TestCase {
+    CompletionStage<Void> thread1() {
+      return onTick(1);
+    }
+  }
+
+  @Test
+  void testUnrelatedPoolWorkIsNotProgress() throws Throwable {
+    var release = new CountDownLatch(1);
+    ForkJoinPool.commonPool().execute(() -> {
+      while (release.getCount() > 0) {
+        Thread.onSpinWait();
+      }
+    });
+    try {
+      TestFramework.setGlobalRunLimit(1);
+      TestFramework.runOnce( new TUnitTestUnrelatedPoolWorkIsNotProgress() );
+    }
+    finally {
+      System.clearProperty(TestFramework.RUNLIMIT_KEY);
+      release.countDown();
+    }
+  }
+
+  // - - - -
+
+  /**
+   * Leaves a future for a tick that its run never reaches.
+   */
+  class TUnitTestOnTickEndsWithItsRun extends TestCase {
+    CompletableFuture<Void> never;
+
+    void thread1() {
+      if (never == null) {
+        never = onTick(5);
+      }
+    }
+  }
+
+  @Test
+  void testOnTickEndsWithItsRun() throws Throwable {
+    var test = new TUnitTestOnTickEndsWithItsRun();
+    TestFramework.runOnce(test);
+    assertFalse(test.never.isDone());
+    TestFramework.runOnce(test);
+    assertTrue(test.never.isCompletedExceptionally(), "Future of an ended run should fail");
+  }
+
+}
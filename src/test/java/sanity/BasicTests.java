@@ -259,4 +259,38 @@ class BasicTests {
     TestFramework.runOnce( new SanityGetThreadByNameReturnsCorrectThread() );
   }
 
+  // Test
+  class SanityClockRegulatesThreadsStartedByThreadMethods extends TestCase {
+    AtomicInteger done;
+
+    void setUp() {
+      done = new AtomicInteger(0);
+    }
+
+    void thread1() throws InterruptedException {
+      var pool = new Thread[500];
+      for (var i = 0; i < pool.length; i++) {
+        var tick = 1 + i % 5;
+        pool[i] = new Thread(() -> {
+          waitForTick(tick);
+          done.incrementAndGet();
+        });
+        pool[i].start();
+      }
+      for (var t : pool) {
+        t.join();
+      }
+    }
+
+    void tearDown() {
+      assertEquals(500, done.get());
+      assertTick(5);
+    }
+  }
+
+  @Test
+  void testSanityClockRegulatesThreadsStartedByThreadMethods() throws Throwable {
+    TestFramework.runOnce( new SanityClockRegulatesThreadsStartedByThreadMethods() );
+  }
+
 }
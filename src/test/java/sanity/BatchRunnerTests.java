@@ -0,0 +1,125 @@
+package sanity;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.umd.cs.mtc.BatchRunner;
+import edu.umd.cs.mtc.TestCase;
+import edu.umd.cs.mtc.TestFramework;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class BatchRunnerTests {
+
+  final AtomicInteger created = new AtomicInteger();
+  final AtomicInteger checked = new AtomicInteger();
+
+  class TUnitTestCounter extends TestCase {
+    final int id = created.getAndIncrement();
+    AtomicInteger counter;
+
+    void setUp() {
+      counter = new AtomicInteger();
+    }
+
+    void thread1() {
+      counter.incrementAndGet();
+    }
+
+    void thread2() {
+      waitForTick(1);
+      counter.incrementAndGet();
+    }
+
+    void tearDown() {
+      assertEquals(2, counter.get());
+      checked.incrementAndGet();
+    }
+  }
+
+  @Test
+  void testEveryInstanceIsRunAndChecked() throws Throwable {
+    var report = BatchRunner.run(TUnitTestCounter::new, 1000, 2500);
+    assertEquals(2500, report.getRuns());
+    assertEquals(0, report.getFailures(), String.valueOf(report.getFirstFailure()));
+    assertEquals(2500, created.get());
+    assertEquals(2500, checked.get());
+  }
+
+  // - - - -
+
+  class TUnitTestSomeInstancesFail extends TestCase {
+    final int id = created.getAndIncrement();
+
+    void thread1() {
+      if (id % 100 == 7) {
+        throw new IllegalStateException("instance " + id);
+      }
+    }
+
+    void thread2() {
+    }
+
+    void tearDown() {
+      checked.incrementAndGet();
+    }
+  }
+
+  @Test
+  void testFailuresAreCountedPerInstance() throws Throwable {
+    var report = BatchRunner.run(TUnitTestSomeInstancesFail::new, 500, 1000);
+    assertEquals(1000, report.getRuns());
+    assertEquals(10, report.getFailures());
+    assertEquals(990, checked.get(), "tearDown of a failed instance was run");
+    assertEquals("instance 7", report.getFirstFailure().getMessage());
+    try {
+      BatchRunner.runManyTimes(TUnitTestSomeInstancesFail::new, 100, 100);
+      fail("should throw exception");
+    } catch (IllegalStateException success) {
+      assertEquals("instance 1007", success.getMessage());
+    }
+  }
+
+  // - - - -
+
+  /**
+   * Instance 3 blocks its thread1 until interrupted.
+   */
+  class TUnitTestStuckInstance extends TestCase {
+    final int id = created.getAndIncrement();
+
+    void thread1() throws InterruptedException {
+      if (id == 3) {
+        new CountDownLatch(1).await();
+      }
+    }
+
+    void thread2() {
+    }
+
+    void tearDown() {
+      checked.incrementAndGet();
+    }
+  }
+
+  @Test
+  void testStuckBatchIsReported() throws Throwable {
+    TestFramework.setGlobalRunLimit(1);
+    try {
+      var report = BatchRunner.run(TUnitTestStuckInstance::new, 10, 20);
+      assertEquals(4, report.getRuns(), "the instances after the stuck one, and the next batch, were run");
+      assertEquals(1, report.getFailures());
+      assertEquals(3, checked.get());
+      var message = report.getFirstFailure().getMessage();
+      assertTrue(message.startsWith("Batch stuck at instance 3"), message);
+      assertTrue(message.contains("1 batch thread (WAITING)"), message);
+      assertTrue(message.contains("BatchRunnerTests$TUnitTestStuckInstance.thread1"), message);
+      assertFalse(message.contains("2 batch thread"), message);
+    }
+    finally {
+      System.clearProperty(TestFramework.RUNLIMIT_KEY);
+    }
+  }
+
+}
@@ -0,0 +1,100 @@
+package sanity;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.umd.cs.mtc.Benchmark;
+import edu.umd.cs.mtc.TestCase;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class BenchmarkTests {
+
+  class TUnitTestCounter extends TestCase {
+    AtomicInteger counter;
+
+    void setUp() {
+      counter = new AtomicInteger();
+    }
+
+    void thread1() {
+      counter.incrementAndGet();
+    }
+
+    void thread2() {
+      waitForTick(1);
+      assertTick(1);
+      counter.incrementAndGet();
+    }
+
+    void tearDown() {
+      assertEquals(2, counter.get());
+    }
+  }
+
+  @Test
+  void testOperationsAreCounted() throws Throwable {
+    var test = new TUnitTestCounter();
+    var report = Benchmark.run(test, 50, 200);
+    assertTrue(report.getOps("thread1") > 0, report.toString());
+    assertTrue(report.getOps("thread2") > 0, report.toString());
+    assertEquals(-1, report.getOps("thread3"));
+    assertEquals(report.getOps("thread1") + report.getOps("thread2"), report.getTotalOps());
+    assertTrue(test.counter.get() >= report.getTotalOps(), "operations counted but not run");
+    assertTrue(report.getTotalOpsPerSecond() > 0);
+  }
+
+  // - - - -
+
+  class TUnitTestProducerConsumer extends TestCase {
+    ArrayBlockingQueue<Integer> queue;
+
+    void setUp() {
+      queue = new ArrayBlockingQueue<>(1);
+    }
+
+    void thread1() throws InterruptedException {
+      queue.put(42);
+    }
+
+    void thread2() throws InterruptedException {
+      assertEquals(Integer.valueOf(42), queue.take());
+    }
+  }
+
+  @Test
+  void testBlockedThreadsAreInterruptedAtTheEnd() throws Throwable {
+    var report = Benchmark.run(new TUnitTestProducerConsumer(), 0, 100);
+    var put = report.getOps("thread1");
+    var take = report.getOps("thread2");
+    assertTrue(Math.abs(put - take) <= 2, report.toString());
+  }
+
+  // - - - -
+
+  class TUnitTestFails extends TestCase {
+    AtomicInteger counter;
+
+    void setUp() {
+      counter = new AtomicInteger();
+    }
+
+    void thread1() {
+      if (counter.incrementAndGet() == 1000) {
+        throw new IllegalStateException("failed in benchmark");
+      }
+    }
+  }
+
+  @Test
+  void testExceptionFailsBenchmark() throws Throwable {
+    try {
+      Benchmark.run(new TUnitTestFails(), 0, 100);
+      fail("should throw exception");
+    } catch (IllegalStateException success) {
+      assertEquals("failed in benchmark", success.getMessage());
+    }
+  }
+
+}
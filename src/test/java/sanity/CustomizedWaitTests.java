@@ -0,0 +1,170 @@
+package sanity;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.umd.cs.mtc.TestCase;
+import edu.umd.cs.mtc.TestFramework;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class CustomizedWaitTests {
+
+  class TUnitTestSkipNextWait extends TestCase {
+    Object o;
+
+    void setUp() {
+      o = new Object();
+    }
+
+    void thread1() {
+      synchronized (o) {
+        skipNextWait();
+        waitOn(o); // returns immediately
+      }
+    }
+  }
+
+  @Test
+  void testSkipNextWait() throws Throwable {
+    TestFramework.runOnce( new TUnitTestSkipNextWait() );
+  }
+
+  // - - - -
+
+  class TUnitTestWaitOnReturnsWhenClockAdvances extends TestCase {
+    Object o;
+    volatile boolean done;
+
+    void setUp() {
+      o = new Object();
+      done = false;
+    }
+
+    void thread1() {
+      synchronized (o) {
+        while (!done) {
+          waitOn(o); // never notified
+        }
+      }
+    }
+
+    void thread2() {
+      waitForTick(1);
+      done = true;
+      waitForTick(2);
+    }
+  }
+
+  @Test
+  void testWaitOnReturnsWhenClockAdvances() throws Throwable {
+    TestFramework.runOnce( new TUnitTestWaitOnReturnsWhenClockAdvances() );
+  }
+
+  // - - - -
+
+  class TUnitTestRetryLoopAfterMissedNotify extends TestCase {
+    Object o;
+    volatile boolean ready;
+    CountDownLatch checked, notified;
+
+    void setUp() {
+      o = new Object();
+      ready = false;
+      checked = new CountDownLatch(1);
+      notified = new CountDownLatch(1);
+    }
+
+    void thread1() throws InterruptedException {
+      while (!ready) { // checked outside the monitor: the notification can be missed
+        checked.countDown();
+        notified.await();
+        synchronized (o) {
+          waitOn(o);
+        }
+      }
+    }
+
+    void thread2() throws InterruptedException {
+      checked.await();
+      ready = true;
+      synchronized (o) {
+        o.notifyAll();
+      }
+      notified.countDown();
+    }
+  }
+
+  @Test
+  void testRetryLoopAfterMissedNotify() throws Throwable {
+    TestFramework.runOnce( new TUnitTestRetryLoopAfterMissedNotify() );
+  }
+
+  // - - - -
+
+  class TUnitTestWaitsEndPromptlyAfterDeadlock extends TestCase {
+    Object o;
+    ReentrantLock l;
+    Condition c;
+    Thread t1, t2;
+
+    void setUp() {
+      o = new Object();
+      l = new ReentrantLock();
+      c = l.newCondition();
+    }
+
+    void thread1() {
+      t1 = Thread.currentThread();
+      synchronized (o) {
+        for (;;) waitOn(o);
+      }
+    }
+
+    void thread2() {
+      t2 = Thread.currentThread();
+      l.lock();
+      try {
+        for (;;) awaitOn(c);
+      } finally {
+        l.unlock();
+      }
+    }
+  }
+
+  @Test
+  void testWaitsEndPromptlyAfterDeadlock() throws Throwable {
+    var test = new TUnitTestWaitsEndPromptlyAfterDeadlock();
+    try {
+      TestFramework.runOnce(test);
+      fail("should throw exception");
+    } catch (IllegalStateException success) {
+      test.t1.join(1000);
+      test.t2.join(1000);
+      assertFalse(test.t1.isAlive(), "waitOn did not end after failure");
+      assertFalse(test.t2.isAlive(), "awaitOn did not end after failure");
+    }
+  }
+
+  @Test
+  void testWaitsOutsideThreadMethodsAreBounded() throws Throwable {
+    var o = new Object();
+    var lock = new ReentrantLock();
+    var c = lock.newCondition();
+    var start = System.nanoTime();
+    synchronized (o) {
+      TestCase.waitOn(o); // never notified
+    }
+    lock.lock();
+    try {
+      TestCase.awaitOn(c); // never signalled
+    } finally {
+      lock.unlock();
+    }
+    var seconds = (System.nanoTime() - start) / 1e9;
+    assertTrue(seconds < 10, "waits took " + seconds + " s");
+  }
+
+}
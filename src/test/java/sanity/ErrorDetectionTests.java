@@ -1,5 +1,6 @@
 package sanity;
 
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -101,6 +102,82 @@ class ErrorDetectionTests {
       fail("should throw exception");
     } catch (IllegalStateException success) {
       if (trace) success.printStackTrace();
+      var message = success.getMessage();
+      assertTrue(message.startsWith("No progress in 2."), message);
+      assertTrue(message.contains("1 thread (RUNNABLE) made plenty of CPU progress"), message);
+    }
+  }
+
+  // - - - -
+
+  class TUnitTestStarvedThreadIsReported extends TestCase {
+    volatile boolean done;
+
+    void thread1() {
+      while (!done) Thread.onSpinWait();
+    }
+
+    void thread2() {
+      try {
+        waitForTick(1);
+      } finally {
+        done = true;
+      }
+    }
+  }
+
+  @Test
+  void testStarvedThreadIsReported() throws Throwable {
+    try {
+      TestFramework.runOnce( new TUnitTestStarvedThreadIsReported(), -1, 1 );
+      fail("should throw exception");
+    } catch (IllegalStateException success) {
+      if (trace) success.printStackTrace();
+      var message = success.getMessage();
+      assertTrue(message.contains("1 thread (RUNNABLE) made plenty of CPU progress"), message);
+      assertTrue(message.contains("2 thread (WAITING) made no CPU progress"), message);
+    }
+  }
+
+  // - - - -
+
+  class TUnitTestSpinningThreadIsQuarantined extends TestCase {
+    volatile boolean stop;
+    Thread spinner;
+    CountDownLatch spinning;
+
+    void setUp() {
+      spinning = new CountDownLatch(1);
+    }
+
+    void thread1() throws InterruptedException {
+      spinning.await();
+      throw new IllegalArgumentException("thread1 failed");
+    }
+
+    void thread2() {
+      spinner = Thread.currentThread();
+      spinning.countDown();
+      while (!stop) Thread.yield(); // ignores interrupts
+    }
+  }
+
+  @Test
+  void testSpinningThreadIsQuarantined() throws Throwable {
+    var test = new TUnitTestSpinningThreadIsQuarantined();
+    TestFramework.setGlobalShutdownLimit(200);
+    try {
+      TestFramework.runOnce(test, -1, 2);
+      fail("should throw exception");
+    } catch (IllegalArgumentException success) {
+      if (trace) success.printStackTrace();
+      assertEquals(1, success.getSuppressed().length);
+      assertTrue(success.getSuppressed()[0].getMessage().contains("2 thread"));
+      assertTrue(TestFramework.getQuarantinedThreads().contains(test.spinner));
+    } finally {
+      System.clearProperty(TestFramework.SHUTDOWNLIMIT_KEY);
+      test.stop = true;
+      test.spinner.join();
     }
   }
 
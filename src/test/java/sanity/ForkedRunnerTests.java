@@ -0,0 +1,65 @@
+package sanity;
+
+import java.util.List;
+
+import edu.umd.cs.mtc.ForkedRunner;
+import edu.umd.cs.mtc.TestCase;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ForkedRunnerTests {
+
+  static int runs = 0;
+
+  class TUnitTestCountsRunsInChild extends TestCase {
+    int i;
+
+    void setUp() {
+      runs++;
+      i = 0;
+    }
+
+    void thread1() {
+      i++;
+    }
+
+    void thread2() {
+      waitForTick(1);
+      i++;
+    }
+
+    void tearDown() {
+      assertEquals(2, i);
+    }
+  }
+
+  @Test
+  void testIterationsAreSplitAcrossForks() throws Throwable {
+    var report = ForkedRunner.run(TUnitTestCountsRunsInChild.class, 2, 5, -1, -1, List.of());
+    assertEquals(2, report.getForks());
+    assertEquals(5, report.getIterations());
+    assertEquals(0, report.getFailures());
+    assertNull(report.getFirstFailure());
+    assertEquals(0, runs, "Test case ran in the parent JVM");
+  }
+
+  // - - - -
+
+  class TUnitTestFailsInChild extends TestCase {
+    void thread1() {
+      throw new IllegalArgumentException("thrown in child");
+    }
+  }
+
+  @Test
+  void testFailureIsReportedToParent() throws Throwable {
+    try {
+      ForkedRunner.runManyTimes(new TUnitTestFailsInChild(), 2, 2);
+      fail("should throw exception");
+    } catch (IllegalArgumentException success) {
+      assertEquals("thrown in child", success.getMessage());
+    }
+  }
+
+}
@@ -0,0 +1,50 @@
+package sanity;
+
+import java.util.List;
+
+import edu.umd.cs.mtc.JitMatrix;
+import edu.umd.cs.mtc.TestCase;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class JitMatrixTests {
+
+  /**
+   * Fails only when the JVM interprets everything.
+   */
+  class TUnitTestFailsWhenInterpreted extends TestCase {
+    void thread1() {
+      var info = System.getProperty("java.vm.info");
+      if (info.contains("interpreted")) {
+        throw new IllegalArgumentException(info);
+      }
+    }
+  }
+
+  @Test
+  void testFailingModesAreReported() throws Throwable {
+    var modes = JitMatrix.defaultModes(TUnitTestFailsWhenInterpreted.class);
+    var report = JitMatrix.run(TUnitTestFailsWhenInterpreted.class, modes, 1, 2, 1, -1, -1);
+    assertEquals(8, report.getIterations());
+    assertEquals(2, report.getFailures());
+    assertEquals(List.of("interpreter"), report.getFailingModes().stream().map(JitMatrix.Mode::name).toList());
+    var interpreted = report.getReport(modes.get(0));
+    assertSame(interpreted, report.getReport(JitMatrix.Mode.interpreter()), "an equal mode finds the same results");
+    assertEquals(1, interpreted.getWarmups());
+    assertEquals(1, interpreted.getWarmupFailures());
+    assertTrue(report.toString().contains("Fails under interpreter: 2 of 2 iterations and 1 of 1 warm-up runs"), report.toString());
+  }
+
+  @Test
+  void testFailureNamesTheModes() throws Throwable {
+    try {
+      JitMatrix.runManyTimes(new TUnitTestFailsWhenInterpreted(), 1, 0);
+      fail("should throw exception");
+    } catch (IllegalArgumentException success) {
+      assertTrue(success.getMessage().contains("interpreted mode"), success.getMessage());
+      assertEquals("Failed under interpreter: 1 of 1 iterations", success.getSuppressed()[0].getMessage());
+    }
+  }
+
+}
@@ -0,0 +1,134 @@
+package sanity;
+
+import java.net.URI;
+import java.nio.file.Path;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+import edu.umd.cs.mtc.Benchmark;
+import edu.umd.cs.mtc.JmhGenerator;
+import edu.umd.cs.mtc.TestCase;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.*;
+
+class JmhGeneratorTests {
+
+  class TUnitTestQueue extends TestCase {
+    int i;
+
+    void setUp() {
+      i = 0;
+    }
+
+    void thread1() {
+      i++;
+    }
+
+    void thread2() {
+      waitForTick(1);
+      sleepTicks(2);
+      i++;
+    }
+
+    CompletionStage<Void> thread3() {
+      return CompletableFuture.completedFuture(null);
+    }
+
+    void tearDown() {
+      assertEquals(2, i);
+    }
+  }
+
+  @Test
+  void testBenchmarkSource() {
+    var source = JmhGenerator.generate(TUnitTestQueue.class);
+    assertTrue(source.startsWith("package sanity;\n"), source);
+    assertTrue(source.contains("@State(Scope.Group)\npublic class JmhGeneratorTests_TUnitTestQueueJmh {"), source);
+    assertTrue(source.contains("  JmhGeneratorTests.TUnitTestQueue test;"), source);
+    assertTrue(source.contains("test = edu.umd.cs.mtc.Benchmark.withoutClock(new JmhGeneratorTests().new TUnitTestQueue());"), source);
+    assertTrue(source.contains("    test.setUp();\n"), source);
+    assertFalse(source.contains("tearDown"), source);
+    assertTrue(source.contains("  public void thread1(Attached attached) throws Throwable {\n    test.thread1();\n"), source);
+    assertTrue(source.contains("    test.thread3().toCompletableFuture().join();\n"), source);
+    assertEquals(3, source.split("@GroupThreads\\(1\\)", -1).length - 1, source);
+    assertEquals(3, source.split("@Group\\(\"TUnitTestQueue\"\\)", -1).length - 1, source);
+  }
+
+  /**
+   * Minimal JMH annotations, to compile a generated benchmark where JMH is not on the class path.
+   */
+  static final Map<String, String> JMH_STUBS = Map.of(
+    "Benchmark", "public @interface Benchmark {}",
+    "Group", "public @interface Group { String value() default \"group\"; }",
+    "GroupThreads", "public @interface GroupThreads { int value() default 1; }",
+    "Level", "public enum Level { Trial, Iteration, Invocation }",
+    "Scope", "public enum Scope { Benchmark, Group, Thread }",
+    "Setup", "public @interface Setup { Level value() default Level.Trial; }",
+    "State", "public @interface State { Scope value(); }");
+
+  static JavaFileObject source(String className, String code) {
+    return new SimpleJavaFileObject(URI.create("string:///" + className.replace('.', '/') + ".java"),
+      JavaFileObject.Kind.SOURCE) {
+      @Override
+      public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+        return code;
+      }
+    };
+  }
+
+  @Test
+  void testBenchmarkSourceCompiles(@TempDir Path dir) throws Exception {
+    var compiler = ToolProvider.getSystemJavaCompiler();
+    assumeTrue(compiler != null, "no Java compiler in this runtime");
+    var sources = new ArrayList<JavaFileObject>();
+    sources.add(source("sanity.JmhGeneratorTests_TUnitTestQueueJmh", JmhGenerator.generate(TUnitTestQueue.class)));
+    try {
+      Class.forName("org.openjdk.jmh.annotations.State");
+    } catch (ClassNotFoundException e) {
+      JMH_STUBS.forEach((name, code) -> sources.add(source("org.openjdk.jmh.annotations." + name,
+        "package org.openjdk.jmh.annotations;\n" + code + "\n")));
+    }
+    var diagnostics = new DiagnosticCollector<JavaFileObject>();
+    try (var files = compiler.getStandardFileManager(diagnostics, null, null)) {
+      files.setLocationFromPaths(StandardLocation.CLASS_OUTPUT, List.of(dir));
+      var options = List.of("-classpath", System.getProperty("java.class.path"), "-proc:none");
+      var ok = compiler.getTask(null, files, diagnostics, options, null, sources).call();
+      assertTrue(ok, diagnostics.getDiagnostics().toString());
+    }
+    assertTrue(dir.resolve("sanity/JmhGeneratorTests_TUnitTestQueueJmh.class").toFile().isFile());
+  }
+
+  @Test
+  void testThreadMethodsRunWithoutClock() throws Throwable {
+    var test = Benchmark.withoutClock(new TUnitTestQueue());
+    test.setUp();
+    var t = new Thread(() -> {
+      Benchmark.enter(test);
+      test.thread2(); // waits for ticks that never come in a test run
+      test.thread1();
+    });
+    t.start();
+    t.join(1000);
+    assertFalse(t.isAlive(), "thread method waited for the clock");
+    test.tearDown();
+  }
+
+  @Test
+  void testNoThreadMethods() {
+    assertThrows(IllegalArgumentException.class, () -> JmhGenerator.generate(TestCase.class));
+  }
+
+}
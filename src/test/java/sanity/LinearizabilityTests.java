@@ -0,0 +1,246 @@
+package sanity;
+
+import java.util.List;
+import java.util.Map;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.umd.cs.mtc.History;
+import edu.umd.cs.mtc.SequentialModel;
+import edu.umd.cs.mtc.TestCase;
+import edu.umd.cs.mtc.TestFramework;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class LinearizabilityTests {
+
+  /**
+   * A counter whose increment returns the new value.
+   */
+  static final SequentialModel<Integer> COUNTER = new SequentialModel<>() {
+    public Integer initial() {
+      return 0;
+    }
+
+    public Integer step(Integer value, History.Operation op) {
+      switch (op.getName()) {
+      case "increment":
+        return op.getResult().equals(value + 1) ? value + 1 : null;
+      case "get":
+        return op.getResult().equals(value) ? value : null;
+      default:
+        throw new IllegalArgumentException(op.toString());
+      }
+    }
+  };
+
+  /**
+   * A map of integers, whose put returns the old value; each key is checked on its own.
+   * The state of a part is the value of its key.
+   */
+  static final SequentialModel<Integer> MAP = new SequentialModel<>() {
+    public Integer initial() {
+      return -1; // no value
+    }
+
+    public Integer step(Integer value, History.Operation op) {
+      var old = value < 0 ? null : value;
+      if (op.getResult() == null ? old != null : !op.getResult().equals(old)) {
+        return null;
+      }
+      switch (op.getName()) {
+      case "put":
+        return (Integer) op.getArgument(1);
+      case "get":
+        return value;
+      default:
+        throw new IllegalArgumentException(op.toString());
+      }
+    }
+
+    public List<List<History.Operation>> partition(List<History.Operation> operations) {
+      return History.partitionBy(operations, op -> op.getArgument(0));
+    }
+  };
+
+  /**
+   * Two threads increment an atomic counter many times.
+   */
+  class TUnitTestAtomicCounter extends TestCase {
+    final History history = new History(COUNTER);
+    final AtomicInteger counter = new AtomicInteger();
+
+    {
+      setHistory(history);
+    }
+
+    void setUp() {
+      counter.set(0);
+    }
+
+    void increments() {
+      for (var i = 0; i < 500; i++) {
+        var op = history.invoke("increment");
+        op.respond(counter.incrementAndGet());
+        if (i % 100 == 0) {
+          history.invoke("get").respond(counter.get());
+        }
+      }
+    }
+
+    void thread1() {
+      increments();
+    }
+
+    void thread2() {
+      increments();
+    }
+  }
+
+  /**
+   * Two increments of a counter that is not atomic, forced to overlap:
+   * both return 1, which no sequential order allows,
+   * although the final value is never checked.
+   */
+  class TUnitTestLostIncrement extends TestCase {
+    final History history = new History(COUNTER);
+    int counter;
+
+    {
+      setHistory(history);
+    }
+
+    void setUp() {
+      counter = 0;
+    }
+
+    void thread1() {
+      var op = history.invoke("increment");
+      var c = counter;
+      waitForTick(2);
+      counter = c + 1;
+      op.respond(counter);
+    }
+
+    void thread2() {
+      waitForTick(1);
+      var op = history.invoke("increment");
+      counter++;
+      op.respond(counter);
+    }
+  }
+
+  /**
+   * Four threads put and get random keys of a concurrent map.
+   */
+  class TUnitTestConcurrentMap extends TestCase {
+    final History history = new History(MAP);
+    final Map<Integer, Integer> map = new ConcurrentHashMap<>();
+
+    {
+      setHistory(history);
+    }
+
+    void setUp() {
+      map.clear();
+    }
+
+    void operations(int seed) {
+      for (var i = 0; i < 1000; i++) {
+        var key = (i * seed) % 16;
+        if (i % 3 == 0) {
+          var op = history.invoke("get", key);
+          op.respond(map.get(key));
+        } else {
+          var op = history.invoke("put", key, i);
+          op.respond(map.put(key, i));
+        }
+      }
+    }
+
+    void thread1() {
+      operations(1);
+    }
+
+    void thread2() {
+      operations(3);
+    }
+
+    void thread3() {
+      operations(5);
+    }
+
+    void thread4() {
+      operations(7);
+    }
+  }
+
+  @Test
+  void testEveryRunIsChecked() throws Throwable {
+    var test = new TUnitTestAtomicCounter();
+    TestFramework.runManyTimes(test, 20);
+    var report = test.history.check();
+    assertTrue(report.isLinearizable(), report.toString());
+    assertEquals(1010, report.getOperations());
+  }
+
+  @Test
+  void testNotLinearizable() throws Throwable {
+    var test = new TUnitTestLostIncrement();
+    try {
+      TestFramework.runOnce(test);
+      fail("should throw exception");
+    } catch (AssertionError e) {
+      assertTrue(e.getMessage().startsWith("Not linearizable"), e.getMessage());
+    }
+    var report = test.history.check();
+    assertFalse(report.isLinearizable());
+    assertEquals(1, report.getLongestLinearization().size(), report.toString());
+    assertEquals("increment", report.getStuckOperation().getName());
+  }
+
+  @Test
+  void testPartitionedHistory() throws Throwable {
+    var test = new TUnitTestConcurrentMap();
+    TestFramework.runOnce(test);
+    var report = test.history.check();
+    assertTrue(report.isLinearizable(), report.toString());
+    assertEquals(4000, report.getOperations());
+    assertEquals(16, report.getParts());
+  }
+
+  /**
+   * The first part is linearizable after backtracking, the second is not:
+   * the report shows the second part only.
+   */
+  @Test
+  void testReportShowsTheFailingPart() {
+    var history = new History(MAP);
+    var put = history.invoke("put", "a", 1);
+    var get = history.invoke("get", "a");
+    put.respond(null);
+    get.respond(null); // linearized before the put, once the put first fails it
+    history.invoke("get", "b").respond(5);
+    var report = history.check();
+    assertFalse(report.isLinearizable());
+    assertEquals(2, report.getParts());
+    assertEquals(List.of(), report.getLongestLinearization(), report.toString());
+    assertEquals("b", report.getStuckOperation().getArgument(0), report.toString());
+  }
+
+  @Test
+  void testPendingOperationsAreLeftOut() {
+    var history = new History(COUNTER);
+    history.invoke("increment").respond(1);
+    history.invoke("increment"); // never responds
+    history.invoke("get").respond(1);
+    var report = history.check();
+    assertTrue(report.isLinearizable(), report.toString());
+    assertEquals(2, report.getOperations());
+    history.clear();
+    assertTrue(history.getOperations().isEmpty());
+  }
+
+}
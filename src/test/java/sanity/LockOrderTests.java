@@ -0,0 +1,318 @@
+package sanity;
+
+import java.nio.file.Path;
+
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.umd.cs.mtc.ForkedRunner;
+import edu.umd.cs.mtc.LockOrderGraph;
+import edu.umd.cs.mtc.TestCase;
+import edu.umd.cs.mtc.TestFramework;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+class LockOrderTests {
+
+  /**
+   * Two threads take two locks in opposite orders, one after the other: no run deadlocks.
+   */
+  class TUnitTestOppositeOrder extends TestCase {
+    final LockOrderGraph graph = new LockOrderGraph();
+    final Lock a = graph.wrap(new ReentrantLock(), "A");
+    final Lock b = graph.wrap(new ReentrantLock(), "B");
+
+    {
+      setLockOrder(graph);
+    }
+
+    void thread1() {
+      a.lock();
+      try {
+        b.lock();
+        b.unlock();
+      } finally {
+        a.unlock();
+      }
+    }
+
+    void thread2() {
+      waitForTick(1);
+      b.lock();
+      try {
+        a.lock();
+        a.unlock();
+      } finally {
+        b.unlock();
+      }
+    }
+  }
+
+  /**
+   * Two threads take two locks in the same order, reentering the first.
+   */
+  class TUnitTestSameOrder extends TestCase {
+    final LockOrderGraph graph = new LockOrderGraph();
+    final Lock a = graph.wrap(new ReentrantLock(), "A");
+    final Lock b = graph.wrap(new ReentrantLock(), "B");
+
+    {
+      setLockOrder(graph);
+    }
+
+    void takeBoth() {
+      a.lock();
+      try {
+        b.lock();
+        a.lock();
+        a.unlock();
+        b.unlock();
+      } finally {
+        a.unlock();
+      }
+    }
+
+    void thread1() {
+      takeBoth();
+    }
+
+    void thread2() {
+      takeBoth();
+    }
+  }
+
+  /**
+   * One thread takes two locks, in the opposite order from one run to the next.
+   */
+  class TUnitTestOrderChangesBetweenRuns extends TestCase {
+    final LockOrderGraph graph = new LockOrderGraph();
+    final Lock a = graph.wrap(new ReentrantLock(), "A");
+    final Lock b = graph.wrap(new ReentrantLock(), "B");
+    int runs;
+
+    {
+      setLockOrder(graph);
+    }
+
+    void thread1() {
+      var first = runs % 2 == 0 ? a : b;
+      var second = runs % 2 == 0 ? b : a;
+      runs++;
+      first.lock();
+      second.lock();
+      second.unlock();
+      first.unlock();
+    }
+  }
+
+  /**
+   * Two threads take two locks in opposite orders, in different runs.
+   */
+  class TUnitTestThreadsChangeBetweenRuns extends TestCase {
+    final LockOrderGraph graph = new LockOrderGraph();
+    final Lock a = graph.wrap(new ReentrantLock(), "A");
+    final Lock b = graph.wrap(new ReentrantLock(), "B");
+    volatile int run;
+
+    {
+      setLockOrder(graph);
+    }
+
+    void takeInOrder(Lock first, Lock second) {
+      first.lock();
+      second.lock();
+      second.unlock();
+      first.unlock();
+    }
+
+    void thread1() {
+      if (run == 0) {
+        takeInOrder(a, b);
+      }
+    }
+
+    void thread2() {
+      if (run == 1) {
+        takeInOrder(b, a);
+      }
+    }
+
+    void tearDown() {
+      run++;
+    }
+  }
+
+  /**
+   * The same cycle as {@link TUnitTestOppositeOrder}, with synchronized blocks, for the agent.
+   */
+  class TUnitTestOppositeMonitors extends TestCase {
+    final Object a = new Object();
+    final Object b = new Object();
+
+    void thread1() {
+      synchronized (a) {
+        synchronized (b) {
+        }
+      }
+    }
+
+    void thread2() {
+      waitForTick(1);
+      synchronized (b) {
+        synchronized (a) {
+        }
+      }
+    }
+  }
+
+  /**
+   * The same cycle with unwrapped locks, for the agent.
+   */
+  class TUnitTestOppositeLocks extends TestCase {
+    final ReentrantLock a = new ReentrantLock();
+    final ReentrantLock b = new ReentrantLock();
+
+    void thread1() {
+      a.lock();
+      if (b.tryLock()) {
+        b.unlock();
+      }
+      a.unlock();
+    }
+
+    void thread2() {
+      waitForTick(1);
+      b.lock();
+      a.lock();
+      a.unlock();
+      b.unlock();
+    }
+  }
+
+  /**
+   * An object whose synchronized method calls a synchronized method of another.
+   */
+  static class Account {
+    int balance;
+
+    synchronized void transfer(Account to, int amount) {
+      balance -= amount;
+      to.deposit(amount);
+    }
+
+    synchronized void deposit(int amount) {
+      balance += amount;
+    }
+
+    synchronized void overdraw() {
+      throw new IllegalStateException("overdrawn");
+    }
+  }
+
+  /**
+   * The same cycle with synchronized methods, for the agent.
+   */
+  class TUnitTestOppositeSynchronizedMethods extends TestCase {
+    final Account a = new Account();
+    final Account b = new Account();
+
+    void thread1() {
+      a.transfer(b, 1);
+    }
+
+    void thread2() {
+      waitForTick(1);
+      b.transfer(a, 1);
+    }
+  }
+
+  /**
+   * A synchronized method that throws releases its monitor:
+   * thread1 does not hold <code>a</code> when it takes <code>b</code>, so there is no cycle.
+   */
+  class TUnitTestSynchronizedMethodThrows extends TestCase {
+    final Account a = new Account();
+    final Account b = new Account();
+
+    void thread1() {
+      try {
+        a.overdraw();
+      } catch (IllegalStateException expected) {
+      }
+      b.deposit(1);
+    }
+
+    void thread2() {
+      waitForTick(1);
+      b.transfer(a, 1);
+    }
+  }
+
+  @Test
+  void testCycleWithoutDeadlock() throws Throwable {
+    var test = new TUnitTestOppositeOrder();
+    try {
+      TestFramework.runOnce(test);
+      fail("should throw exception");
+    } catch (AssertionError e) {
+      var message = e.getMessage();
+      assertTrue(message.startsWith("Potential deadlock"), message);
+      assertTrue(message.contains("1 thread acquires B while holding A"), message);
+      assertTrue(message.contains("2 thread acquires A while holding B"), message);
+      assertTrue(message.contains("LockOrderTests$TUnitTestOppositeOrder.thread2"), message);
+    }
+    assertEquals(1, test.graph.getCycles().size());
+    assertEquals(2, test.graph.getCycles().get(0).getEdges().size());
+    TestFramework.runOnce(test); // already reported
+  }
+
+  @Test
+  void testConsistentOrder() throws Throwable {
+    var test = new TUnitTestSameOrder();
+    TestFramework.runManyTimes(test, 10);
+    assertEquals(2, test.graph.getLocks());
+    assertEquals(1, test.graph.getEdges());
+    assertTrue(test.graph.getCycles().isEmpty());
+  }
+
+  @Test
+  void testCycleAcrossRuns() throws Throwable {
+    var test = new TUnitTestThreadsChangeBetweenRuns();
+    TestFramework.runOnce(test);
+    try {
+      TestFramework.runOnce(test);
+      fail("should throw exception");
+    } catch (AssertionError e) {
+      assertTrue(e.getMessage().startsWith("Potential deadlock"), e.getMessage());
+    }
+    test.graph.reset();
+    assertEquals(0, test.graph.getEdges());
+  }
+
+  @Test
+  void testCycleOfOneThreadIsNotReported() throws Throwable {
+    var test = new TUnitTestOrderChangesBetweenRuns();
+    TestFramework.runManyTimes(test, 4);
+    assertEquals(2, test.graph.getEdges());
+    assertTrue(test.graph.getCycles().isEmpty());
+  }
+
+  @Test
+  void testAgentRecordsMonitorsAndLocks(@TempDir Path dir) throws Throwable {
+    var agent = "-javaagent:" + YieldAgentTests.agentJar(dir) + "=sanity";
+    for (var c : List.of(TUnitTestOppositeMonitors.class, TUnitTestOppositeLocks.class,
+      TUnitTestOppositeSynchronizedMethods.class))
+    {
+      var report = ForkedRunner.run(c, 1, 1, -1, -1, List.of(agent, "-D" + LockOrderGraph.KEY + "=true"));
+      assertEquals(1, report.getFailures(), c.getSimpleName());
+      assertTrue(String.valueOf(report.getFirstFailure()).contains("Potential deadlock"), String.valueOf(report.getFirstFailure()));
+    }
+    var report = ForkedRunner.run(TUnitTestSynchronizedMethodThrows.class, 1, 1, -1, -1,
+      List.of(agent, "-D" + LockOrderGraph.KEY + "=true"));
+    assertEquals(0, report.getFailures(), String.valueOf(report.getFirstFailure()));
+  }
+
+}
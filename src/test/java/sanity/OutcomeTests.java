@@ -0,0 +1,150 @@
+package sanity;
+
+import java.util.concurrent.CountDownLatch;
+
+import edu.umd.cs.mtc.OutcomeRunner;
+import edu.umd.cs.mtc.OutcomeTestCase;
+import edu.umd.cs.mtc.TestFramework;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class OutcomeTests {
+
+  class TUnitTestStoreBuffering extends OutcomeTestCase {
+    volatile int x, y;
+
+    {
+      acceptable("thread2 ran first", 1, 0);
+      acceptable("thread1 ran first", 0, 1);
+      acceptable("both stores before both loads", 1, 1);
+      forbidden("sequential consistency violated", 0, 0);
+    }
+
+    void setUp() {
+      x = 0;
+      y = 0;
+    }
+
+    void thread1() {
+      x = 1;
+      result.r1 = y;
+    }
+
+    void thread2() {
+      y = 1;
+      result.r2 = x;
+    }
+  }
+
+  @Test
+  void testVolatileStoreBuffering() throws Throwable {
+    var report = OutcomeRunner.check(new TUnitTestStoreBuffering(), 20_000);
+    assertEquals(20_000, report.getTotal(), report.toString());
+    assertEquals(0, report.getCount(0, 0), report.toString());
+    assertEquals(0, report.getForbidden());
+  }
+
+  // - - - -
+
+  class TUnitTestLostUpdate extends OutcomeTestCase {
+    int i;
+
+    {
+      acceptable("both increments", 2);
+      interesting("lost update", 1);
+    }
+
+    void setUp() {
+      i = 0;
+    }
+
+    void thread1() {
+      i++;
+    }
+
+    void thread2() {
+      i++;
+    }
+
+    void tearDown() {
+      result.r1 = i;
+    }
+  }
+
+  @Test
+  void testFinishMethodRecordsFinalState() throws Throwable {
+    var report = OutcomeRunner.check(new TUnitTestLostUpdate(), 10_000);
+    assertEquals(10_000, report.getCount(2) + report.getCount(1), report.toString());
+    assertEquals(report.getCount(1), report.getInteresting());
+  }
+
+  // - - - -
+
+  class TUnitTestUndeclaredOutcome extends OutcomeTestCase {
+    {
+      acceptable("thread1 saw nothing", 0);
+    }
+
+    void thread1() {
+      result.r1 = 42;
+    }
+  }
+
+  @Test
+  void testUndeclaredOutcomeIsForbidden() throws Throwable {
+    var report = OutcomeRunner.run(new TUnitTestUndeclaredOutcome(), 100);
+    assertEquals(100, report.getForbidden());
+    assertEquals("unknown outcome", report.getOutcomes().get(0).description());
+    try {
+      OutcomeRunner.check(new TUnitTestUndeclaredOutcome(), 100);
+      fail("should throw exception");
+    } catch (AssertionError success) {
+      assertTrue(success.getMessage().contains("42"), success.getMessage());
+    }
+  }
+
+  // - - - -
+
+  /**
+   * Iteration 3 blocks its thread1 until interrupted.
+   */
+  class TUnitTestStuckIteration extends OutcomeTestCase {
+    int iteration;
+
+    {
+      acceptable("ran", 0);
+    }
+
+    void setUp() {
+      iteration++;
+    }
+
+    void thread1() throws InterruptedException {
+      if (iteration == 3) {
+        new CountDownLatch(1).await();
+      }
+    }
+
+    void thread2() {
+    }
+  }
+
+  @Test
+  void testStuckIterationIsReported() throws Throwable {
+    TestFramework.setGlobalRunLimit(1);
+    try {
+      var e = assertThrows(IllegalStateException.class, () -> OutcomeRunner.run(new TUnitTestStuckIteration(), 10));
+      var message = e.getMessage();
+      assertTrue(message.startsWith("Stuck at iteration 3"), message);
+      assertTrue(message.contains("1 worker (WAITING)"), message);
+      assertTrue(message.contains("OutcomeTests$TUnitTestStuckIteration.thread1"), message);
+      assertFalse(message.contains("2 worker"), message);
+      assertFalse(message.contains("Quarantined"), message);
+    }
+    finally {
+      System.clearProperty(TestFramework.RUNLIMIT_KEY);
+    }
+  }
+
+}
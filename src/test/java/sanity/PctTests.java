@@ -0,0 +1,103 @@
+package sanity;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.umd.cs.mtc.PctScheduler;
+import edu.umd.cs.mtc.TestCase;
+import edu.umd.cs.mtc.TestFramework;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class PctTests {
+
+  /**
+   * A lost update: a bug of depth 2, which needs a thread switch between the read and the write.
+   */
+  class TUnitTestLostUpdate extends TestCase {
+    int counter;
+
+    void setUp() {
+      counter = 0;
+    }
+
+    void thread1() {
+      var c = counter;
+      mayYield();
+      counter = c + 1;
+    }
+
+    void thread2() {
+      var c = counter;
+      mayYield();
+      counter = c + 1;
+    }
+
+    void tearDown() {
+      assertEquals(2, counter);
+    }
+  }
+
+  /**
+   * Run a test case, and list the runs that failed.
+   */
+  static List<Integer> failedRuns(TestCase test, int count) {
+    var failed = new ArrayList<Integer>();
+    for (var i = 0; i < count; i++) {
+      try {
+        TestFramework.runOnce(test);
+      }
+      catch (Throwable e) {
+        failed.add(i);
+      }
+    }
+    return failed;
+  }
+
+  @Test
+  void testDepthOneRunsThreadsOneAtATime() throws Throwable {
+    var test = new TUnitTestLostUpdate();
+    test.setPct(new PctScheduler(1, 42));
+    TestFramework.runManyTimes(test, 50);
+  }
+
+  @Test
+  void testDepthTwoFindsLostUpdate() {
+    var test = new TUnitTestLostUpdate();
+    test.setPct(new PctScheduler(2, 42, 2));
+    var failed = failedRuns(test, 50);
+    assertFalse(failed.isEmpty(), "lost update never found");
+    assertEquals(2, test.getPct().getThreads());
+    assertEquals(2, test.getPct().getSteps());
+  }
+
+  @Test
+  void testSeedReplaysSchedules() {
+    var test = new TUnitTestLostUpdate();
+    test.setPct(new PctScheduler(2, 7, 2));
+    var first = failedRuns(test, 20);
+    test.setPct(new PctScheduler(2, 7, 2));
+    assertEquals(first, failedRuns(test, 20));
+  }
+
+  @Test
+  void testProbabilityBound() throws Throwable {
+    var test = new TUnitTestLostUpdate();
+    var pct = new PctScheduler(2, 1, 10);
+    assertEquals(0, pct.getProbabilityBound());
+    test.setPct(pct);
+    failedRuns(test, 1);
+    assertEquals(1.0 / 20, pct.getProbabilityBound(), 1e-12);
+    assertEquals(90, pct.iterationsFor(0.99));
+  }
+
+  @Test
+  void testStepsEstimateGrows() throws Throwable {
+    var test = new TUnitTestLostUpdate();
+    test.setPct(new PctScheduler(3, 5, 1));
+    failedRuns(test, 1);
+    assertEquals(2, test.getPct().getSteps());
+  }
+
+}
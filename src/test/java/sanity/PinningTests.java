@@ -0,0 +1,131 @@
+package sanity;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.umd.cs.mtc.PinningDetector;
+import edu.umd.cs.mtc.TestCase;
+import edu.umd.cs.mtc.TestFramework;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class PinningTests {
+
+  /**
+   * A virtual thread that sleeps in a synchronized block, and so pins its carrier.
+   */
+  class TUnitTestSleepInMonitor extends TestCase {
+    final Object monitor = new Object();
+
+    {
+      setPinning(new PinningDetector(true));
+    }
+
+    void sleepInMonitor() {
+      synchronized (monitor) {
+        try {
+          Thread.sleep(1);
+        }
+        catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+      }
+    }
+
+    void thread1() throws InterruptedException {
+      Thread.ofVirtual().start(() -> sleepInMonitor()).join();
+    }
+  }
+
+  /**
+   * The same, with a virtual thread started with a method reference:
+   * no thread method is on its stack.
+   */
+  class TUnitTestUnattributed extends TUnitTestSleepInMonitor {
+    @Override
+    void thread1() throws InterruptedException {
+      Thread.ofVirtual().start(this::sleepInMonitor).join();
+    }
+  }
+
+  /**
+   * The same with a lock, and a virtual thread (started by a virtual thread) waiting for a tick.
+   */
+  class TUnitTestUnmounts extends TestCase {
+    final ReentrantLock lock = new ReentrantLock();
+
+    {
+      setPinning(new PinningDetector(true));
+    }
+
+    void thread1() throws InterruptedException {
+      Thread.ofVirtual().start(() -> {
+        lock.lock();
+        try {
+          Thread.sleep(1);
+        }
+        catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+        finally {
+          lock.unlock();
+        }
+      }).join();
+    }
+
+    void thread2() throws InterruptedException {
+      Thread.ofVirtual().start(() -> {
+        try {
+          Thread.ofVirtual().start(() -> waitForTick(1)).join();
+        }
+        catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+      }).join();
+      assertTick(1);
+    }
+  }
+
+  @Test
+  void testPinningIsAttributed() throws Throwable {
+    var test = new TUnitTestSleepInMonitor();
+    try {
+      TestFramework.runOnce(test);
+      fail("should throw exception");
+    } catch (AssertionError e) {
+      var message = e.getMessage();
+      assertTrue(message.startsWith("Virtual thread pinning"), message);
+      assertTrue(message.contains("of thread1 pinned its carrier"), message);
+      assertTrue(message.contains("PinningTests$TUnitTestSleepInMonitor.sleepInMonitor"), message);
+    }
+    var events = test.getPinning().getEvents();
+    assertFalse(events.isEmpty());
+    assertTrue(events.get(0).isPinned());
+    assertEquals("thread1", events.get(0).getThread());
+  }
+
+  @Test
+  void testUnattributedPinningDoesNotFail() throws Throwable {
+    var test = new TUnitTestUnattributed();
+    TestFramework.runOnce(test);
+    var events = test.getPinning().getEvents();
+    assertFalse(events.isEmpty());
+    assertNull(events.get(0).getThread());
+  }
+
+  @Test
+  void testLocksAndTicksDoNotPin() throws Throwable {
+    var test = new TUnitTestUnmounts();
+    TestFramework.runManyTimes(test, 3);
+    assertEquals(0, test.getPinning().getEvents().size());
+  }
+
+  @Test
+  void testReportOnly() throws Throwable {
+    var test = new TUnitTestSleepInMonitor();
+    test.setPinning(new PinningDetector(false));
+    TestFramework.runOnce(test);
+    assertFalse(test.getPinning().getEvents().isEmpty());
+  }
+
+}
@@ -0,0 +1,170 @@
+package sanity;
+
+import java.nio.file.Path;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.umd.cs.mtc.ForkedRunner;
+import edu.umd.cs.mtc.RaceDetector;
+import edu.umd.cs.mtc.TestCase;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+class RaceDetectorTests {
+
+  /**
+   * A write and a read of a field without synchronization: a race in every run,
+   * whichever comes first.
+   */
+  class TUnitTestRacyField extends TestCase {
+    int x;
+
+    void thread1() {
+      x = 1;
+    }
+
+    void thread2() {
+      var r = x;
+    }
+  }
+
+  /**
+   * Two writes of an array element without synchronization.
+   */
+  class TUnitTestRacyArray extends TestCase {
+    final int[] a = new int[4];
+
+    void thread1() {
+      a[2] = 1;
+    }
+
+    void thread2() {
+      a[2]++;
+    }
+  }
+
+  /**
+   * Accesses ordered by a monitor, a lock, a volatile field, a concurrent queue and a tick.
+   */
+  class TUnitTestNoRace extends TestCase {
+    final Object monitor = new Object();
+    final ReentrantLock lock = new ReentrantLock();
+    final ConcurrentLinkedQueue<Object> queue = new ConcurrentLinkedQueue<>();
+    int guarded, locked, published, handedOff, beforeTick;
+    long wide;
+    volatile boolean ready;
+
+    void setUp() {
+      ready = false;
+    }
+
+    void thread1() {
+      synchronized (monitor) {
+        guarded++;
+      }
+      lock.lock();
+      try {
+        locked++;
+        wide += 2;
+      } finally {
+        lock.unlock();
+      }
+      published = 1;
+      ready = true;
+      handedOff = 1;
+      queue.add(this);
+      beforeTick = 1;
+    }
+
+    void thread2() {
+      synchronized (monitor) {
+        guarded++;
+      }
+      lock.lock();
+      try {
+        locked++;
+        wide += 2;
+      } finally {
+        lock.unlock();
+      }
+      while (!ready) {
+        Thread.yield();
+      }
+      assertEquals(1, published);
+      while (queue.poll() == null) {
+        Thread.yield();
+      }
+      assertEquals(1, handedOff);
+      waitForTick(1);
+      assertEquals(1, beforeTick);
+    }
+  }
+
+  /**
+   * A write after tick 1, and a read after <code>waitForTick(1)</code> returns at tick 2:
+   * tick 1 does not order them.
+   */
+  class TUnitTestRacyAfterTick extends TestCase {
+    int x;
+
+    void thread1() {
+      waitForTick(1);
+      x = 1;
+      waitForTick(2);
+    }
+
+    void thread2() throws InterruptedException {
+      while (getTick() < 2) {
+        Thread.sleep(10);
+      }
+      waitForTick(1); // returns at once, the clock has passed tick 1
+      var r = x;
+    }
+  }
+
+  static RaceDetectorTests.Forked fork(Path dir) throws Exception {
+    return new Forked(List.of("-javaagent:" + YieldAgentTests.agentJar(dir) + "=sanity",
+      "-D" + RaceDetector.KEY + "=true"));
+  }
+
+  record Forked(List<String> jvmArgs) {
+    ForkedRunner.Report run(Class<? extends TestCase> c, int iterations) throws Throwable {
+      return ForkedRunner.run(c, 1, iterations, -1, -1, jvmArgs);
+    }
+  }
+
+  @Test
+  void testRacesAreDetected(@TempDir Path dir) throws Throwable {
+    var forked = fork(dir);
+    var report = forked.run(TUnitTestRacyField.class, 1);
+    assertEquals(1, report.getFailures());
+    var message = String.valueOf(report.getFirstFailure());
+    assertTrue(message.contains("Race on sanity.RaceDetectorTests$TUnitTestRacyField.x"), message);
+    assertTrue(message.contains("RaceDetectorTests.java:"), message);
+
+    report = forked.run(TUnitTestRacyArray.class, 1);
+    assertEquals(1, report.getFailures());
+    message = String.valueOf(report.getFirstFailure());
+    assertTrue(message.contains("Race on array element [2]"), message);
+  }
+
+  @Test
+  void testTickOrdersOnlyWhatCameBeforeIt(@TempDir Path dir) throws Throwable {
+    var report = fork(dir).run(TUnitTestRacyAfterTick.class, 1);
+    assertEquals(1, report.getFailures());
+    var message = String.valueOf(report.getFirstFailure());
+    assertTrue(message.contains("Race on sanity.RaceDetectorTests$TUnitTestRacyAfterTick.x"), message);
+  }
+
+  @Test
+  void testHappensBeforeEdges(@TempDir Path dir) throws Throwable {
+    var report = fork(dir).run(TUnitTestNoRace.class, 10);
+    assertEquals(10, report.getIterations());
+    assertEquals(0, report.getFailures(), String.valueOf(report.getFirstFailure()));
+  }
+
+}
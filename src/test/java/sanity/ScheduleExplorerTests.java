@@ -0,0 +1,95 @@
+package sanity;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import edu.umd.cs.mtc.ScheduleExplorer;
+import edu.umd.cs.mtc.TestCase;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScheduleExplorerTests {
+
+  /**
+   * A lost update. With one scheduling point in each thread method, it has six schedules:
+   * either thread may start, and the two that run a thread method in one go pass.
+   */
+  class TUnitTestLostUpdate extends TestCase {
+    int counter;
+
+    void setUp() {
+      counter = 0;
+    }
+
+    void thread1() {
+      var c = counter;
+      mayYield();
+      counter = c + 1;
+    }
+
+    void thread2() {
+      var c = counter;
+      mayYield();
+      counter = c + 1;
+    }
+
+    void tearDown() {
+      assertEquals(2, counter);
+    }
+  }
+
+  @Test
+  void testAllSchedulesAreExplored() {
+    var report = ScheduleExplorer.explore(TUnitTestLostUpdate::new, 1, 1000);
+    assertTrue(report.isComplete());
+    assertEquals(6, report.getSchedules(), report.toString());
+    assertEquals(4, report.getFailures(), report.toString());
+    assertEquals(0, report.getDiverged());
+  }
+
+  @Test
+  void testWorkersMergeIntoOneReport() {
+    var report = ScheduleExplorer.explore(TUnitTestLostUpdate::new, 4, 1000);
+    assertTrue(report.isComplete());
+    assertEquals(6, report.getSchedules(), report.toString());
+    assertEquals(4, report.getFailures(), report.toString());
+  }
+
+  @Test
+  void testFailingScheduleReplays() throws Throwable {
+    var out = System.out;
+    var bytes = new ByteArrayOutputStream();
+    System.setOut(new PrintStream(bytes, true));
+    ScheduleExplorer.Report report;
+    try {
+      report = ScheduleExplorer.explore(TUnitTestLostUpdate::new, 2, 1000);
+    }
+    finally {
+      System.setOut(out);
+    }
+    assertFalse(bytes.toString().contains("Schedule of failed run"), "exploring printed the failed schedules");
+    var schedule = report.getFailingSchedule();
+    assertNotNull(schedule);
+    bytes.reset();
+    System.setOut(new PrintStream(bytes, true));
+    try {
+      ScheduleExplorer.replay(new TUnitTestLostUpdate(), schedule);
+      fail("should throw exception");
+    } catch (AssertionError success) {
+    }
+    finally {
+      System.setOut(out);
+    }
+    assertTrue(bytes.toString().contains("Schedule of failed run: decisions"), bytes.toString());
+    ScheduleExplorer.replay(new TUnitTestLostUpdate(), 0, 0); // one thread method, then the other
+  }
+
+  @Test
+  void testLimit() {
+    var report = ScheduleExplorer.explore(TUnitTestLostUpdate::new, 1, 3);
+    assertFalse(report.isComplete());
+    assertEquals(3, report.getSchedules());
+  }
+
+}
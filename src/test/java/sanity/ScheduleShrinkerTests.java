@@ -0,0 +1,105 @@
+package sanity;
+
+import edu.umd.cs.mtc.ScheduleShrinker;
+import edu.umd.cs.mtc.TestCase;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScheduleShrinkerTests {
+
+  /**
+   * A lost update among scheduling points that have nothing to do with it:
+   * one context switch, between the read and the write, is enough to make it fail.
+   */
+  class TUnitTestLostUpdate extends TestCase {
+    int counter;
+
+    void setUp() {
+      counter = 0;
+    }
+
+    void thread1() {
+      for (var i = 0; i < 5; i++) mayYield();
+      var c = counter;
+      mayYield();
+      counter = c + 1;
+      for (var i = 0; i < 5; i++) mayYield();
+    }
+
+    void thread2() {
+      for (var i = 0; i < 5; i++) mayYield();
+      var c = counter;
+      mayYield();
+      counter = c + 1;
+      for (var i = 0; i < 5; i++) mayYield();
+    }
+
+    void tearDown() {
+      assertEquals(2, counter);
+    }
+  }
+
+  /**
+   * Each thread method runs in one go.
+   */
+  class TUnitTestNoRace extends TestCase {
+    int counter;
+
+    void thread1() {
+      synchronized (this) {
+        counter++;
+      }
+      mayYield();
+    }
+
+    void thread2() {
+      mayYield();
+      synchronized (this) {
+        counter++;
+      }
+    }
+
+    void finish() {
+      assertEquals(2, counter);
+    }
+  }
+
+  @Test
+  void testFailureIsShrunk() {
+    var result = ScheduleShrinker.runUntilFailure(new TUnitTestLostUpdate(), 1, 100);
+    assertTrue(result.getFailure() instanceof AssertionError, result.toString());
+    assertTrue(result.getOriginalSchedule().length >= 3 * result.getSwitches());
+    assertEquals(1, result.getSwitches(), result.toString());
+    assertFalse(result.getSteps().isEmpty());
+    assertTrue(result.getSteps().get(0).endsWith("runs first"), result.getSteps().toString());
+    assertTrue(result.toString().contains("switched out at sanity."), result.toString());
+  }
+
+  @Test
+  void testShrunkScheduleReplays() throws Throwable {
+    var result = ScheduleShrinker.runUntilFailure(new TUnitTestLostUpdate(), 7, 100);
+    var schedule = result.getSchedule();
+    assertNotNull(schedule, result.toString());
+    try {
+      ScheduleShrinker.replay(new TUnitTestLostUpdate(), schedule);
+      fail("should throw exception");
+    } catch (AssertionError success) {
+    }
+    ScheduleShrinker.replay(new TUnitTestLostUpdate()); // no context switch
+    try {
+      ScheduleShrinker.replay(new TUnitTestLostUpdate(), 0, 6, 1); // thread1 switched out after its read
+      fail("should throw exception");
+    } catch (AssertionError success) {
+    }
+  }
+
+  @Test
+  void testNoFailure() throws Throwable {
+    var result = ScheduleShrinker.runUntilFailure(new TUnitTestNoRace(), 1, 20);
+    assertNull(result.getFailure());
+    assertEquals(20, result.getRuns());
+    ScheduleShrinker.check(new TUnitTestNoRace(), 1, 20);
+  }
+
+}
@@ -0,0 +1,217 @@
+package sanity;
+
+import java.util.concurrent.CountDownLatch;
+
+import edu.umd.cs.mtc.TestCase;
+import edu.umd.cs.mtc.TestFramework;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Run test cases with the shared clock scheduler instead of a clock thread per run.
+ */
+class SharedClockTests {
+
+  @BeforeEach
+  void useSharedClock() {
+    TestFramework.setGlobalClockThreads(2);
+  }
+
+  @AfterEach
+  void useClockThreads() {
+    System.clearProperty(TestFramework.CLOCKTHREADS_KEY);
+  }
+
+  class TUnitTestTicks extends TestCase {
+    String s;
+
+    void setUp() {
+      s = "";
+    }
+
+    void thread1() {
+      assertFalse(Thread.currentThread().getThreadGroup().activeCount() > 3, "clock thread in test case group");
+      waitForTick(1);
+      s += "1";
+      waitForTick(3);
+      s += "3";
+    }
+
+    void thread2() {
+      waitForTick(2);
+      s += "2";
+    }
+
+    void tearDown() {
+      assertEquals("123", s);
+    }
+  }
+
+  class TUnitTestDeadlock extends TestCase {
+    Object o;
+
+    void setUp() {
+      o = new Object();
+    }
+
+    void thread1() throws InterruptedException {
+      waitForTick(1);
+      synchronized (o) {
+        o.wait(); // never notified
+      }
+    }
+  }
+
+  /**
+   * Run test cases in parallel, each one on a thread of its own.
+   *
+   * @return the failure of each run, or null for the runs that passed
+   */
+  static Throwable[] runInParallel(TestCase... tests) throws InterruptedException {
+    var failures = new Throwable[tests.length];
+    var runners = new Thread[tests.length];
+    for (var i = 0; i < tests.length; i++) {
+      var k = i;
+      runners[i] = new Thread(() -> {
+        try {
+          TestFramework.runOnce(tests[k]);
+        }
+        catch (Throwable e) {
+          failures[k] = e;
+        }
+      });
+      runners[i].start();
+    }
+    for (var r : runners) {
+      r.join();
+    }
+    return failures;
+  }
+
+  @Test
+  void testManyRunsShareTheClockScheduler() throws Throwable {
+    var tests = new TestCase[50];
+    for (var i = 0; i < tests.length; i++) {
+      tests[i] = new TUnitTestTicks();
+    }
+    for (var failure : runInParallel(tests)) {
+      assertNull(failure);
+    }
+    for (var t : Thread.getAllStackTraces().keySet()) {
+      assertNotEquals("Tick thread", t.getName());
+    }
+  }
+
+  @Test
+  void testFailureOfOneRunDoesNotAffectOthers() throws Throwable {
+    var failures = runInParallel(new TUnitTestTicks(), new TUnitTestDeadlock(), new TUnitTestTicks());
+    assertNull(failures[0]);
+    assertNull(failures[2]);
+    assertTrue(failures[1] instanceof IllegalStateException, String.valueOf(failures[1]));
+  }
+
+  // - - - -
+
+  class TUnitTestClockDoesNotAdvanceWhenFrozen extends TestCase {
+    String s;
+
+    void setUp() {
+      s = "A";
+    }
+
+    void thread1() throws InterruptedException {
+      freezeClock();
+      Thread.sleep(200);
+      assertEquals(s, "A", "Clock advanced while thread was sleeping");
+      unfreezeClock();
+    }
+
+    void thread2() {
+      waitForTick(1);
+      s = "B";
+    }
+
+    void tearDown() {
+      assertEquals(s, "B");
+    }
+  }
+
+  @Test
+  void testClockDoesNotAdvanceWhenFrozen() throws Throwable {
+    TestFramework.runOnce( new TUnitTestClockDoesNotAdvanceWhenFrozen() );
+  }
+
+  class TUnitTestMissingUnfreeze extends TestCase {
+    void thread1() {
+      freezeClock();
+    }
+
+    void thread2() {
+      waitForTick(1);
+    }
+  }
+
+  @Test
+  void testMissingUnfreezeFails() throws Throwable {
+    try {
+      TestFramework.runOnce( new TUnitTestMissingUnfreeze(), -1, 1 );
+      fail("should throw exception");
+    } catch (IllegalStateException success) {
+      assertTrue(success.getMessage().startsWith("No progress"), success.getMessage());
+    }
+  }
+
+  // - - - -
+
+  /**
+   * thread1 fails, and thread2 ignores the interrupts of the shutdown until it is released,
+   * long enough for the clock to find it deadlocked.
+   */
+  class TUnitTestSlowShutdown extends TestCase {
+    final CountDownLatch release = new CountDownLatch(1);
+
+    void thread1() {
+      throw new IllegalArgumentException("thread1 failed");
+    }
+
+    void thread2() {
+      for (;;) {
+        try {
+          release.await();
+          return;
+        }
+        catch (InterruptedException e) {
+          // ignored until released
+        }
+      }
+    }
+  }
+
+  @Test
+  void testFailedRunDoesNotAffectTheNextOne() throws Throwable {
+    var test = new TUnitTestSlowShutdown();
+    TestFramework.setGlobalShutdownLimit(3000);
+    var releaser = new Thread(() -> {
+      try {
+        Thread.sleep(1000);
+      }
+      catch (InterruptedException e) {
+      }
+      test.release.countDown();
+    });
+    releaser.start();
+    try {
+      assertThrows(IllegalArgumentException.class, () -> TestFramework.runOnce(test));
+      assertFalse(Thread.currentThread().isInterrupted(), "the clock interrupted the caller");
+      TestFramework.runOnce(new TUnitTestTicks());
+    }
+    finally {
+      releaser.join();
+      System.clearProperty(TestFramework.SHUTDOWNLIMIT_KEY);
+    }
+  }
+
+}
@@ -0,0 +1,51 @@
+package sanity;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.umd.cs.mtc.TestCase;
+import edu.umd.cs.mtc.TestFramework;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class SpinStartTests {
+
+  class TUnitTestAllThreadsStart extends TestCase {
+    AtomicInteger started;
+
+    void setUp() {
+      started = new AtomicInteger();
+    }
+
+    void thread1() { started.incrementAndGet(); }
+    void thread2() { started.incrementAndGet(); }
+    void thread3() { started.incrementAndGet(); }
+
+    void thread4() {
+      started.incrementAndGet();
+      waitForTick(1);
+    }
+
+    void tearDown() {
+      assertEquals(4, started.get());
+    }
+  }
+
+  @Test
+  void testSpinStart() throws Throwable {
+    var test = new TUnitTestAllThreadsStart();
+    test.setSpinStart(true);
+    TestFramework.runManyTimes(test, 5);
+    assertTrue(test.getStartSkew() < 1_000_000_000L, "start skew of " + test.getStartSkew() + " ns");
+  }
+
+  @Test
+  void testStartSkewIsMeasuredWithLatchStart() throws Throwable {
+    var test = new TUnitTestAllThreadsStart();
+    assertFalse(test.getSpinStart());
+    assertEquals(0, test.getStartSkew());
+    TestFramework.runOnce(test);
+    assertTrue(test.getStartSkew() > 0, "start skew not measured");
+  }
+
+}
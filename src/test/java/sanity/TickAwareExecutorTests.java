@@ -0,0 +1,220 @@
+package sanity;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import edu.umd.cs.mtc.TestCase;
+import edu.umd.cs.mtc.TestFramework;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class TickAwareExecutorTests {
+
+  static void busy(long millis) {
+    var end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+    while (System.nanoTime() < end) Thread.onSpinWait();
+  }
+
+  class TUnitTestClockWaitsForRunningTask extends TestCase {
+    ExecutorService executor;
+    volatile boolean done;
+
+    void setUp() {
+      executor = tickAware(ForkJoinPool.commonPool());
+      done = false;
+    }
+
+    void thread1() {
+      executor.execute(() -> {
+        busy(200);
+        done = true;
+      });
+      waitForTick(1);
+      assertTrue(done, "Clock advanced while a task was running");
+    }
+  }
+
+  @Test
+  void testClockWaitsForRunningTask() throws Throwable {
+    TestFramework.runOnce( new TUnitTestClockWaitsForRunningTask() );
+  }
+
+  // - - - -
+
+  class TUnitTestClockWaitsForDelayedTask extends TestCase {
+    ScheduledExecutorService executor;
+    volatile boolean done;
+
+    void setUp() {
+      executor = tickAware(Executors.newSingleThreadScheduledExecutor());
+      done = false;
+    }
+
+    void thread1() {
+      executor.schedule(() -> { done = true; }, 200, TimeUnit.MILLISECONDS);
+      waitForTick(1);
+      assertTrue(done, "Clock advanced while a task was scheduled");
+    }
+
+    void tearDown() {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  void testClockWaitsForDelayedTask() throws Throwable {
+    TestFramework.runOnce( new TUnitTestClockWaitsForDelayedTask() );
+  }
+
+  // - - - -
+
+  class TUnitTestTaskWaitsForTick extends TestCase {
+    ExecutorService executor;
+    String s;
+
+    void setUp() {
+      executor = tickAware(Executors.newSingleThreadExecutor());
+      s = "";
+    }
+
+    void thread1() throws Exception {
+      var f = executor.submit(() -> {
+        waitForTick(2);
+        s += "B";
+      });
+      waitForTick(1);
+      s += "A";
+      f.get();
+    }
+
+    void tearDown() {
+      executor.shutdown();
+      assertEquals("AB", s);
+    }
+  }
+
+  @Test
+  void testTaskWaitsForTick() throws Throwable {
+    TestFramework.runOnce( new TUnitTestTaskWaitsForTick() );
+  }
+
+  // - - - -
+
+  class TUnitTestDeadlockInTaskDetected extends TestCase {
+    ExecutorService executor;
+    CountDownLatch never;
+
+    void setUp() {
+      executor = tickAware(Executors.newSingleThreadExecutor());
+      never = new CountDownLatch(1);
+    }
+
+    void thread1() throws Exception {
+      executor.submit(() -> {
+        never.await();
+        return null;
+      }).get();
+    }
+
+    void tearDown() {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * The first run fails with a delayed task still pending: the task must not run,
+   * nor keep the second run from making progress.
+   */
+  class TUnitTestPendingTaskEndsWithItsRun extends TestCase {
+    final ScheduledExecutorService executor = tickAware(Executors.newSingleThreadScheduledExecutor());
+    volatile boolean ran;
+    int runs;
+
+    void thread1() {
+      if (runs++ == 0) {
+        executor.schedule(() -> { ran = true; }, 300, TimeUnit.MILLISECONDS);
+        throw new IllegalArgumentException("ends the run with the task pending");
+      } else {
+        waitForTick(1);
+      }
+    }
+  }
+
+  @Test
+  void testPendingTaskEndsWithItsRun() throws Throwable {
+    var test = new TUnitTestPendingTaskEndsWithItsRun();
+    try {
+      assertThrows(IllegalArgumentException.class, () -> TestFramework.runOnce(test, -1, 1));
+      TestFramework.runOnce(test, -1, 1);
+      Thread.sleep(500);
+      assertFalse(test.ran, "Task of an ended run ran");
+    } finally {
+      test.executor.shutdownNow();
+    }
+  }
+
+  /**
+   * The first run fails with a submitted task still queued behind a task
+   * the clock does not see: its future must be cancelled, not left waiting forever.
+   */
+  class TUnitTestSubmittedTaskEndsWithItsRun extends TestCase {
+    final ExecutorService pool = Executors.newSingleThreadExecutor();
+    final ExecutorService executor = tickAware(pool);
+    final CountDownLatch release = new CountDownLatch(1);
+    volatile boolean ran;
+    volatile Future<?> future;
+    int runs;
+
+    void thread1() {
+      if (runs++ == 0) {
+        pool.execute(() -> {
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            // the executor is shut down
+          }
+        });
+        future = executor.submit(() -> { ran = true; });
+        throw new IllegalArgumentException("ends the run with the task queued");
+      } else {
+        waitForTick(1);
+      }
+    }
+  }
+
+  @Test
+  void testSubmittedTaskEndsWithItsRun() throws Throwable {
+    var test = new TUnitTestSubmittedTaskEndsWithItsRun();
+    try {
+      assertThrows(IllegalArgumentException.class, () -> TestFramework.runOnce(test, -1, 1));
+      test.release.countDown();
+      TestFramework.runOnce(test, -1, 1);
+      assertThrows(CancellationException.class, () -> test.future.get(2, TimeUnit.SECONDS));
+      assertFalse(test.ran, "Task of an ended run ran");
+      assertEquals(42, test.pool.submit(() -> 42).get(2, TimeUnit.SECONDS), "Worker of the pool died");
+    } finally {
+      test.pool.shutdownNow();
+    }
+  }
+
+  @Test
+  void testDeadlockInTaskDetected() throws Throwable {
+    var test = new TUnitTestDeadlockInTaskDetected();
+    try {
+      TestFramework.runOnce(test);
+      fail("should throw exception");
+    } catch (IllegalStateException success) {
+      assertTrue(success.getMessage().contains("CountDownLatch.await"), success.getMessage());
+    } finally {
+      test.executor.shutdownNow();
+    }
+  }
+
+}
@@ -1,5 +1,8 @@
 package sanity;
 
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
 import edu.umd.cs.mtc.TestCase;
 import edu.umd.cs.mtc.TestFramework;
 
@@ -37,4 +40,99 @@ class TimingTests {
       TestFramework.runOnce( new TUnitTestClockDoesNotAdvanceWhenFrozen() );
     }
 
+    // - - - -
+
+    class TUnitTestSleepTicksOrdersThreads extends TestCase {
+      String s;
+
+      void setUp() {
+        s = "";
+      }
+
+      void thread1() {
+        sleepTicks(5);
+        s += "B";
+      }
+
+      void thread2() {
+        sleepTicks(3);
+        s += "A";
+      }
+
+      void tearDown() {
+        assertEquals("AB", s);
+        assertTick(5);
+      }
+    }
+
+    @Test
+    void testSleepTicksOrdersThreads() throws Throwable {
+      TestFramework.runOnce( new TUnitTestSleepTicksOrdersThreads() );
+    }
+
+    // - - - -
+
+    class TUnitTestTimedWaitOnTimesOutInVirtualTime extends TestCase {
+      Object o;
+
+      void setUp() {
+        o = new Object();
+      }
+
+      void thread1() {
+        synchronized (o) {
+          assertFalse(waitOn(o, 1000), "Wait should have timed out");
+        }
+        assertTick(1000);
+      }
+    }
+
+    @Test
+    void testTimedWaitOnTimesOutInVirtualTime() throws Throwable {
+      var start = System.currentTimeMillis();
+      TestFramework.runOnce( new TUnitTestTimedWaitOnTimesOutInVirtualTime() );
+      assertTrue(System.currentTimeMillis() - start < 2000, "Virtual time took real time");
+    }
+
+    // - - - -
+
+    class TUnitTestTimedAwaitOnIsSignalled extends TestCase {
+      ReentrantLock l;
+      Condition c;
+
+      void setUp() {
+        l = new ReentrantLock();
+        c = l.newCondition();
+      }
+
+      void thread1() {
+        l.lock();
+        try {
+          assertTrue(awaitOn(c, 100), "Wait should have been signalled");
+          assertTick(1);
+        } finally {
+          l.unlock();
+        }
+      }
+
+      void thread2() {
+        waitForTick(1);
+        l.lock();
+        try {
+          c.signal();
+        } finally {
+          l.unlock();
+        }
+      }
+
+      void tearDown() {
+        assertTick(1);
+      }
+    }
+
+    @Test
+    void testTimedAwaitOnIsSignalled() throws Throwable {
+      TestFramework.runOnce( new TUnitTestTimedAwaitOnIsSignalled() );
+    }
+
 }
@@ -0,0 +1,180 @@
+package sanity;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringWriter;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import edu.umd.cs.mtc.TestCase;
+import edu.umd.cs.mtc.TestFramework;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+class TraceTests {
+
+  class TUnitTestTicks extends TestCase {
+    void thread1() {
+      waitForTick(1);
+    }
+
+    void thread2() {
+      waitForTick(2);
+    }
+  }
+
+  class TUnitTestFails extends TestCase {
+    void thread1() {
+      waitForTick(1);
+      fail("failed at tick 1");
+    }
+  }
+
+  /**
+   * Run a test case once, and return what it printed to standard out.
+   */
+  static String runOnce(TestCase test) throws Throwable {
+    var bytes = new ByteArrayOutputStream();
+    var out = System.out;
+    System.setOut(new PrintStream(bytes, true));
+    try {
+      TestFramework.runOnce(test);
+    }
+    finally {
+      System.setOut(out);
+    }
+    return bytes.toString();
+  }
+
+  @Test
+  void testTraceIsPrintedAtEndOfRun() throws Throwable {
+    var test = new TUnitTestTicks();
+    test.setTrace(true);
+    var text = runOnce(test);
+    assertTrue(text.contains("is waiting for time 2"), text);
+    assertTrue(text.contains("Time is now 1"), text);
+    assertTrue(text.contains("Time is now 2"), text);
+    assertTrue(text.indexOf("Time is now 1") < text.indexOf("Time is now 2"), text);
+  }
+
+  @Test
+  void testTraceOnlyOnFailureSkipsPassingRuns() throws Throwable {
+    var test = new TUnitTestTicks();
+    test.setTraceOnlyOnFailure(true);
+    assertTrue(test.getTrace());
+    assertEquals("", runOnce(test));
+  }
+
+  @Test
+  void testTraceOnlyOnFailurePrintsFailingRuns() throws Throwable {
+    var test = new TUnitTestFails();
+    test.setTraceOnlyOnFailure(true);
+    var out = System.out;
+    var bytes = new ByteArrayOutputStream();
+    System.setOut(new PrintStream(bytes, true));
+    try {
+      TestFramework.runOnce(test);
+      fail("should throw exception");
+    }
+    catch (AssertionError success) {
+      assertEquals("failed at tick 1", success.getMessage());
+    }
+    finally {
+      System.setOut(out);
+    }
+    var text = bytes.toString();
+    assertTrue(text.contains("Time is now 1"), text);
+  }
+
+  // - - - -
+
+  class TUnitTestDeadlock extends TestCase {
+    Object o;
+
+    void setUp() {
+      o = new Object();
+    }
+
+    void thread1() throws InterruptedException {
+      waitForTick(1);
+      synchronized (o) {
+        o.wait(); // never notified
+      }
+    }
+
+    void thread2() throws InterruptedException {
+      waitForTick(1);
+      synchronized (o) {
+        o.wait(); // never notified
+      }
+    }
+  }
+
+  @Test
+  void testTimelineOfFailedRunIsWritten(@TempDir Path dir) throws Throwable {
+    var test = new TUnitTestDeadlock();
+    test.setTimeline(dir.toFile());
+    try {
+      runOnce(test);
+      fail("should throw exception");
+    }
+    catch (IllegalStateException success) {
+      // deadlock
+    }
+    try (var files = Files.list(dir)) {
+      var file = files.findFirst().orElseThrow();
+      var json = Files.readString(file);
+      assertTrue(json.startsWith("{\"displayTimeUnit\":\"ms\",\"traceEvents\":["), json);
+      assertTrue(json.contains("\"name\":\"waitForTick(1)\""), json);
+      assertTrue(json.contains("\"name\":\"Time is now 1\""), json);
+      assertTrue(json.contains("\"name\":\"WAITING\",\"cat\":\"state\",\"ph\":\"X\""), json);
+      assertTrue(json.contains("\"name\":\"Deadlock!\""), json);
+    }
+  }
+
+  @Test
+  void testTimelineOfPassingRunIsWrittenOnRequest(@TempDir Path dir) throws Throwable {
+    var test = new TUnitTestTicks();
+    test.setTimeline(dir.toFile());
+    assertEquals("", runOnce(test));
+    try (var files = Files.list(dir)) {
+      assertEquals(0, files.count(), "timeline of passing run written");
+    }
+    var out = new StringWriter();
+    test.writeTimeline(out);
+    assertTrue(out.toString().contains("\"name\":\"Time is now 2\""), out.toString());
+    assertTrue(out.toString().endsWith("]}\n"), out.toString());
+  }
+
+  static long usedAfterGc() throws InterruptedException {
+    var rt = Runtime.getRuntime();
+    for (var i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(20);
+    }
+    return rt.totalMemory() - rt.freeMemory();
+  }
+
+  @Test
+  void testTracesOfPastRunsAreNotRetained() throws Throwable {
+    TestFramework.setGlobalClockThreads(1);
+    System.setProperty("tunit.traceCapacity", Integer.toString(1 << 17)); // 2 MB per thread and run
+    try {
+      var test = new TUnitTestTicks();
+      test.setTraceOnlyOnFailure(true);
+      TestFramework.runManyTimes(test, 5);
+      var before = usedAfterGc();
+      TestFramework.runManyTimes(test, 60);
+      var growth = usedAfterGc() - before;
+      assertTrue(growth < 30 << 20, "60 runs retained " + (growth >> 20) + " MB");
+    }
+    finally {
+      System.clearProperty(TestFramework.CLOCKTHREADS_KEY);
+      System.clearProperty("tunit.traceCapacity");
+    }
+  }
+
+}
@@ -0,0 +1,131 @@
+package sanity;
+
+import java.io.IOException;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import edu.umd.cs.mtc.ForkedRunner;
+import edu.umd.cs.mtc.LockOrderGraph;
+import edu.umd.cs.mtc.PctScheduler;
+import edu.umd.cs.mtc.TestCase;
+import edu.umd.cs.mtc.TestFramework;
+import edu.umd.cs.mtc.YieldHooks;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+class YieldAgentTests {
+
+  /**
+   * A lost update without any call to mayYield:
+   * only the yield points inserted by the agent can separate the read from the write.
+   */
+  class TUnitTestLostUpdate extends TestCase {
+    int counter;
+
+    void setUp() {
+      counter = 0;
+    }
+
+    void thread1() {
+      var c = counter;
+      counter = c + 1;
+    }
+
+    void thread2() {
+      var c = counter;
+      counter = c + 1;
+    }
+
+    void tearDown() {
+      assertEquals(2, counter);
+    }
+  }
+
+  /**
+   * Write an agent jar that only has a manifest; the agent classes are on the class path.
+   */
+  static Path agentJar(Path dir) throws IOException {
+    var manifest = new Manifest();
+    manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    manifest.getMainAttributes().putValue("Premain-Class", "edu.umd.cs.mtc.YieldAgent");
+    var jar = dir.resolve("agent.jar");
+    new JarOutputStream(Files.newOutputStream(jar), manifest).close(); // nothing but the manifest
+    return jar;
+  }
+
+  @Test
+  void testAgentInsertsSchedulingPoints(@TempDir Path dir) throws Throwable {
+    var report = ForkedRunner.run(TUnitTestLostUpdate.class, 1, 100, -1, -1, List.of(
+      "-javaagent:" + agentJar(dir) + "=sanity",
+      "-D" + PctScheduler.DEPTH_KEY + "=2",
+      "-D" + PctScheduler.SEED_KEY + "=1",
+      "-D" + PctScheduler.STEPS_KEY + "=4"));
+    assertEquals(100, report.getIterations());
+    assertTrue(report.getFailures() > 0, "lost update never found");
+    assertTrue(report.getFirstFailure() instanceof AssertionError, String.valueOf(report.getFirstFailure()));
+  }
+
+  @Test
+  void testNoSchedulingPointsWithoutAgent() throws Throwable {
+    var test = new TUnitTestLostUpdate();
+    test.setPct(new PctScheduler(2, 1, 4));
+    TestFramework.runManyTimes(test, 20);
+  }
+
+  /**
+   * Calls every hook from a thread that is not a thread method, while the test case is running.
+   */
+  class TUnitTestHooksOutsideThreadMethods extends TestCase {
+    {
+      setLockOrder(new LockOrderGraph());
+      setAutoYield(1.0);
+    }
+
+    void thread1() throws InterruptedException {
+      var helper = new Thread(YieldAgentTests::callHooks);
+      helper.start();
+      helper.join();
+    }
+  }
+
+  static void callHooks() {
+    var a = new Object();
+    var b = new Object();
+    YieldHooks.beforeRead(a, 0);
+    YieldHooks.afterRead();
+    YieldHooks.beforeWrite(a, 0);
+    YieldHooks.beforeWrite();
+    YieldHooks.beforeArrayRead(new int[1], 0, 0);
+    YieldHooks.beforeArrayWrite(new int[1], 0, 0);
+    YieldHooks.beforeMonitorEnter(a);
+    YieldHooks.afterMonitorEnter(a);
+    YieldHooks.beforeLock();
+    YieldHooks.afterLock(b);
+    assertTrue(YieldHooks.afterTryLock(b, true));
+    YieldHooks.beforeUnlock(b);
+    YieldHooks.afterUnlock();
+    YieldHooks.afterUnlock(b);
+    YieldHooks.beforeMonitorExit(a);
+    YieldHooks.afterMonitorExit(a);
+    YieldHooks.beforeSync(a);
+    YieldHooks.afterSync();
+  }
+
+  @Test
+  void testHooksDoNothingOutsideThreadMethods() throws Throwable {
+    callHooks(); // no test case is running
+    var test = new TUnitTestHooksOutsideThreadMethods();
+    TestFramework.runOnce(test);
+    assertEquals(0, test.getLockOrder().getLocks(), "a hook recorded a lock");
+    assertEquals(0, test.getLockOrder().getEdges(), "a hook recorded an edge");
+  }
+
+}